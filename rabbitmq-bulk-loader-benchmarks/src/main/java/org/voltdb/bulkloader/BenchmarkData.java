@@ -0,0 +1,149 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.voltdb.VoltType;
+
+/**
+ * Generates reproducible CSV message bodies for the benchmarks. Columns
+ * cycle through BIGINT, FLOAT, DECIMAL, VARCHAR and TIMESTAMP values. The
+ * quoting density is the fraction of VARCHAR values that are quoted, each
+ * quoted value holding an embedded separator and an escaped quote.
+ */
+class BenchmarkData
+{
+    private static final VoltType[] TYPE_CYCLE = {
+        VoltType.BIGINT, VoltType.FLOAT, VoltType.DECIMAL, VoltType.STRING, VoltType.TIMESTAMP
+    };
+
+    private final VoltType[] m_columnTypes;
+    private final double m_quoting;
+    private final Random m_random = new Random(42);
+
+    /**
+     * @param columns  row width
+     * @param quoting  fraction of VARCHAR values quoted, from 0 to 1
+     */
+    public BenchmarkData(int columns, double quoting)
+    {
+        m_columnTypes = new VoltType[columns];
+        for (int i = 0; i < columns; ++i) {
+            m_columnTypes[i] = TYPE_CYCLE[i % TYPE_CYCLE.length];
+        }
+        m_quoting = quoting;
+    }
+
+    /**
+     * @return column types matching the generated rows
+     */
+    public VoltType[] getColumnTypes()
+    {
+        return m_columnTypes;
+    }
+
+    /**
+     * @param rows  row count
+     * @return message body holding that many newline-terminated rows
+     */
+    public byte[] body(int rows)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int row = 0; row < rows; ++row) {
+            for (int i = 0; i < m_columnTypes.length; ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                appendValue(sb, m_columnTypes[i]);
+            }
+            sb.append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param rows  row count per body
+     * @param count  number of bodies
+     * @return distinct message bodies, so that the benchmarks don't only
+     *         measure a single body's cached branches
+     */
+    public byte[][] bodies(int rows, int count)
+    {
+        byte[][] bodies = new byte[count][];
+        for (int i = 0; i < count; ++i) {
+            bodies[i] = body(rows);
+        }
+        return bodies;
+    }
+
+    /**
+     * @param body  message body
+     * @param compression  compression
+     * @return compressed body
+     * @throws IOException
+     */
+    public static byte[] compress(final byte[] body, final Compression compression) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream output = compression.compress(bytes);
+        output.write(body);
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    private void appendValue(final StringBuilder sb, final VoltType type)
+    {
+        switch (type) {
+        case BIGINT:
+            sb.append(m_random.nextInt(1000000));
+            break;
+        case FLOAT:
+            sb.append(m_random.nextDouble() * 1000);
+            break;
+        case DECIMAL:
+            sb.append(m_random.nextInt(100000)).append('.').append(1000 + m_random.nextInt(9000));
+            break;
+        case TIMESTAMP:
+            sb.append(String.format("2018-%02d-%02d %02d:%02d:%02d.%06d",
+                                    1 + m_random.nextInt(12), 1 + m_random.nextInt(28),
+                                    m_random.nextInt(24), m_random.nextInt(60), m_random.nextInt(60),
+                                    m_random.nextInt(1000000)));
+            break;
+        default:
+            if (m_random.nextDouble() < m_quoting) {
+                sb.append("\"name ").append(m_random.nextInt(10000)).append(", \"\"quoted\"\"\"");
+            }
+            else {
+                sb.append("name").append(m_random.nextInt(10000));
+            }
+            break;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.voltdb.VoltType;
+import org.voltdb.utils.CSVDataLoader;
+import org.voltdb.utils.RowWithMetaData;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Hands messages to an RMQDeliveryConsumer as the broker would and drains
+ * their rows from a ConsumerConnector as a loader worker does, covering
+ * delivery queueing, decompression, parsing, conversion and per-row
+ * meta-data. The channel and loader are stubs, so nothing leaves the
+ * process. One operation is one message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConsumerConnectorBenchmark
+{
+    private static final int BODY_COUNT = 16;
+
+    @Param({"4", "16", "64"})
+    public int columns;
+
+    @Param({"0.2"})
+    public double quoting;
+
+    @Param({"1", "100", "10000"})
+    public int rows;
+
+    /// identity or a compression name
+    @Param({"identity", "gzip", "lz4", "zstd"})
+    public String encoding;
+
+    private byte[][] m_bodies;
+    private AMQP.BasicProperties m_properties;
+    private RMQDeliveryConsumer m_rmqConsumer;
+    private ConsumerConnector m_connector;
+    private long m_deliveryTag = 0;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        BenchmarkData data = new BenchmarkData(columns, quoting);
+        m_bodies = data.bodies(rows, BODY_COUNT);
+        Compression compression = Compression.fromEncoding(encoding);
+        if (compression != null) {
+            for (int i = 0; i < m_bodies.length; ++i) {
+                m_bodies[i] = BenchmarkData.compress(m_bodies[i], compression);
+            }
+        }
+        m_properties = new AMQP.BasicProperties.Builder().contentEncoding(encoding).build();
+
+        // Deliveries are acknowledged on receipt, which the channel ignores.
+        RMQOptions rmqOpts = new RMQOptions();
+        rmqOpts.queue = "benchmark";
+        m_rmqConsumer = new RMQDeliveryConsumer(createChannel(), rmqOpts);
+        m_connector = new ConsumerConnector(m_rmqConsumer, new NullLoader(data.getColumnTypes()), null, null, null, null, null);
+    }
+
+    @Benchmark
+    public void deliver(final ThroughputCounters counters, final Blackhole blackhole) throws IOException
+    {
+        final byte[] body = m_bodies[(int) (m_deliveryTag % m_bodies.length)];
+        counters.bytes += body.length;
+        m_rmqConsumer.handleDelivery("benchmark", new Envelope(++m_deliveryTag, false, "", "benchmark"),
+                                     m_properties, body);
+        ConsumerConnector.BulkLoaderData row;
+        while ((row = m_connector.poll()) != null) {
+            blackhole.consume(row);
+            counters.rows++;
+        }
+    }
+
+    /**
+     * @return channel that ignores every call
+     */
+    private static Channel createChannel()
+    {
+        return (Channel) Proxy.newProxyInstance(
+                Channel.class.getClassLoader(), new Class<?>[] {Channel.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Loader that reports column types and discards rows.
+     */
+    private static class NullLoader implements CSVDataLoader
+    {
+        private final VoltType[] m_columnTypes;
+
+        NullLoader(final VoltType[] columnTypes)
+        {
+            m_columnTypes = columnTypes;
+        }
+
+        @Override
+        public VoltType[] getColumnTypes()
+        {
+            return m_columnTypes;
+        }
+
+        @Override
+        public void insertRow(RowWithMetaData metaData, Object[] values)
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public long getProcessedRows()
+        {
+            return 0;
+        }
+
+        @Override
+        public long getFailedRows()
+        {
+            return 0;
+        }
+
+        @Override
+        public void setFlushInterval(int delay, int seconds)
+        {
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void resumeLoading()
+        {
+        }
+
+        @Override
+        public Map<Integer, String> getColumnNames()
+        {
+            return null;
+        }
+    }
+}
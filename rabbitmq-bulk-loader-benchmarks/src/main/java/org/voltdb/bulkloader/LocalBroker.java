@@ -0,0 +1,564 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * In-process stand-in for a RabbitMQ broker, covering what the bulk loader's
+ * consumers use: queues, consumers with prefetch windows, acknowledgements,
+ * rejections with or without requeueing, cancellation and channel shutdown,
+ * and the publishing of dead letters. Exchanges and bindings are accepted
+ * but not routed through: a message published to an exchange goes to the
+ * queue of the same name, and publisher confirms always succeed.
+ *
+ * Connections and channels are dynamic proxies that implement those calls
+ * and throw UnsupportedOperationException for the rest.
+ */
+class LocalBroker
+{
+    /// How long a dispatcher waits for a message before checking for cancellation.
+    private static final long DISPATCH_POLL_MILLIS = 100;
+
+    /**
+     * A queued message.
+     */
+    private static class Message
+    {
+        final AMQP.BasicProperties properties;
+        final byte[] body;
+        volatile boolean redelivered = false;
+
+        Message(final AMQP.BasicProperties properties, final byte[] body)
+        {
+            this.properties = properties;
+            this.body = body;
+        }
+    }
+
+    private final ConcurrentMap<String, BlockingDeque<Message>> m_queues =
+            new ConcurrentHashMap<String, BlockingDeque<Message>>();
+    private final AtomicInteger m_channelCount = new AtomicInteger(0);
+    private final AtomicInteger m_consumerCount = new AtomicInteger(0);
+    private final AtomicLong m_publishedCount = new AtomicLong(0);
+    private final AtomicLong m_ackedCount = new AtomicLong(0);
+    private final AtomicLong m_rejectedCount = new AtomicLong(0);
+    private final AtomicLong m_unackedCount = new AtomicLong(0);
+    private final AtomicLong m_requeuedCount = new AtomicLong(0);
+    /// Open channels of all connections.
+    private final List<LocalChannel> m_openChannels = new CopyOnWriteArrayList<LocalChannel>();
+
+    /**
+     * Publish a message to a queue, declaring the queue if needed.
+     * @param queue  queue name
+     * @param properties  message properties
+     * @param body  message body
+     */
+    public void publish(final String queue, final AMQP.BasicProperties properties, final byte[] body)
+    {
+        getQueue(queue).add(new Message(properties, body));
+        m_publishedCount.incrementAndGet();
+    }
+
+    /**
+     * @param queue  queue name
+     * @return number of messages ready for delivery
+     */
+    public int getQueueDepth(final String queue)
+    {
+        return getQueue(queue).size();
+    }
+
+    /**
+     * @return number of messages delivered and not yet settled
+     */
+    public long getUnackedCount()
+    {
+        return m_unackedCount.get();
+    }
+
+    public long getPublishedCount()
+    {
+        return m_publishedCount.get();
+    }
+
+    public long getAckedCount()
+    {
+        return m_ackedCount.get();
+    }
+
+    /**
+     * @return number of messages rejected without requeueing
+     */
+    public long getRejectedCount()
+    {
+        return m_rejectedCount.get();
+    }
+
+    /**
+     * @return number of messages put back for redelivery, after their
+     *         channel closed or they were rejected with requeueing
+     */
+    public long getRequeuedCount()
+    {
+        return m_requeuedCount.get();
+    }
+
+    /**
+     * Close the channel of a consumer of a queue as a broker-side failure
+     * would. Its unsettled messages go back to the queue, to be redelivered
+     * to the remaining consumers.
+     * @param queue  queue name
+     * @return false if the queue has no consumer
+     */
+    public boolean failConsumer(final String queue) throws InterruptedException
+    {
+        for (LocalChannel channel : m_openChannels) {
+            if (channel.isConsuming(queue)) {
+                channel.close(false);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return new connection
+     */
+    public Connection newConnection()
+    {
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                new LocalConnection());
+    }
+
+    private BlockingDeque<Message> getQueue(final String queue)
+    {
+        BlockingDeque<Message> messages = m_queues.get(queue);
+        if (messages == null) {
+            BlockingDeque<Message> newMessages = new LinkedBlockingDeque<Message>();
+            messages = m_queues.putIfAbsent(queue, newMessages);
+            if (messages == null) {
+                messages = newMessages;
+            }
+        }
+        return messages;
+    }
+
+    private static Object invokeObjectMethod(final Object proxy, final Method method, final Object[] args,
+                                             final String name)
+    {
+        if (method.getName().equals("equals")) {
+            return proxy == args[0];
+        }
+        if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+        return name;
+    }
+
+    /**
+     * Connection proxy handler.
+     */
+    private class LocalConnection implements InvocationHandler
+    {
+        private final List<Channel> m_channels = new ArrayList<Channel>();
+        private volatile boolean m_open = true;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObjectMethod(proxy, method, args, "LocalBroker connection");
+            }
+            switch (method.getName()) {
+            case "createChannel":
+                return createChannel((Connection) proxy);
+            case "isOpen":
+                return m_open;
+            case "close":
+            case "abort":
+                close();
+                return null;
+            case "addShutdownListener":
+            case "removeShutdownListener":
+                return null;
+            default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }
+
+        private synchronized Channel createChannel(final Connection connection) throws IOException
+        {
+            if (!m_open) {
+                throw new IOException("Connection is closed.");
+            }
+            LocalChannel handler = new LocalChannel(connection, m_channelCount.incrementAndGet());
+            Channel channel = (Channel) Proxy.newProxyInstance(
+                    Channel.class.getClassLoader(), new Class<?>[] {Channel.class}, handler);
+            handler.m_proxy = channel;
+            m_channels.add(channel);
+            m_openChannels.add(handler);
+            return channel;
+        }
+
+        private synchronized void close() throws IOException
+        {
+            m_open = false;
+            for (Channel channel : m_channels) {
+                if (channel.isOpen()) {
+                    channel.close();
+                }
+            }
+            m_channels.clear();
+        }
+    }
+
+    /**
+     * Channel proxy handler. Each consumer has a dispatcher thread that
+     * delivers messages while the prefetch window allows.
+     */
+    private class LocalChannel implements InvocationHandler
+    {
+        private final Connection m_connection;
+        private final int m_number;
+        private final Map<String, Dispatcher> m_dispatchers = new ConcurrentHashMap<String, Dispatcher>();
+        private final ConcurrentNavigableMap<Long, Message> m_unacked = new ConcurrentSkipListMap<Long, Message>();
+        private final Map<Long, String> m_unackedQueues = new ConcurrentHashMap<Long, String>();
+        private final AtomicLong m_deliveryTag = new AtomicLong(0);
+        /// Guards the prefetch window.
+        private final Object m_windowLock = new Object();
+        private int m_consumerPrefetch = 0;
+        private int m_channelPrefetch = 0;
+        private volatile boolean m_open = true;
+        /// The proxy for this handler, the source of shutdown signals.
+        private Channel m_proxy = null;
+
+        LocalChannel(final Connection connection, int number)
+        {
+            m_connection = connection;
+            m_number = number;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObjectMethod(proxy, method, args, "LocalBroker channel " + m_number);
+            }
+            switch (method.getName()) {
+            case "getChannelNumber":
+                return m_number;
+            case "getConnection":
+                return m_connection;
+            case "isOpen":
+                return m_open;
+            case "close":
+            case "abort":
+                close(true);
+                return null;
+            case "queueDeclare":
+                if (args != null && args.length > 0) {
+                    getQueue((String) args[0]);
+                }
+                return null;
+            case "basicPublish":
+                checkOpen();
+                // basicPublish(exchange, routingKey, [mandatory, [immediate,]] properties, body)
+                publish(((String) args[0]).isEmpty() ? (String) args[1] : (String) args[0],
+                        (AMQP.BasicProperties) args[args.length - 2], (byte[]) args[args.length - 1]);
+                return null;
+            case "waitForConfirms":
+                return true;
+            case "exchangeDeclare":
+            case "exchangeDeclarePassive":
+            case "confirmSelect":
+            case "queueBind":
+            case "addShutdownListener":
+            case "removeShutdownListener":
+                return null;
+            case "basicQos":
+                // basicQos([prefetchSize,] prefetchCount[, global])
+                if (args.length == 3) {
+                    setPrefetch((Integer) args[1], (Boolean) args[2]);
+                }
+                else {
+                    setPrefetch((Integer) args[0], args.length == 2 && (Boolean) args[1]);
+                }
+                return null;
+            case "basicConsume":
+                checkOpen();
+                return consume((String) args[0],
+                               args[1] instanceof Boolean && (Boolean) args[1],
+                               (Consumer) args[args.length - 1]);
+            case "basicCancel":
+                cancel((String) args[0]);
+                return null;
+            case "basicAck":
+                checkAlive();
+                settle((Long) args[0], (Boolean) args[1], true, false);
+                return null;
+            case "basicNack":
+                checkAlive();
+                settle((Long) args[0], (Boolean) args[1], false, (Boolean) args[2]);
+                return null;
+            case "basicReject":
+                checkAlive();
+                settle((Long) args[0], false, false, (Boolean) args[1]);
+                return null;
+            default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }
+
+        private void checkOpen() throws IOException
+        {
+            if (!m_open) {
+                throw new IOException("Channel is closed.");
+            }
+        }
+
+        /**
+         * Settling on a closed channel fails like the client library's.
+         */
+        private void checkAlive()
+        {
+            if (!m_open) {
+                throw new AlreadyClosedException(
+                        new ShutdownSignalException(false, false, null, m_proxy));
+            }
+        }
+
+        private boolean isConsuming(final String queue)
+        {
+            for (Dispatcher dispatcher : m_dispatchers.values()) {
+                if (dispatcher.queue.equals(queue)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void setPrefetch(int prefetch, boolean global)
+        {
+            synchronized (m_windowLock) {
+                if (global) {
+                    m_channelPrefetch = prefetch;
+                }
+                else {
+                    m_consumerPrefetch = prefetch;
+                }
+                m_windowLock.notifyAll();
+            }
+        }
+
+        private String consume(final String queue, boolean autoAck, final Consumer consumer)
+        {
+            final String consumerTag = "amq.ctag-" + m_consumerCount.incrementAndGet();
+            Dispatcher dispatcher = new Dispatcher(queue, consumerTag, autoAck, consumer);
+            m_dispatchers.put(consumerTag, dispatcher);
+            consumer.handleConsumeOk(consumerTag);
+            dispatcher.start();
+            return consumerTag;
+        }
+
+        private void cancel(final String consumerTag) throws InterruptedException
+        {
+            Dispatcher dispatcher = m_dispatchers.remove(consumerTag);
+            if (dispatcher != null) {
+                dispatcher.stop();
+                dispatcher.consumer.handleCancelOk(consumerTag);
+            }
+        }
+
+        /**
+         * @param initiatedByApplication  false for a broker-side failure
+         */
+        private void close(boolean initiatedByApplication) throws InterruptedException
+        {
+            if (!m_open) {
+                return;
+            }
+            m_open = false;
+            m_openChannels.remove(this);
+            ShutdownSignalException signal =
+                    new ShutdownSignalException(false, initiatedByApplication, null, m_proxy);
+            for (String consumerTag : m_dispatchers.keySet()) {
+                Dispatcher dispatcher = m_dispatchers.remove(consumerTag);
+                dispatcher.stop();
+                dispatcher.consumer.handleShutdownSignal(consumerTag, signal);
+            }
+            // Unsettled messages go back to their queues.
+            for (Long deliveryTag : m_unacked.keySet()) {
+                settle(deliveryTag, false, false, true);
+            }
+        }
+
+        /**
+         * Settle one delivery or all up to the tag.
+         */
+        private void settle(long deliveryTag, boolean multiple, boolean ack, boolean requeue)
+        {
+            Map<Long, Message> settled = multiple
+                    ? m_unacked.headMap(deliveryTag, true)
+                    : m_unacked.subMap(deliveryTag, true, deliveryTag, true);
+            for (Long tag : new ArrayList<Long>(settled.keySet())) {
+                Message message = m_unacked.remove(tag);
+                String queue = m_unackedQueues.remove(tag);
+                if (message == null) {
+                    continue;
+                }
+                m_unackedCount.decrementAndGet();
+                if (ack) {
+                    m_ackedCount.incrementAndGet();
+                }
+                else if (requeue) {
+                    message.redelivered = true;
+                    m_requeuedCount.incrementAndGet();
+                    getQueue(queue).addFirst(message);
+                }
+                else {
+                    m_rejectedCount.incrementAndGet();
+                }
+            }
+            synchronized (m_windowLock) {
+                m_windowLock.notifyAll();
+            }
+        }
+
+        private boolean isWindowFull()
+        {
+            int limit = m_consumerPrefetch;
+            if (m_channelPrefetch > 0 && (limit == 0 || m_channelPrefetch < limit)) {
+                limit = m_channelPrefetch;
+            }
+            return limit > 0 && m_unacked.size() >= limit;
+        }
+
+        /**
+         * Delivers one consumer's messages on its own thread.
+         */
+        private class Dispatcher implements Runnable
+        {
+            final String queue;
+            final String consumerTag;
+            final boolean autoAck;
+            final Consumer consumer;
+            private final Thread m_thread;
+            private volatile boolean m_cancelled = false;
+
+            Dispatcher(final String queue, final String consumerTag, boolean autoAck, final Consumer consumer)
+            {
+                this.queue = queue;
+                this.consumerTag = consumerTag;
+                this.autoAck = autoAck;
+                this.consumer = consumer;
+                m_thread = new Thread(this, "LocalBroker dispatcher " + consumerTag);
+                m_thread.setDaemon(true);
+            }
+
+            void start()
+            {
+                m_thread.start();
+            }
+
+            void stop() throws InterruptedException
+            {
+                m_cancelled = true;
+                synchronized (m_windowLock) {
+                    m_windowLock.notifyAll();
+                }
+                if (Thread.currentThread() != m_thread) {
+                    m_thread.join();
+                }
+            }
+
+            @Override
+            public void run()
+            {
+                final BlockingDeque<Message> messages = getQueue(queue);
+                try {
+                    while (!m_cancelled) {
+                        synchronized (m_windowLock) {
+                            while (!m_cancelled && isWindowFull()) {
+                                m_windowLock.wait();
+                            }
+                        }
+                        Message message = messages.poll(DISPATCH_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                        if (message == null) {
+                            continue;
+                        }
+                        if (m_cancelled) {
+                            messages.addFirst(message);
+                            break;
+                        }
+                        final long deliveryTag = m_deliveryTag.incrementAndGet();
+                        if (!autoAck) {
+                            m_unackedQueues.put(deliveryTag, queue);
+                            m_unacked.put(deliveryTag, message);
+                            m_unackedCount.incrementAndGet();
+                        }
+                        else {
+                            m_ackedCount.incrementAndGet();
+                        }
+                        consumer.handleDelivery(consumerTag,
+                                                new Envelope(deliveryTag, message.redelivered, "", queue),
+                                                message.properties, message.body);
+                    }
+                }
+                catch (InterruptedException e) {
+                    // Stop dispatching.
+                }
+                catch (IOException e) {
+                    RMQBulkLoader.LOG.error("LocalBroker consumer failed.", e);
+                }
+            }
+        }
+    }
+}
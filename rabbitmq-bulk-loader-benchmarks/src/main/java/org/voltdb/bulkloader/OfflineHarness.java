@@ -0,0 +1,533 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.voltdb.bulkloader.CLIDriver.CLISpec;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientStatusListenerExt;
+import org.voltdb.client.VoltBulkLoader.BulkLoaderSuccessCallback;
+import org.voltdb.utils.BulkLoaderErrorHandler;
+import org.voltdb.utils.CSVDataLoader;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Connection;
+
+/**
+ * Runs the bulk loader end to end in one process with no network: messages
+ * are published to a LocalBroker, consumed by RMQBulkLoader.bulkLoad() and
+ * loaded into a SimulatedVoltDB. Reports sustained rows per second, row
+ * latency from publishing to settlement, and GC and heap behavior over a
+ * measurement period that follows a warm-up.
+ *
+ * The publisher runs in the same JVM, so its allocation is included in the
+ * GC figures. Each row's first column carries its publish time.
+ */
+public class OfflineHarness extends RMQBulkLoader
+{
+    private static final String HELP_SYNTAX = "(below)";
+    private static final String HELP_HEADER = ".\n"
+          + "rabbitmq-harness [options] --queue queue-name table-name\n"
+          + "rabbitmq-harness [options] --map queue=target ...\n"
+          + ".";
+    private static final String HELP_FOOTER = ".\n"
+          + "Any bulk loader option may be used. Rows have --columns columns that cycle\n"
+          + "through BIGINT, FLOAT, DECIMAL, VARCHAR and TIMESTAMP values. Use\n"
+          + "--maxerrors 0 or --dlx with --failrate to keep loading despite the failures. Dead\n"
+          + "letters go to the local queue named like the --dlx exchange. --outage takes\n"
+          + "VoltDB down for a while after the warm-up, e.g. to exercise --spill. --failover\n"
+          + "fails a consumer channel of each queue, whose unacknowledged messages are\n"
+          + "redelivered to the others, e.g. to exercise --dedup with --consumers 2 or more.\n"
+          + ".";
+    private static final int HELP_WIDTH = 100;
+
+    /// Messages a queue may hold when publishing as fast as possible.
+    private static final long DEFAULT_BACKLOG = 1000;
+    /// Longest time to wait for published rows to load after the run.
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+    /// Row templates, without the publish time column, cycled through by messages.
+    private static final int TEMPLATE_COUNT = 64;
+
+    private static class HarnessOptions
+    {
+        public long duration = 30;
+        public long warmup = 5;
+        public long rows = 100;
+        public long columns = 8;
+        public long quoting = 20;
+        /// Messages per second or 0 to keep each queue's backlog full.
+        public long rate = 0;
+        public long backlog = DEFAULT_BACKLOG;
+        public long latency = 1000;
+        public long jitter = 0;
+        public double failrate = 0;
+        public long outstanding = 64;
+        public long servers = 4;
+        /// Seconds VoltDB is unavailable from the start of the measurement.
+        public long outage = 0;
+        /// Seconds into the measurement to fail a consumer channel per queue or 0 for never.
+        public long failover = 0;
+    }
+
+    private static class HarnessCLISpec implements CLISpec
+    {
+        /// Public option data
+        public HarnessOptions opts = new HarnessOptions();
+
+        @Override
+        @SuppressWarnings("static-access")
+        public void preParse(Options options)
+        {
+            addNumberOption(options, "duration", "seconds",
+                            String.format("measurement period (default: %d)", this.opts.duration));
+            addNumberOption(options, "warmup", "seconds",
+                            String.format("warm-up period before measuring (default: %d)", this.opts.warmup));
+            addNumberOption(options, "rows", "rows",
+                            String.format("CSV lines per message (default: %d)", this.opts.rows));
+            addNumberOption(options, "columns", "columns",
+                            String.format("columns per row (default: %d)", this.opts.columns));
+            addNumberOption(options, "quoting", "percent",
+                            String.format("percentage of VARCHAR values quoted (default: %d)", this.opts.quoting));
+            addNumberOption(options, "rate", "messages",
+                            "messages per second (default: as fast as the backlog allows)");
+            addNumberOption(options, "backlog", "messages",
+                            String.format("ready messages per queue without --rate (default: %d)",
+                                          this.opts.backlog));
+            addNumberOption(options, "latency", "microseconds",
+                            String.format("simulated batch round trip (default: %d)", this.opts.latency));
+            addNumberOption(options, "jitter", "microseconds",
+                            "maximum random addition to the round trip (default: 0)");
+            addNumberOption(options, "outstanding", "batches",
+                            String.format("batches in flight before backpressure (default: %d)",
+                                          this.opts.outstanding));
+            addNumberOption(options, "simthreads", "threads",
+                            String.format("threads completing simulated batches (default: %d)",
+                                          this.opts.servers));
+            addNumberOption(options, "outage", "seconds",
+                            "simulate losing VoltDB for this long after the warm-up (default: 0)");
+            addNumberOption(options, "failover", "seconds",
+                            "fail a consumer channel of each queue this long after the warm-up (default: never)");
+            options.addOption(OptionBuilder
+                                .withLongOpt("failrate")
+                                .withArgName("fraction")
+                                .withType(String.class)
+                                .hasArg()
+                                .withDescription("fraction of rows that fail, e.g. 0.001 (default: 0)")
+                                .create());
+        }
+
+        @SuppressWarnings("static-access")
+        private static void addNumberOption(Options options, String name, String argName, String description)
+        {
+            options.addOption(OptionBuilder
+                                .withLongOpt(name)
+                                .withArgName(argName)
+                                .withType(Number.class)
+                                .hasArg()
+                                .withDescription(description)
+                                .create());
+        }
+
+        @Override
+        public void postParse(CLIDriver driver)
+        {
+            this.opts.duration = driver.getNumber("duration", this.opts.duration);
+            this.opts.warmup = driver.getNumber("warmup", this.opts.warmup);
+            this.opts.rows = driver.getNumber("rows", this.opts.rows);
+            this.opts.columns = driver.getNumber("columns", this.opts.columns);
+            this.opts.quoting = driver.getNumber("quoting", this.opts.quoting);
+            this.opts.rate = driver.getNumber("rate", this.opts.rate);
+            this.opts.backlog = driver.getNumber("backlog", this.opts.backlog);
+            this.opts.latency = driver.getNumber("latency", this.opts.latency);
+            this.opts.jitter = driver.getNumber("jitter", this.opts.jitter);
+            this.opts.outstanding = driver.getNumber("outstanding", this.opts.outstanding);
+            this.opts.servers = driver.getNumber("simthreads", this.opts.servers);
+            this.opts.outage = driver.getNumber("outage", this.opts.outage);
+            this.opts.failover = driver.getNumber("failover", this.opts.failover);
+            if (this.opts.duration <= 0) {
+                driver.addError("Duration must be > 0.");
+            }
+            if (this.opts.warmup < 0) {
+                driver.addError("Warm-up must be >= 0.");
+            }
+            if (this.opts.rows <= 0 || this.opts.columns <= 0) {
+                driver.addError("Rows per message and columns must be > 0.");
+            }
+            if (this.opts.quoting < 0 || this.opts.quoting > 100) {
+                driver.addError("Quoting must be a percentage: %d", this.opts.quoting);
+            }
+            if (this.opts.rate < 0 || this.opts.backlog <= 0) {
+                driver.addError("Rate must be >= 0 and backlog > 0.");
+            }
+            if (this.opts.latency < 0 || this.opts.jitter < 0) {
+                driver.addError("Latency and jitter must be >= 0.");
+            }
+            if (this.opts.outstanding <= 0 || this.opts.servers <= 0) {
+                driver.addError("Outstanding batches and simulation threads must be > 0.");
+            }
+            if (this.opts.outage < 0) {
+                driver.addError("Outage must be >= 0.");
+            }
+            if (this.opts.failover < 0) {
+                driver.addError("Failover must be >= 0.");
+            }
+            String failrate = driver.getString("failrate");
+            if (failrate != null) {
+                try {
+                    this.opts.failrate = Double.parseDouble(failrate);
+                }
+                catch (NumberFormatException e) {
+                    this.opts.failrate = -1;
+                }
+                if (this.opts.failrate < 0 || this.opts.failrate > 1) {
+                    driver.addError("Failure rate must be a fraction from 0 to 1: %s", failrate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Heap and GC readings.
+     */
+    private static class MemorySnapshot
+    {
+        final long gcCount;
+        final long gcMillis;
+
+        MemorySnapshot()
+        {
+            long count = 0;
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(gc.getCollectionCount(), 0);
+                millis += Math.max(gc.getCollectionTime(), 0);
+            }
+            gcCount = count;
+            gcMillis = millis;
+        }
+
+        static long getHeapUsed()
+        {
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+    }
+
+    private final HarnessOptions m_opts;
+    private final LocalBroker m_broker = new LocalBroker();
+    private final SimulatedVoltDB m_voltdb;
+    private final BenchmarkData m_data;
+    private final List<CSVDataLoader> m_simulatedLoaders = new CopyOnWriteArrayList<CSVDataLoader>();
+    /// Message bodies without the publish times, one per row.
+    private final byte[][] m_templates;
+
+    private OfflineHarness(final HarnessOptions opts)
+    {
+        m_opts = opts;
+        m_voltdb = new SimulatedVoltDB(opts.latency, opts.jitter, opts.failrate,
+                                       (int) opts.outstanding, (int) opts.servers);
+        m_data = new BenchmarkData((int) opts.columns, opts.quoting / 100.0);
+        m_templates = new byte[TEMPLATE_COUNT][];
+        for (int i = 0; i < m_templates.length; ++i) {
+            // Strip the first column, which is replaced by the publish time.
+            String row = new String(m_data.body(1), StandardCharsets.UTF_8);
+            int separator = row.indexOf(',');
+            m_templates[i] = (separator >= 0 ? row.substring(separator) : "\n").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Override
+    protected Client connectVoltDB(final VoltDBOptions voltOpts, final ClientStatusListenerExt statusListener)
+    {
+        return m_voltdb.createClient(statusListener);
+    }
+
+    @Override
+    protected Connection connectRabbitMQ(final RMQOptions rmqOpts)
+    {
+        return m_broker.newConnection();
+    }
+
+    /**
+     * The simulated loaders batch all rows together.
+     */
+    @Override
+    protected int getPartitionCount(final String table)
+    {
+        return 1;
+    }
+
+    @Override
+    protected CSVDataLoader createLoader(
+            final BulkLoaderOptions loaderOpts,
+            final BulkLoaderOptions.Mapping mapping,
+            final BulkLoaderErrorHandler errorHandler,
+            final ExecutorService callbackExecutor,
+            final BulkLoaderSuccessCallback successCallback)
+    {
+        // Mirror the real loaders: procedures are called row by row with
+        // call-backs on the executor, and tables are loaded in batches.
+        CSVDataLoader loader;
+        if (mapping.targetType == BulkLoaderOptions.TargetType.PROCEDURE) {
+            loader = m_voltdb.createLoader(m_data.getColumnTypes(), 1,
+                                           errorHandler, callbackExecutor, successCallback);
+        }
+        else {
+            int batchSize = loaderOpts.autobatch ? loaderOpts.batchmax.intValue() : loaderOpts.batch.intValue();
+            loader = m_voltdb.createLoader(m_data.getColumnTypes(), batchSize,
+                                           errorHandler, null, successCallback);
+        }
+        m_simulatedLoaders.add(loader);
+        return loader;
+    }
+
+    private long getSettledRows()
+    {
+        long count = 0;
+        for (CSVDataLoader loader : m_simulatedLoaders) {
+            count += loader.getProcessedRows() + loader.getFailedRows();
+        }
+        return count;
+    }
+
+    private long getFailedRows()
+    {
+        long count = 0;
+        for (CSVDataLoader loader : m_simulatedLoaders) {
+            count += loader.getFailedRows();
+        }
+        return count;
+    }
+
+    private byte[] createBody(long publishNanos, long sequence) throws IOException
+    {
+        final byte[] publishTime = Long.toString(publishNanos).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (long row = 0; row < m_opts.rows; ++row) {
+            body.write(publishTime);
+            body.write(m_templates[(int) ((sequence + row) % m_templates.length)]);
+        }
+        return body.toByteArray();
+    }
+
+    private void run(final BulkLoaderOptions loaderOpts, final RMQOptions rmqOpts) throws Exception
+    {
+        final Set<String> queueSet = new LinkedHashSet<String>();
+        if (loaderOpts.targetType != null) {
+            queueSet.add(rmqOpts.queue);
+        }
+        for (BulkLoaderOptions.Mapping mapping : loaderOpts.mappings) {
+            queueSet.add(mapping.queue);
+        }
+        final List<String> queues = new ArrayList<String>(queueSet);
+
+        final Exception[] loadFailure = new Exception[1];
+        Thread loadThread = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    bulkLoad(loaderOpts, rmqOpts, new VoltDBOptions());
+                }
+                catch (Exception e) {
+                    loadFailure[0] = e;
+                }
+            }
+        }, "bulkLoad");
+        loadThread.start();
+
+        final long start = System.nanoTime();
+        final long measureStart = start + TimeUnit.SECONDS.toNanos(m_opts.warmup);
+        final long end = measureStart + TimeUnit.SECONDS.toNanos(m_opts.duration);
+        final long outageEnd = measureStart + TimeUnit.SECONDS.toNanos(m_opts.outage);
+        final long failover = measureStart + TimeUnit.SECONDS.toNanos(m_opts.failover);
+        boolean measuring = false;
+        boolean outage = false;
+        boolean failed = m_opts.failover == 0;
+        long baselineRows = 0;
+        MemorySnapshot baseline = null;
+        long maxHeapUsed = 0;
+        long lastHeapSample = 0;
+        long published = 0;
+        long now;
+        while ((now = System.nanoTime()) < end && loadThread.isAlive()) {
+            if (!measuring && now >= measureStart) {
+                measuring = true;
+                baselineRows = getSettledRows();
+                m_voltdb.getRowLatency().reset();
+                baseline = new MemorySnapshot();
+                if (m_opts.outage > 0) {
+                    outage = true;
+                    m_voltdb.setAvailable(false);
+                }
+            }
+            if (outage && now >= outageEnd) {
+                outage = false;
+                m_voltdb.setAvailable(true);
+            }
+            if (!failed && now >= failover) {
+                failed = true;
+                for (String failedQueue : queues) {
+                    m_broker.failConsumer(failedQueue);
+                }
+            }
+            if (measuring && now - lastHeapSample >= TimeUnit.MILLISECONDS.toNanos(10)) {
+                lastHeapSample = now;
+                maxHeapUsed = Math.max(maxHeapUsed, MemorySnapshot.getHeapUsed());
+            }
+            final String queue = queues.get((int) (published % queues.size()));
+            if (m_opts.rate > 0) {
+                final long due = start + published * TimeUnit.SECONDS.toNanos(1) / m_opts.rate;
+                if (now < due) {
+                    LockSupport.parkNanos(Math.min(due - now, TimeUnit.MILLISECONDS.toNanos(1)));
+                    continue;
+                }
+            }
+            else if (m_broker.getQueueDepth(queue) >= m_opts.backlog) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+                continue;
+            }
+            // Message-ids identify messages for --dedup.
+            final AMQP.BasicProperties properties = loaderOpts.dedup
+                    ? new AMQP.BasicProperties.Builder().messageId(Long.toString(published)).build()
+                    : null;
+            m_broker.publish(queue, properties, createBody(System.nanoTime(), published));
+            published++;
+        }
+        final long measuredNanos = System.nanoTime() - measureStart;
+        final long measuredRows = getSettledRows() - baselineRows;
+        final Histogram latency = m_voltdb.getRowLatency().getIntervalHistogram();
+        final MemorySnapshot after = new MemorySnapshot();
+        final long heapUsed = MemorySnapshot.getHeapUsed();
+        if (outage) {
+            m_voltdb.setAvailable(true);
+        }
+
+        // Let the published rows load, then stop consuming and close.
+        final long expectedRows = published * m_opts.rows;
+        final long drainStart = System.nanoTime();
+        while (loadThread.isAlive()
+                && (getSettledRows() < expectedRows || m_broker.getUnackedCount() > 0)
+                && System.nanoTime() - drainStart < DRAIN_TIMEOUT_NANOS) {
+            LoaderMetrics metrics = getMetrics();
+            if (metrics != null && metrics.getRowsParsed() >= expectedRows) {
+                // Rows in partial batches wait for the flush interval.
+                for (CSVDataLoader loader : m_simulatedLoaders) {
+                    loader.flush();
+                }
+            }
+            Thread.sleep(10);
+        }
+        LoaderMetrics metrics = getMetrics();
+        final String batchSizes = metrics != null ? metrics.getBatchSizes().toString() : "n/a";
+        final long deadLetters = metrics != null ? metrics.getDeadLetters() : 0;
+        final String spill = metrics != null
+                ? String.format("%d records spilled, %d bytes left",
+                                metrics.getSpilledRecords(), metrics.getSpillBacklogBytes())
+                : "n/a";
+        final String dedup = metrics != null
+                ? String.format("%d requeued, %d duplicates skipped, %d rows loaded more than once",
+                                m_broker.getRequeuedCount(), metrics.getDuplicatesSkipped(),
+                                Math.max(getSettledRows() - expectedRows, 0))
+                : "n/a";
+        final String stages = metrics != null
+                ? String.format("p99 %.3f ms consume to batch, p99 %.3f ms batch to commit (whole run)",
+                                metrics.getConsumeToBatch99Millis(), metrics.getBatchToCommit99Millis())
+                : "n/a";
+        closeConsumer();
+        loadThread.join();
+        m_voltdb.shutdown();
+
+        if (loadFailure[0] != null) {
+            throw loadFailure[0];
+        }
+        if (baseline == null) {
+            System.out.println("The loader stopped before the measurement started.");
+            return;
+        }
+        final double seconds = measuredNanos / 1e9;
+        System.out.printf("Measured %.1f s after a %d s warm-up.\n", seconds, m_opts.warmup);
+        System.out.printf("Rows:      %d settled (%.0f rows/s), %d failed in total\n",
+                          measuredRows, measuredRows / seconds, getFailedRows());
+        System.out.printf("Messages:  %d published, %d acknowledged, %d rejected, %d rows unsettled, "
+                          + "%d dead letters\n",
+                          m_broker.getPublishedCount(), m_broker.getAckedCount(),
+                          m_broker.getRejectedCount(), Math.max(expectedRows - getSettledRows(), 0),
+                          deadLetters);
+        System.out.printf("Latency:   p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms (publish to settlement)\n",
+                          latency.getValueAtPercentile(50) / 1000.0,
+                          latency.getValueAtPercentile(99) / 1000.0,
+                          latency.getValueAtPercentile(99.9) / 1000.0,
+                          latency.getMaxValue() / 1000.0);
+        System.out.printf("Stages:    %s\n", stages);
+        System.out.printf("Spill:     %s\n", spill);
+        System.out.printf("Dedup:     %s\n", dedup);
+        System.out.printf("GC:        %d collections, %d ms (%.1f%% of the time)\n",
+                          after.gcCount - baseline.gcCount, after.gcMillis - baseline.gcMillis,
+                          (after.gcMillis - baseline.gcMillis) / (seconds * 10));
+        System.out.printf("Heap:      %d MB used at the end, %d MB sampled peak, %d MB maximum\n",
+                          heapUsed >> 20, maxHeapUsed >> 20,
+                          ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax() >> 20);
+        System.out.printf("Batches:   %s\n", batchSizes);
+    }
+
+    public static void main(String[] args)
+    {
+        // The bulk loader's options apply, apart from the VoltDB connection.
+        final BulkLoaderCLISpec loaderOpts = new BulkLoaderCLISpec();
+        final RMQCLISpec rmqOpts = RMQCLISpec.createCLISpecForConsumer(false);
+        final HarnessCLISpec harnessOpts = new HarnessCLISpec();
+        final CLISpec targetOpts = RMQBulkLoader.createCLISpecForTarget(loaderOpts, rmqOpts);
+        final CLIDriver.HelpData helpData = new CLIDriver.HelpData();
+        helpData.syntax = HELP_SYNTAX;
+        helpData.header = HELP_HEADER;
+        helpData.footer = HELP_FOOTER;
+        helpData.width = HELP_WIDTH;
+        CLIDriver.parse(helpData, args, loaderOpts, rmqOpts, harnessOpts, targetOpts);
+
+        try {
+            new OfflineHarness(harnessOpts.opts).run(loaderOpts.opts, rmqOpts.opts);
+        }
+        catch (Exception e) {
+            LOG.error("Offline harness failed.", e);
+            System.exit(255);
+        }
+    }
+}
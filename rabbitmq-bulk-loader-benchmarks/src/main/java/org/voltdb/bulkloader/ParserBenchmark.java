@@ -0,0 +1,152 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parses whole message bodies with CSVByteParser, either in place from the
+ * body array or chunk by chunk from a plain or decompressing stream. One
+ * operation is one message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark
+{
+    private static final int BODY_COUNT = 16;
+
+    @Param({"4", "16", "64"})
+    public int columns;
+
+    @Param({"0", "0.2", "1"})
+    public double quoting;
+
+    @Param({"1", "100", "10000"})
+    public int rows;
+
+    /// array, stream or a compression name
+    @Param({"array", "stream", "gzip", "lz4", "zstd"})
+    public String input;
+
+    private byte[][] m_bodies;
+    private Compression m_compression;
+    private final CSVByteParser m_parser = new CSVByteParser();
+    /// Stream of the previous message, closed to release native decompressors.
+    private InputStream m_input = null;
+    private int m_next = 0;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        m_bodies = new BenchmarkData(columns, quoting).bodies(rows, BODY_COUNT);
+        m_compression = Compression.fromEncoding(input);
+        if (m_compression != null) {
+            for (int i = 0; i < m_bodies.length; ++i) {
+                m_bodies[i] = BenchmarkData.compress(m_bodies[i], m_compression);
+            }
+        }
+    }
+
+    /**
+     * Split records into fields without creating strings.
+     */
+    @Benchmark
+    public void records(final ThroughputCounters counters, final Blackhole blackhole)
+            throws IOException, ParseException
+    {
+        reset(counters);
+        while (m_parser.nextRecord()) {
+            blackhole.consume(m_parser.getFieldCount());
+            counters.rows++;
+        }
+    }
+
+    /**
+     * Split records and decode every field, as unconverted rows are.
+     */
+    @Benchmark
+    public void strings(final ThroughputCounters counters, final Blackhole blackhole)
+            throws IOException, ParseException
+    {
+        reset(counters);
+        while (m_parser.nextRecord()) {
+            final int count = m_parser.getFieldCount();
+            for (int i = 0; i < count; ++i) {
+                blackhole.consume(m_parser.getString(i));
+            }
+            counters.rows++;
+        }
+    }
+
+    private void reset(final ThroughputCounters counters) throws IOException
+    {
+        final byte[] body = m_bodies[m_next];
+        m_next = (m_next + 1) % m_bodies.length;
+        counters.bytes += body.length;
+        if (m_input != null) {
+            m_input.close();
+            m_input = null;
+        }
+        if (input.equals("array")) {
+            m_parser.reset(body, 0, body.length);
+            return;
+        }
+        m_input = new ByteArrayInputStream(body);
+        if (m_compression != null) {
+            m_input = m_compression.decompress(m_input);
+        }
+        m_parser.reset(m_input);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        if (m_input != null) {
+            m_input.close();
+        }
+    }
+}
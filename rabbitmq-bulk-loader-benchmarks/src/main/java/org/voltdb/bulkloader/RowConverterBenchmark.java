@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parses message bodies and converts each row with RowConverter, either to
+ * the column types or to strings as for a loader without column types.
+ * Compare with ParserBenchmark.records for the cost of conversion alone.
+ * One operation is one message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowConverterBenchmark
+{
+    private static final int BODY_COUNT = 16;
+
+    @Param({"4", "16", "64"})
+    public int columns;
+
+    @Param({"0", "0.2", "1"})
+    public double quoting;
+
+    @Param({"100"})
+    public int rows;
+
+    /// typed or strings
+    @Param({"typed", "strings"})
+    public String conversion;
+
+    private byte[][] m_bodies;
+    private RowConverter m_converter;
+    private final CSVByteParser m_parser = new CSVByteParser();
+    private int m_next = 0;
+
+    @Setup
+    public void setup()
+    {
+        BenchmarkData data = new BenchmarkData(columns, quoting);
+        m_bodies = data.bodies(rows, BODY_COUNT);
+        m_converter = new RowConverter(conversion.equals("typed") ? data.getColumnTypes() : null);
+    }
+
+    @Benchmark
+    public void convert(final ThroughputCounters counters, final Blackhole blackhole)
+            throws IOException, ParseException
+    {
+        final byte[] body = m_bodies[m_next];
+        m_next = (m_next + 1) % m_bodies.length;
+        counters.bytes += body.length;
+        m_parser.reset(body, 0, body.length);
+        while (m_parser.nextRecord()) {
+            blackhole.consume(m_converter.convert(m_parser));
+            counters.rows++;
+        }
+    }
+}
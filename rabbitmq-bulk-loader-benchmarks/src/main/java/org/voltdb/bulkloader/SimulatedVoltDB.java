@@ -0,0 +1,486 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Recorder;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ClientStatusListenerExt;
+import org.voltdb.client.ClientStatusListenerExt.AutoConnectionStatus;
+import org.voltdb.client.ClientStatusListenerExt.DisconnectCause;
+import org.voltdb.client.VoltBulkLoader.BulkLoaderSuccessCallback;
+import org.voltdb.utils.BulkLoaderErrorHandler;
+import org.voltdb.utils.CSVDataLoader;
+import org.voltdb.utils.RowWithMetaData;
+
+/**
+ * Stand-in for a VoltDB cluster behind the bulk loader. Loaders batch rows
+ * like VoltBulkLoader and complete each batch after a configurable round
+ * trip plus random jitter, failing a configurable fraction of rows. Too many
+ * batches in flight block inserts and signal backpressure to the client
+ * status listener, as the real client does. During a simulated outage the
+ * listener is told that all connections were lost and batches fail with
+ * CONNECTION_LOST; such rows are not counted as failed.
+ *
+ * When a row's first value is a Long it is taken as the System.nanoTime()
+ * at which the row was published, and the time from then until the row
+ * settles is recorded.
+ */
+class SimulatedVoltDB
+{
+    private static final long NO_PUBLISH_TIME = Long.MIN_VALUE;
+    private static final String HOST = "localhost";
+    private static final int PORT = 21212;
+
+    private final long m_latencyNanos;
+    private final long m_jitterNanos;
+    private final double m_failureRate;
+    private final int m_maxOutstanding;
+    private final ScheduledExecutorService m_server;
+    /// Runs periodic flushes, which may block on backpressure, apart from the server threads.
+    private final ScheduledExecutorService m_flusher = Executors.newSingleThreadScheduledExecutor();
+    private final Recorder m_rowLatency = new Recorder(DeliveryTracker.MAX_LATENCY_MICROS, 3);
+    private volatile ClientStatusListenerExt m_statusListener = null;
+    /// Batches in flight, guarded by this.
+    private int m_outstanding = 0;
+    private boolean m_backpressure = false;
+    private volatile boolean m_available = true;
+
+    /**
+     * @param latencyMicros  batch round trip
+     * @param jitterMicros  maximum random addition to the round trip
+     * @param failureRate  fraction of rows that fail
+     * @param maxOutstanding  batches in flight before backpressure
+     * @param threads  threads completing batches
+     */
+    public SimulatedVoltDB(long latencyMicros, long jitterMicros, double failureRate,
+                           int maxOutstanding, int threads)
+    {
+        m_latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        m_jitterNanos = TimeUnit.MICROSECONDS.toNanos(jitterMicros);
+        m_failureRate = failureRate;
+        m_maxOutstanding = maxOutstanding;
+        m_server = Executors.newScheduledThreadPool(threads);
+    }
+
+    /**
+     * @param statusListener  receives backpressure notifications
+     * @return client that does nothing but close
+     */
+    public Client createClient(final ClientStatusListenerExt statusListener)
+    {
+        m_statusListener = statusListener;
+        return (Client) Proxy.newProxyInstance(
+                Client.class.getClassLoader(), new Class<?>[] {Client.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return method.getName().equals("equals") ? proxy == args[0]
+                                 : method.getName().equals("hashCode") ? System.identityHashCode(proxy)
+                                 : "SimulatedVoltDB client";
+                        }
+                        if (method.getName().equals("close")) {
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Create a loader for a table or procedure.
+     * @param columnTypes  column or parameter types
+     * @param batchSize  rows per batch
+     * @param errorHandler  receives failed rows
+     * @param callbackExecutor  runs the call-backs, or null to run them on a server thread
+     * @param successCallback  receives committed rows or null
+     * @return loader
+     */
+    public CSVDataLoader createLoader(final VoltType[] columnTypes, int batchSize,
+                                      final BulkLoaderErrorHandler errorHandler,
+                                      final Executor callbackExecutor,
+                                      final BulkLoaderSuccessCallback successCallback)
+    {
+        return new Loader(columnTypes, batchSize, errorHandler, callbackExecutor, successCallback);
+    }
+
+    /**
+     * @return recorder of publish-to-settlement row latencies in microseconds
+     */
+    public Recorder getRowLatency()
+    {
+        return m_rowLatency;
+    }
+
+    /**
+     * Start or end a simulated outage.
+     * @param available  false to lose all connections or true to reconnect
+     */
+    public void setAvailable(boolean available)
+    {
+        m_available = available;
+        final ClientStatusListenerExt statusListener = m_statusListener;
+        if (statusListener != null) {
+            if (available) {
+                statusListener.connectionCreated(HOST, PORT, AutoConnectionStatus.SUCCESS);
+            }
+            else {
+                statusListener.connectionLost(HOST, PORT, 0, DisconnectCause.CONNECTION_CLOSED);
+            }
+        }
+    }
+
+    public void shutdown()
+    {
+        m_flusher.shutdownNow();
+        m_server.shutdownNow();
+    }
+
+    private synchronized void acquire() throws InterruptedException
+    {
+        while (m_outstanding >= m_maxOutstanding) {
+            setBackpressure(true);
+            wait();
+        }
+        m_outstanding++;
+    }
+
+    private synchronized void release()
+    {
+        m_outstanding--;
+        if (m_outstanding < m_maxOutstanding) {
+            setBackpressure(false);
+        }
+        notifyAll();
+    }
+
+    private void setBackpressure(boolean backpressure)
+    {
+        final ClientStatusListenerExt statusListener = m_statusListener;
+        if (backpressure != m_backpressure && statusListener != null) {
+            m_backpressure = backpressure;
+            statusListener.backpressure(backpressure);
+        }
+    }
+
+    /**
+     * Response to a simulated batch.
+     */
+    private static class Response implements ClientResponse
+    {
+        private final byte m_status;
+        private final long m_roundTripNanos;
+
+        Response(byte status, long roundTripNanos)
+        {
+            m_status = status;
+            m_roundTripNanos = roundTripNanos;
+        }
+
+        @Override
+        public byte getStatus()
+        {
+            return m_status;
+        }
+
+        @Override
+        public byte getAppStatus()
+        {
+            return UNINITIALIZED_APP_STATUS_CODE;
+        }
+
+        @Override
+        public VoltTable[] getResults()
+        {
+            return new VoltTable[0];
+        }
+
+        @Override
+        public String getStatusString()
+        {
+            return m_status == SUCCESS ? null
+                 : m_status == CONNECTION_LOST ? "Simulated connection loss"
+                 : "Simulated failure";
+        }
+
+        @Override
+        public String getAppStatusString()
+        {
+            return null;
+        }
+
+        @Override
+        public int getClusterRoundtrip()
+        {
+            return (int) TimeUnit.NANOSECONDS.toMillis(m_roundTripNanos);
+        }
+
+        @Override
+        public int getClientRoundtrip()
+        {
+            return (int) TimeUnit.NANOSECONDS.toMillis(m_roundTripNanos);
+        }
+
+        @Override
+        public long getClientRoundtripNanos()
+        {
+            return m_roundTripNanos;
+        }
+    }
+
+    /**
+     * A row waiting in a batch.
+     */
+    private static class Row
+    {
+        final RowWithMetaData metaData;
+        final long publishNanos;
+
+        Row(final RowWithMetaData metaData, final Object[] values)
+        {
+            this.metaData = metaData;
+            this.publishNanos = values.length > 0 && values[0] instanceof Long
+                    ? (Long) values[0]
+                    : NO_PUBLISH_TIME;
+        }
+    }
+
+    /**
+     * Loader for one table or procedure.
+     */
+    private class Loader implements CSVDataLoader
+    {
+        private final VoltType[] m_columnTypes;
+        private final int m_batchSize;
+        private final BulkLoaderErrorHandler m_errorHandler;
+        private final Executor m_callbackExecutor;
+        private final BulkLoaderSuccessCallback m_successCallback;
+        private final AtomicLong m_processedCount = new AtomicLong(0);
+        private final AtomicLong m_failedCount = new AtomicLong(0);
+        /// Batch being filled, guarded by this.
+        private List<Row> m_batch = new ArrayList<Row>();
+        /// Batches of this loader in flight, guarded by this.
+        private int m_pending = 0;
+        private ScheduledFuture<?> m_flushTask = null;
+
+        Loader(final VoltType[] columnTypes, int batchSize,
+               final BulkLoaderErrorHandler errorHandler,
+               final Executor callbackExecutor,
+               final BulkLoaderSuccessCallback successCallback)
+        {
+            m_columnTypes = columnTypes;
+            m_batchSize = batchSize;
+            m_errorHandler = errorHandler;
+            m_callbackExecutor = callbackExecutor;
+            m_successCallback = successCallback;
+        }
+
+        @Override
+        public VoltType[] getColumnTypes()
+        {
+            return m_columnTypes;
+        }
+
+        @Override
+        public Map<Integer, String> getColumnNames()
+        {
+            Map<Integer, String> names = new HashMap<Integer, String>();
+            for (int i = 0; i < m_columnTypes.length; ++i) {
+                names.put(i, "C" + (i + 1));
+            }
+            return names;
+        }
+
+        @Override
+        public void insertRow(final RowWithMetaData metaData, final Object[] values) throws InterruptedException
+        {
+            List<Row> batch = null;
+            synchronized (this) {
+                m_batch.add(new Row(metaData, values));
+                if (m_batch.size() >= m_batchSize) {
+                    batch = takeBatch();
+                }
+            }
+            if (batch != null) {
+                send(batch);
+            }
+        }
+
+        @Override
+        public void flush() throws InterruptedException
+        {
+            List<Row> batch;
+            synchronized (this) {
+                batch = m_batch.isEmpty() ? null : takeBatch();
+            }
+            if (batch != null) {
+                send(batch);
+            }
+        }
+
+        @Override
+        public synchronized void setFlushInterval(int delay, int seconds)
+        {
+            if (m_flushTask != null) {
+                m_flushTask.cancel(false);
+            }
+            m_flushTask = m_flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try {
+                        flush();
+                    }
+                    catch (InterruptedException e) {
+                        // Shutting down.
+                    }
+                }
+            }, delay, seconds, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void resumeLoading()
+        {
+        }
+
+        @Override
+        public void close() throws InterruptedException
+        {
+            synchronized (this) {
+                if (m_flushTask != null) {
+                    m_flushTask.cancel(false);
+                    m_flushTask = null;
+                }
+            }
+            flush();
+            synchronized (this) {
+                while (m_pending > 0) {
+                    wait();
+                }
+            }
+        }
+
+        @Override
+        public long getProcessedRows()
+        {
+            return m_processedCount.get();
+        }
+
+        @Override
+        public long getFailedRows()
+        {
+            return m_failedCount.get();
+        }
+
+        private List<Row> takeBatch()
+        {
+            List<Row> batch = m_batch;
+            m_batch = new ArrayList<Row>(m_batchSize);
+            m_pending++;
+            return batch;
+        }
+
+        private void send(final List<Row> batch) throws InterruptedException
+        {
+            acquire();
+            final long sendNanos = System.nanoTime();
+            // Without connections a batch fails at once.
+            final byte status = m_available ? ClientResponse.SUCCESS : ClientResponse.CONNECTION_LOST;
+            final long delay = status != ClientResponse.SUCCESS ? 0 : m_latencyNanos
+                    + (m_jitterNanos > 0 ? ThreadLocalRandom.current().nextLong(m_jitterNanos + 1) : 0);
+            m_server.schedule(new Runnable() {
+                @Override
+                public void run()
+                {
+                    release();
+                    final Response response = new Response(status, System.nanoTime() - sendNanos);
+                    Runnable callbacks = new Runnable() {
+                        @Override
+                        public void run()
+                        {
+                            complete(batch, response);
+                        }
+                    };
+                    if (m_callbackExecutor != null) {
+                        m_callbackExecutor.execute(callbacks);
+                    }
+                    else {
+                        callbacks.run();
+                    }
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+
+        private void complete(final List<Row> batch, final Response response)
+        {
+            final Response failure = new Response(ClientResponse.GRACEFUL_FAILURE,
+                                                  response.getClientRoundtripNanos());
+            final long now = System.nanoTime();
+            for (Row row : batch) {
+                if (response.getStatus() != ClientResponse.SUCCESS) {
+                    m_errorHandler.handleError(row.metaData, response, response.getStatusString());
+                    continue;
+                }
+                if (m_failureRate > 0 && ThreadLocalRandom.current().nextDouble() < m_failureRate) {
+                    m_failedCount.incrementAndGet();
+                    m_errorHandler.handleError(row.metaData, failure, failure.getStatusString());
+                }
+                else {
+                    m_processedCount.incrementAndGet();
+                    if (m_successCallback != null) {
+                        m_successCallback.success(row.metaData, response);
+                    }
+                }
+                if (row.publishNanos != NO_PUBLISH_TIME) {
+                    m_rowLatency.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(now - row.publishNanos),
+                                                      DeliveryTracker.MAX_LATENCY_MICROS));
+                }
+            }
+            synchronized (this) {
+                m_pending--;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltdb.client.ClientStatusListenerExt;
+
+/**
+ * Pauses RabbitMQ consumption while the VoltDB client reports backpressure,
+ * so that unconsumed messages wait in the broker instead of the loader's
+ * heap. Changing the prefetch is a broker round trip, so it is done on a
+ * separate thread rather than the client's network thread. Consumption
+ * resumes once backpressure has been off for a short while, which avoids
+ * toggling the prefetch on every brief backpressure event.
+ *
+ * With a spill log no consumers are added. The monitor then only tells
+ * when to spill: while all VoltDB connections are lost or backpressure has
+ * lasted a while.
+ */
+class BackpressureMonitor extends ClientStatusListenerExt
+{
+    /// Backpressure must stay off this long before consumption resumes.
+    private static final long RESUME_DELAY_MILLIS = 100;
+    /// Backpressure must last this long before deliveries are spilled.
+    private static final long SPILL_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final List<RMQDeliveryConsumer> m_consumers = new CopyOnWriteArrayList<RMQDeliveryConsumer>();
+    private final ScheduledExecutorService m_executor = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicBoolean m_backpressure = new AtomicBoolean(false);
+    private final AtomicLong m_pauseCount = new AtomicLong(0);
+    /// System.nanoTime() when backpressure last came on.
+    private volatile long m_backpressureNanos = 0;
+    /// True while the client has no connections.
+    private volatile boolean m_disconnected = false;
+    /// Applied state, only used on the executor thread.
+    private boolean m_paused = false;
+
+    private final Runnable m_apply = new Runnable() {
+        @Override
+        public void run()
+        {
+            final boolean pause = m_backpressure.get();
+            if (pause != m_paused) {
+                m_paused = pause;
+                if (pause) {
+                    m_pauseCount.incrementAndGet();
+                }
+                RMQBulkLoader.LOG.debug(String.format("%s RabbitMQ consumption for VoltDB backpressure.",
+                                                      pause ? "Pausing" : "Resuming"));
+                for (RMQDeliveryConsumer consumer : m_consumers) {
+                    consumer.setPaused(pause);
+                }
+            }
+        }
+    };
+
+    /**
+     * Add a consumer to pause under backpressure.
+     * @param consumer  consumer
+     */
+    public void addConsumer(final RMQDeliveryConsumer consumer)
+    {
+        m_consumers.add(consumer);
+    }
+
+    /**
+     * @return number of times consumption was paused
+     */
+    public long getPauseCount()
+    {
+        return m_pauseCount.get();
+    }
+
+    /**
+     * @return true while consumption is paused or about to be
+     */
+    public boolean isBackpressure()
+    {
+        return m_backpressure.get();
+    }
+
+    /**
+     * @return true while VoltDB is unreachable or backpressure has lasted SPILL_DELAY_NANOS
+     */
+    public boolean shouldSpill()
+    {
+        return m_disconnected
+            || (m_backpressure.get() && System.nanoTime() - m_backpressureNanos >= SPILL_DELAY_NANOS);
+    }
+
+    @Override
+    public void connectionLost(String hostname, int port, int connectionsLeft, DisconnectCause cause)
+    {
+        if (connectionsLeft == 0) {
+            m_disconnected = true;
+            RMQBulkLoader.LOG.warn(String.format("Lost the last VoltDB connection, to %s:%d.", hostname, port));
+        }
+    }
+
+    @Override
+    public void connectionCreated(String hostname, int port, AutoConnectionStatus status)
+    {
+        if (status == AutoConnectionStatus.SUCCESS && m_disconnected) {
+            m_disconnected = false;
+            RMQBulkLoader.LOG.info(String.format("Reconnected to VoltDB at %s:%d.", hostname, port));
+        }
+    }
+
+    @Override
+    public void backpressure(boolean status)
+    {
+        if (status && !m_backpressure.get()) {
+            // Set first, so shouldSpill() never sees an old start.
+            m_backpressureNanos = System.nanoTime();
+        }
+        if (m_backpressure.getAndSet(status) != status) {
+            if (status) {
+                m_executor.execute(m_apply);
+            }
+            else {
+                m_executor.schedule(m_apply, RESUME_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Stop the monitor thread.
+     */
+    public void shutdown()
+    {
+        m_executor.shutdownNow();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltdb.client.ClientResponse;
+import org.voltdb.utils.CSVDataLoader;
+
+/**
+ * Adjusts the effective batch size of a table loader at run time.
+ *
+ * VoltBulkLoader's batch size is fixed when the loader is created, so the
+ * loader is created with the maximum size and the controller flushes it
+ * whenever the current batch size worth of rows has been inserted per
+ * partition. The batch size is thus rows per partition batch, as with a
+ * fixed --batch, and a flush covers the batch size times the partition
+ * count. Flushes run on the flusher thread so inserts don't wait for them.
+ *
+ * The size grows by a quarter while rows arrive fast enough to fill many
+ * batches per second and the batch round trip stays within the target. It
+ * is halved when the round trip exceeds the target or when traffic is too
+ * quiet to fill a batch per second, so that rows don't wait for the
+ * periodic flush.
+ */
+class BatchController
+{
+    private static final long EVALUATION_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /// Grow while at least this many batches per interval fill up.
+    private static final long GROW_BATCHES_PER_INTERVAL = 10;
+
+    private final CSVDataLoader m_loader;
+    private final String m_name;
+    /// Partitions the loader batches rows for separately.
+    private final int m_partitions;
+    private final Executor m_flusher;
+    private final int m_minSize;
+    private final int m_maxSize;
+    private final long m_targetNanos;
+    private volatile int m_size;
+
+    /// Rows inserted since the last flush.
+    private final AtomicLong m_unflushed = new AtomicLong(0);
+    /// True while a flush is queued.
+    private final AtomicBoolean m_flushQueued = new AtomicBoolean(false);
+
+    private final Runnable m_flush = new Runnable() {
+        @Override
+        public void run()
+        {
+            m_flushQueued.set(false);
+            try {
+                m_loader.flush();
+            }
+            catch (ExecutionException e) {
+                RMQBulkLoader.LOG.warn(String.format("Failed to flush batch for %s.", m_name), e);
+            }
+            catch (InterruptedException e) {
+                // Shutting down.
+            }
+        }
+    };
+
+    // Committed batch statistics, guarded by this.
+    private long m_roundTripNanos = 0;
+    private long m_batchCount = 0;
+    private long m_rowCount = 0;
+    private long m_lastEvaluation = System.nanoTime();
+    private double m_lastRoundTripMillis = 0;
+    private long m_lastRowRate = 0;
+    private long m_adjustments = 0;
+
+    /**
+     * @param loader  table loader created with the maximum batch size
+     * @param name  table name for reporting
+     * @param partitions  number of partitions the table's rows are batched for
+     * @param flusher  runs the flushes
+     * @param initialSize  initial batch size
+     * @param minSize  lower bound for the batch size
+     * @param maxSize  upper bound for the batch size
+     * @param targetMillis  batch round trip target in milliseconds
+     */
+    public BatchController(final CSVDataLoader loader, final String name, int partitions,
+                           final Executor flusher, int initialSize, int minSize, int maxSize,
+                           long targetMillis)
+    {
+        m_loader = loader;
+        m_name = name;
+        m_partitions = Math.max(partitions, 1);
+        m_flusher = flusher;
+        m_minSize = Math.max(minSize, 1);
+        m_maxSize = Math.max(maxSize, m_minSize);
+        m_targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        m_size = Math.min(Math.max(initialSize, m_minSize), m_maxSize);
+    }
+
+    /**
+     * Count an inserted row and have the loader flushed when a batch per
+     * partition is complete.
+     */
+    public void onInsert()
+    {
+        final long unflushed = m_unflushed.incrementAndGet();
+        if (unflushed >= (long) m_size * m_partitions && m_unflushed.compareAndSet(unflushed, 0)
+                && m_flushQueued.compareAndSet(false, true)) {
+            try {
+                m_flusher.execute(m_flush);
+            }
+            catch (RejectedExecutionException e) {
+                // Shutting down.
+            }
+        }
+    }
+
+    /**
+     * Record a committed row. All rows of a batch share its response.
+     * @param response  batch response
+     * @param newBatch  true for the first row of the batch
+     */
+    public synchronized void onCommitted(final ClientResponse response, boolean newBatch)
+    {
+        m_rowCount++;
+        if (newBatch) {
+            m_roundTripNanos += response.getClientRoundtripNanos();
+            m_batchCount++;
+        }
+        final long now = System.nanoTime();
+        if (now - m_lastEvaluation >= EVALUATION_INTERVAL_NANOS) {
+            evaluate(now);
+        }
+    }
+
+    /**
+     * @return current batch size
+     */
+    public int getBatchSize()
+    {
+        return m_size;
+    }
+
+    /**
+     * @return mean batch round trip in the last evaluation interval
+     */
+    public synchronized double getRoundTripMillis()
+    {
+        return m_lastRoundTripMillis;
+    }
+
+    /**
+     * @return committed rows per second in the last evaluation interval
+     */
+    public synchronized long getRowRate()
+    {
+        return m_lastRowRate;
+    }
+
+    /**
+     * @return number of batch size changes
+     */
+    public synchronized long getAdjustments()
+    {
+        return m_adjustments;
+    }
+
+    private void evaluate(long now)
+    {
+        final long roundTrip = m_roundTripNanos / Math.max(m_batchCount, 1);
+        final long rowRate = m_rowCount * TimeUnit.SECONDS.toNanos(1) / (now - m_lastEvaluation);
+        // Flushes of a batch per partition.
+        final long batchesPerInterval = m_rowCount / ((long) m_size * m_partitions);
+        int size = m_size;
+        if (roundTrip > m_targetNanos || batchesPerInterval < 1) {
+            size = Math.max(m_minSize, size / 2);
+        }
+        else if (batchesPerInterval >= GROW_BATCHES_PER_INTERVAL) {
+            size = Math.min(m_maxSize, size + Math.max(size / 4, 1));
+        }
+        m_lastRoundTripMillis = roundTrip / 1e6;
+        m_lastRowRate = rowRate;
+        if (size != m_size) {
+            RMQBulkLoader.LOG.info(String.format(
+                    "Batch size for %s %d -> %d (round trip %.1f ms, %d rows/s)",
+                    m_name, m_size, size, m_lastRoundTripMillis, rowRate));
+            m_size = size;
+            m_adjustments++;
+        }
+        m_roundTripNanos = 0;
+        m_batchCount = 0;
+        m_rowCount = 0;
+        m_lastEvaluation = now;
+    }
+}
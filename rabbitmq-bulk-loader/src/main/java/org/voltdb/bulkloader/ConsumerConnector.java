@@ -0,0 +1,683 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+import org.voltdb.utils.CSVDataLoader;
+
+/**
+ * Connects one RabbitMQ consumer to the CSV data loader of its stream by
+ * parsing rows out of the delivered message bodies. A connector is used by
+ * a single worker thread, either through its blocking iterator or by
+ * polling for rows that are ready. With a spill log it also loads the
+ * spilled deliveries of its queue, after those waiting in memory, and
+ * while the log holds back it loads nothing and spills those instead.
+ * With a deduplication cache it skips redelivered messages, or rows, whose
+ * key was already loaded.
+ */
+class ConsumerConnector implements Iterable<ConsumerConnector.BulkLoaderData>
+{
+    static class BulkLoaderData
+    {
+        public final TracedRow metaData;
+        public final Object[] rowData;
+
+        public BulkLoaderData(final TracedRow metaData, Object[] rowData)
+        {
+            this.metaData = metaData;
+            this.rowData = rowData;
+        }
+    }
+
+    /**
+     * Call-back of a row that settles its share of the delivery, either with
+     * the VoltDB response or, for a dead-lettered row, once the broker
+     * confirmed the dead letter.
+     */
+    static class RowCallback implements ProcedureCallback, DeadLetterPublisher.Settlement
+    {
+        private final DeliveryRows m_deliveryRows;
+        private final int m_line;
+        /// Deduplication key of the row or 0 for none.
+        private final long m_key;
+
+        RowCallback(final DeliveryRows deliveryRows, int line, long key)
+        {
+            m_deliveryRows = deliveryRows;
+            m_line = line;
+            m_key = key;
+        }
+
+        /**
+         * @return name of the queue the row was consumed from
+         */
+        public String getQueue()
+        {
+            return m_deliveryRows.m_queue;
+        }
+
+        /**
+         * @return line offset of the row within the message body
+         */
+        public int getLine()
+        {
+            return m_line;
+        }
+
+        @Override
+        public void clientCallback(ClientResponse response)
+        {
+            boolean success = response != null && response.getStatus() == ClientResponse.SUCCESS;
+            if (!success) {
+                RMQBulkLoader.LOG.error(String.format(
+                        "Row at line %d of RabbitMQ message %d from queue %s was not loaded.",
+                        m_line, m_deliveryRows.m_deliveryTag, m_deliveryRows.m_queue));
+            }
+            settle(success);
+        }
+
+        @Override
+        public void settle(boolean success)
+        {
+            if (success && m_key != 0) {
+                m_deliveryRows.m_dedupCache.add(m_key);
+            }
+            m_deliveryRows.release(success);
+        }
+    }
+
+    /**
+     * Counts the rows outstanding from one delivery, which may carry any
+     * number of CSV lines. Parsing holds one reference until the body is
+     * exhausted and each row holds one until VoltDB commits or rejects it.
+     * The delivery is settled when the last reference is released, and is
+     * rejected if any of its rows failed. A spilled delivery was
+     * acknowledged when it was spilled, so it completes in the log instead.
+     * A delivery keyed by its message-id is remembered once all its rows
+     * succeeded.
+     */
+    private static class DeliveryRows implements DeadLetterPublisher.Settlement
+    {
+        private final DeliveryTracker m_tracker;
+        private final String m_queue;
+        private final long m_deliveryTag;
+        /// Log of a spilled delivery or null.
+        private final SpillLog m_spillLog;
+        private final SpillLog.Record m_record;
+        /// Deduplication cache or null.
+        private final DedupCache m_dedupCache;
+        /// Deduplication key of the message or 0 for none.
+        private final long m_messageKey;
+        private final AtomicInteger m_references = new AtomicInteger(1);
+        private volatile boolean m_failed = false;
+
+        public DeliveryRows(final DeliveryTracker tracker, final String queue, long deliveryTag,
+                            final SpillLog spillLog, final SpillLog.Record record,
+                            final DedupCache dedupCache, long messageKey)
+        {
+            m_tracker = tracker;
+            m_queue = queue;
+            m_deliveryTag = deliveryTag;
+            m_spillLog = spillLog;
+            m_record = record;
+            m_dedupCache = dedupCache;
+            m_messageKey = messageKey;
+        }
+
+        /**
+         * Add a row to wait for.
+         * @param line  line offset of the row within the message body
+         * @param key  deduplication key of the row or 0 for none
+         * @return call-back for the row
+         */
+        public RowCallback addRow(final int line, long key)
+        {
+            m_references.incrementAndGet();
+            return new RowCallback(this, line, key);
+        }
+
+        /**
+         * Add a reference for the dead letter of the whole delivery.
+         * @return settlement that releases it
+         */
+        public DeadLetterPublisher.Settlement retain()
+        {
+            m_references.incrementAndGet();
+            return this;
+        }
+
+        @Override
+        public void settle(boolean success)
+        {
+            release(success);
+        }
+
+        /**
+         * Release a reference.
+         * @param success  false if the row or the parse failed
+         */
+        public void release(boolean success)
+        {
+            if (!success) {
+                m_failed = true;
+            }
+            if (m_references.decrementAndGet() == 0) {
+                if (m_messageKey != 0 && !m_failed) {
+                    m_dedupCache.add(m_messageKey);
+                }
+                if (m_record != null) {
+                    // Failed rows were reported and there is no broker to reject to.
+                    m_spillLog.complete(m_record);
+                }
+                else if (m_tracker != null) {
+                    m_tracker.complete(m_deliveryTag, !m_failed);
+                }
+            }
+        }
+    }
+
+    private final RMQDeliveryConsumer m_rmqConsumer;
+    private final CSVDataLoader m_loader;
+    /// Flushes the loader for automatic batch sizing or null.
+    private final BatchController m_batchController;
+    /// Flushes the loader when rows get too old or null.
+    private final RowAgeFlusher m_rowAgeFlusher;
+    private final CSVByteParser m_parser = new CSVByteParser();
+    /// Converts fields to the loader's column types.
+    private final RowConverter m_converter;
+    /// Receives messages that cannot be parsed or null to reject them.
+    private final DeadLetterPublisher m_deadLetters;
+    /// Spill log of the queue or null.
+    private final SpillLog m_spillLog;
+    /// Deduplication cache of the queue or null.
+    private final DedupCache m_dedupCache;
+    /// Row count.
+    private long m_count = 0;
+    /// Row count published for metrics.
+    private final AtomicLong m_rowCount = new AtomicLong(0);
+    /// Delivery whose body is being parsed.
+    private RMQDeliveryConsumer.Delivery m_delivery = null;
+    /// Rows outstanding from the delivery being parsed.
+    private DeliveryRows m_deliveryRows = null;
+    /// Decompressing stream for the delivery being parsed or null.
+    private InputStream m_input = null;
+    /// Compression of the delivery being parsed or null.
+    private Compression m_compression = null;
+    /// Publish-to-consume latency of the delivery being parsed in microseconds or -1.
+    private long m_publishToConsumeMicros = -1;
+    /// Leading lines of the delivery being parsed whose rows a dead letter marks as loaded.
+    private int m_skipLines = 0;
+
+    public ConsumerConnector(final RMQDeliveryConsumer rmqConsumer, final CSVDataLoader loader,
+                             final BatchController batchController, final RowAgeFlusher rowAgeFlusher,
+                             final DeadLetterPublisher deadLetters, final SpillLog spillLog,
+                             final DedupCache dedupCache)
+    {
+        m_rmqConsumer = rmqConsumer;
+        m_loader = loader;
+        m_batchController = batchController;
+        m_rowAgeFlusher = rowAgeFlusher;
+        m_deadLetters = deadLetters;
+        m_spillLog = spillLog;
+        m_dedupCache = dedupCache;
+        m_converter = new RowConverter(loader.getColumnTypes());
+    }
+
+    /**
+     * @return loader for the rows of this connector's stream
+     */
+    public CSVDataLoader getLoader()
+    {
+        return m_loader;
+    }
+
+    /**
+     * Insert a row through the loader.
+     * @param data  row
+     * @throws InterruptedException
+     */
+    public void insertRow(final BulkLoaderData data) throws InterruptedException
+    {
+        // Set before the row can be committed.
+        final long batchedNanos = System.nanoTime();
+        data.metaData.batchedNanos = batchedNanos;
+        if (m_rowAgeFlusher != null) {
+            m_rowAgeFlusher.onInsert(batchedNanos);
+        }
+        boolean inserted = false;
+        try {
+            m_loader.insertRow(data.metaData, data.rowData);
+            inserted = true;
+        }
+        finally {
+            if (m_rowAgeFlusher != null) {
+                if (inserted) {
+                    m_rowAgeFlusher.onInserted(batchedNanos);
+                }
+                else {
+                    m_rowAgeFlusher.onCalledBack(batchedNanos);
+                }
+            }
+        }
+        if (m_batchController != null) {
+            m_batchController.onInsert();
+        }
+    }
+
+    /**
+     * @return number of rows parsed
+     */
+    public long getRowCount()
+    {
+        return m_rowCount.get();
+    }
+
+    /**
+     * @return name of the queue being consumed
+     */
+    public String getQueue()
+    {
+        return m_rmqConsumer.getQueue();
+    }
+
+    public void stop()
+    {
+        m_rmqConsumer.stop();
+    }
+
+    /**
+     * Set a listener to run after each delivery to the consumer and when
+     * spilled deliveries can be read.
+     * @param deliveryListener  listener
+     */
+    public void setDeliveryListener(final Runnable deliveryListener)
+    {
+        m_rmqConsumer.setDeliveryListener(deliveryListener);
+        if (m_spillLog != null) {
+            m_spillLog.addReadListener(deliveryListener);
+        }
+    }
+
+    /**
+     * Get the next row without waiting for another delivery.
+     * @return row or null if none is ready
+     * @throws IOException
+     */
+    public BulkLoaderData poll() throws IOException
+    {
+        try {
+            return readRow(false);
+        }
+        catch (InterruptedException e) {
+            // Not reached without waiting.
+            return null;
+        }
+    }
+
+    /**
+     * @return true when the consumer has stopped and all its rows were read,
+     *         or the rest is held back; unread spilled deliveries are left for the next run
+     */
+    public boolean isDone()
+    {
+        return m_rmqConsumer.isStopped() && (m_delivery == null || isHolding());
+    }
+
+    @Override
+    public Iterator<BulkLoaderData> iterator()
+    {
+        return new ConnectorDataIterator();
+    }
+
+    private boolean isHolding()
+    {
+        return m_spillLog != null && m_spillLog.isHolding();
+    }
+
+    /**
+     * Read rows until one is found or no delivery is available. Spilled
+     * deliveries are only read without waiting.
+     * @param wait  wait for deliveries when true
+     * @return row or null
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private BulkLoaderData readRow(boolean wait) throws IOException, InterruptedException
+    {
+        BulkLoaderData row = null;
+        while (row == null) {
+            if (isHolding()) {
+                // Spill what waits in memory so that the broker keeps delivering.
+                m_rmqConsumer.divertQueued();
+                break;
+            }
+            if (m_delivery == null) {
+                // Get another RabbitMQ message, or else a spilled one.
+                m_delivery = wait ? m_rmqConsumer.take() : m_rmqConsumer.poll();
+                if (m_delivery == null && m_spillLog != null && !m_rmqConsumer.isStopped()) {
+                    m_delivery = m_spillLog.poll();
+                }
+                if (m_delivery == null) {
+                    break;
+                }
+                final SpillLog.Record record = m_delivery instanceof SpillLog.Record
+                        ? (SpillLog.Record) m_delivery
+                        : null;
+                m_deliveryRows = new DeliveryRows(m_rmqConsumer.getTracker(), getQueue(),
+                                                  m_delivery.envelope.getDeliveryTag(), m_spillLog, record,
+                                                  m_dedupCache, getMessageKey());
+                if (isDuplicate(m_deliveryRows.m_messageKey)) {
+                    RMQBulkLoader.LOG.debug(String.format(
+                            "Skipped redelivered RabbitMQ message %d from queue %s, already loaded: %s",
+                            m_delivery.envelope.getDeliveryTag(), getQueue(),
+                            m_delivery.properties.getMessageId()));
+                    endDelivery(true);
+                    continue;
+                }
+                if (!startDelivery()) {
+                    continue;
+                }
+            }
+            row = parseRow();
+        }
+        return row;
+    }
+
+    /**
+     * @return deduplication key of the current delivery's message-id or 0 for none
+     */
+    private long getMessageKey()
+    {
+        if (m_dedupCache == null || m_dedupCache.getKeyColumn() >= 0 || m_delivery.properties == null) {
+            return 0;
+        }
+        final String messageId = m_delivery.properties.getMessageId();
+        return messageId != null ? DedupCache.hash(messageId) : 0;
+    }
+
+    /**
+     * @return deduplication key of the parsed row's key column or 0 for none
+     */
+    private long getRowKey()
+    {
+        if (m_dedupCache == null) {
+            return 0;
+        }
+        final int column = m_dedupCache.getKeyColumn();
+        if (column < 0 || column >= m_parser.getFieldCount() || m_parser.isNull(column)) {
+            return 0;
+        }
+        return m_parser.hashField(column);
+    }
+
+    /**
+     * Only redeliveries are looked up, the rest only record their keys.
+     * @param key  deduplication key or 0 for none
+     * @return true if the current delivery is a redelivery and the key was already loaded
+     */
+    private boolean isDuplicate(long key)
+    {
+        if (key == 0 || !m_delivery.envelope.isRedeliver() || !m_dedupCache.contains(key)) {
+            return false;
+        }
+        m_dedupCache.skipped();
+        return true;
+    }
+
+    /**
+     * Prepare to parse the current delivery, decompressing the body as it
+     * is parsed when it has a content-encoding.
+     * @return false if the delivery was rejected
+     */
+    private boolean startDelivery()
+    {
+        final long publishMicros = m_delivery.getPublishMicros();
+        // Clocks of other hosts may run ahead.
+        m_publishToConsumeMicros = publishMicros >= 0
+                ? Math.max(m_delivery.getReceivedMicros() - publishMicros, 0)
+                : -1;
+        m_skipLines = DeadLetterPublisher.getSkipLines(m_delivery.properties);
+        final String encoding = m_delivery.properties != null
+                ? m_delivery.properties.getContentEncoding()
+                : null;
+        if (encoding == null || encoding.isEmpty() || encoding.equalsIgnoreCase("identity")) {
+            m_parser.reset(m_delivery.body, 0, m_delivery.body.length);
+            return true;
+        }
+        final Compression compression = Compression.fromEncoding(encoding);
+        if (compression == null) {
+            failDelivery(String.format(
+                    "RabbitMQ message %d from queue %s has an unsupported content-encoding: %s",
+                    m_delivery.envelope.getDeliveryTag(), getQueue(), encoding), 0, 0);
+            return false;
+        }
+        try {
+            m_input = compression.decompress(new ByteArrayInputStream(m_delivery.body));
+        }
+        catch (IOException e) {
+            failDelivery(String.format(
+                    "Failed to decompress RabbitMQ message %d from queue %s: %s",
+                    m_delivery.envelope.getDeliveryTag(), getQueue(), e.getLocalizedMessage()), 0, 0);
+            return false;
+        }
+        m_compression = compression;
+        m_parser.reset(m_input);
+        return true;
+    }
+
+    /**
+     * Parse the next row from the current delivery. A message body may hold
+     * any number of rows and the delivery is released for settlement once
+     * its last row was parsed.
+     * @return row data or null if the delivery yielded no more rows.
+     */
+    private BulkLoaderData parseRow()
+    {
+        Object[] rowData;
+        RecordText rowText;
+        long rowKey;
+        boolean more;
+        try {
+            rowData = nextRecord() ? m_converter.convert(m_parser) : null;
+            if (rowData != null) {
+                rowKey = getRowKey();
+                // The text is only decoded if the row fails.
+                rowText = m_compression == null
+                        ? new RecordText(m_delivery.body, m_parser.getRecordOffset(), m_parser.getRecordLength())
+                        : new RecordText(m_delivery.body, m_compression, m_parser.getRecordLine());
+                more = m_parser.hasMoreData();
+            }
+            else {
+                rowText = null;
+                rowKey = 0;
+                more = false;
+            }
+        }
+        catch (IOException e) {
+            failDelivery(String.format(
+                    "Failed to decompress RabbitMQ message %d from queue %s at line %d: %s",
+                    m_delivery.envelope.getDeliveryTag(), getQueue(), m_parser.getRecordLine(),
+                    e.getLocalizedMessage()), m_parser.getRecordLine(),
+                    // The row on this line was not returned.
+                    m_parser.getRecordLine() - 1);
+            return null;
+        }
+        catch (ParseException e) {
+            failDelivery(String.format(
+                    "Failed to parse line %d of RabbitMQ message %d from queue %s at offset %d: %s",
+                    m_parser.getRecordLine(), m_delivery.envelope.getDeliveryTag(), getQueue(),
+                    e.getErrorOffset(), e.getLocalizedMessage()), m_parser.getRecordLine(),
+                    m_parser.getRecordLine() - 1);
+            return null;
+        }
+        if (rowData == null) {
+            // Also settles a message without rows.
+            endDelivery(true);
+            return null;
+        }
+        if (isDuplicate(rowKey)) {
+            RMQBulkLoader.LOG.debug(String.format(
+                    "Skipped line %d of redelivered RabbitMQ message %d from queue %s, already loaded.",
+                    m_parser.getRecordLine(), m_delivery.envelope.getDeliveryTag(), getQueue()));
+            if (!more) {
+                endDelivery(true);
+            }
+            return null;
+        }
+        m_count++;
+        // Only this thread writes the count, so an ordered store suffices.
+        m_rowCount.lazySet(m_count);
+        TracedRow metaData = new TracedRow(rowText, m_count,
+                m_deliveryRows.addRow(m_parser.getRecordLine(), rowKey),
+                m_publishToConsumeMicros, m_delivery.receivedNanos);
+        if (!more) {
+            endDelivery(true);
+        }
+        return new BulkLoaderData(metaData, rowData);
+    }
+
+    /**
+     * Move to the next record of the current delivery, skipping those a
+     * dead letter marks as loaded.
+     * @return false when the delivery has no more records
+     */
+    private boolean nextRecord() throws ParseException, IOException
+    {
+        while (m_parser.nextRecord()) {
+            if (m_parser.getRecordLine() > m_skipLines) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stop parsing the current delivery after a failure. With a dead-letter
+     * exchange the rest of it is dead-lettered, or else it is rejected.
+     * @param error  reason, also logged
+     * @param line  line of the failure
+     * @param loadedLines  leading lines whose rows were loaded
+     */
+    private void failDelivery(final String error, int line, int loadedLines)
+    {
+        RMQBulkLoader.LOG.error(error);
+        if (m_deadLetters == null) {
+            endDelivery(false);
+            return;
+        }
+        // An uncompressed body can be cut where the failing row starts.
+        final boolean cut = m_compression == null && loadedLines > 0;
+        m_deadLetters.publishDelivery(getQueue(), m_delivery, cut ? m_parser.getRecordOffset() : 0,
+                                      cut ? 0 : loadedLines, line, error, m_deliveryRows.retain());
+        endDelivery(true);
+    }
+
+    private void endDelivery(boolean success)
+    {
+        if (m_input != null) {
+            try {
+                m_input.close();
+            }
+            catch (IOException e) {
+                // Ignore
+            }
+            m_input = null;
+        }
+        m_compression = null;
+        m_deliveryRows.release(success);
+        m_deliveryRows = null;
+        m_delivery = null;
+    }
+
+    /**
+     * Iterates the rows of the consumer, waiting for deliveries as needed.
+     */
+    private class ConnectorDataIterator implements Iterator<BulkLoaderData>
+    {
+        /// Caching the data for one row allows hasNext() to look ahead.
+        private BulkLoaderData m_rowCache = null;
+        /// Set to true when done.
+        private boolean m_done = false;
+
+        //=== Iterator required overrides
+
+        @Override
+        public boolean hasNext()
+        {
+            return cacheRowAsNeeded();
+        }
+
+        @Override
+        public BulkLoaderData next()
+        {
+            // Cache a row if hasNext() wasn't previously called.
+            cacheRowAsNeeded();
+            // Return the row and drop it from the cache.
+            BulkLoaderData rowData = m_rowCache;
+            m_rowCache = null;
+            return rowData;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        //=== Private methods
+
+        /**
+         * Check if a row is already cached or attempt to cache the next one.
+         * Used for both hasNext() and next().
+         * @return true if a row is available.
+         */
+        private boolean cacheRowAsNeeded()
+        {
+            if (!m_done && m_rowCache == null) {
+                try {
+                    m_rowCache = readRow(true);
+                }
+                catch (IOException e) {
+                    RMQBulkLoader.LOG.error("Exception while reading the next RabbitMQ message.", e);
+                    m_rowCache = null;
+                }
+                catch (InterruptedException e) {
+                    m_rowCache = null;
+                }
+                m_done = (m_rowCache == null);
+            }
+            return !m_done;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.MessageProperties;
+
+/**
+ * Publishes rows that failed to load, and messages that could not be
+ * parsed, to a dead-letter exchange with the reason in headers, so that the
+ * loader can carry on with the good rows instead of stopping or dropping
+ * the bad ones.
+ *
+ * Dead letters are published on a dedicated channel in confirm mode by a
+ * single thread, in batches of whatever has queued up, so neither the
+ * VoltDB call-backs nor the workers wait for the broker. Each dead letter
+ * is settled once the broker confirmed it: its delivery is acknowledged
+ * like a loaded row, or rejected if publishing failed.
+ */
+class DeadLetterPublisher implements Runnable
+{
+    /// Header with the reason for dead-lettering.
+    static final String ERROR_HEADER = "x-loader-error";
+    /// Header with the queue the row or message was consumed from.
+    static final String QUEUE_HEADER = "x-loader-queue";
+    /// Header with the line of the row, or of the parse failure, in the original message.
+    static final String LINE_HEADER = "x-loader-line";
+    /// Header with the VoltDB ClientResponse status of a failed row.
+    static final String STATUS_HEADER = "x-loader-status";
+    /// Header with the number of leading lines of a dead-lettered message whose rows were loaded.
+    static final String SKIP_LINES_HEADER = "x-loader-skip-lines";
+
+    /// Most dead letters published before waiting for confirms.
+    private static final int MAX_BATCH = 1000;
+    private static final long CONFIRM_TIMEOUT_MILLIS = 60000;
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * Receives the outcome of publishing a dead letter.
+     */
+    interface Settlement
+    {
+        /**
+         * @param success  true if the broker confirmed the dead letter
+         */
+        void settle(boolean success);
+    }
+
+    private static class DeadLetter
+    {
+        final String routingKey;
+        final AMQP.BasicProperties properties;
+        final byte[] body;
+        final Settlement settlement;
+
+        DeadLetter(String routingKey, AMQP.BasicProperties properties, byte[] body, Settlement settlement)
+        {
+            this.routingKey = routingKey;
+            this.properties = properties;
+            this.body = body;
+            this.settlement = settlement;
+        }
+    }
+
+    private final String m_exchange;
+    private final Channel m_channel;
+    /// Dead letters confirmed by the broker.
+    private final AtomicLong m_count;
+    private final BlockingQueue<DeadLetter> m_deadLetters = new LinkedBlockingQueue<DeadLetter>();
+    private final Thread m_thread = new Thread(this, "RabbitMQ dead-letter publisher");
+    private volatile boolean m_stopping = false;
+
+    /**
+     * Open the publishing channel.
+     * @param connection  RabbitMQ connection
+     * @param exchange  dead-letter exchange, which must exist
+     * @param count  counts confirmed dead letters
+     * @throws IOException  if the exchange does not exist
+     */
+    public DeadLetterPublisher(final Connection connection, final String exchange, final AtomicLong count)
+            throws IOException
+    {
+        m_exchange = exchange;
+        m_count = count;
+        m_channel = connection.createChannel();
+        m_channel.exchangeDeclarePassive(exchange);
+        m_channel.confirmSelect();
+    }
+
+    public void start()
+    {
+        m_thread.start();
+    }
+
+    /**
+     * Publish a row that failed to load as a one-line CSV message.
+     * @param queue  source queue, also the routing key
+     * @param line  line of the row in its message
+     * @param rowText  row text
+     * @param status  VoltDB status or null
+     * @param error  reason
+     * @param settlement  receives the outcome
+     */
+    public void publishRow(final String queue, int line, final Object rowText, final Byte status,
+                           final String error, final Settlement settlement)
+    {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put(ERROR_HEADER, error);
+        headers.put(QUEUE_HEADER, queue);
+        headers.put(LINE_HEADER, line);
+        if (status != null) {
+            headers.put(STATUS_HEADER, status.intValue());
+        }
+        AMQP.BasicProperties properties = MessageProperties.PERSISTENT_TEXT_PLAIN.builder()
+                .headers(headers)
+                .build();
+        m_deadLetters.add(new DeadLetter(queue, properties,
+                String.valueOf(rowText).getBytes(StandardCharsets.UTF_8), settlement));
+    }
+
+    /**
+     * Publish a message that could not be parsed, keeping its properties.
+     * The rows before the failure were loaded, so an uncompressed body is
+     * cut at the failing row. A compressed one is kept whole and the loaded
+     * lines are marked in a header, so that replaying it skips them.
+     * @param queue  source queue, also the routing key
+     * @param delivery  delivery
+     * @param offset  offset of the failing row in an uncompressed body, or 0 to keep it whole
+     * @param skipLines  leading lines of the body whose rows were loaded
+     * @param line  line of the failure
+     * @param error  reason
+     * @param settlement  receives the outcome
+     */
+    public void publishDelivery(final String queue, final RMQDeliveryConsumer.Delivery delivery, int offset,
+                                int skipLines, int line, final String error, final Settlement settlement)
+    {
+        AMQP.BasicProperties properties = delivery.properties != null
+                ? delivery.properties
+                : MessageProperties.PERSISTENT_BASIC;
+        Map<String, Object> headers = new HashMap<String, Object>();
+        if (properties.getHeaders() != null) {
+            headers.putAll(properties.getHeaders());
+        }
+        headers.put(ERROR_HEADER, error);
+        headers.put(QUEUE_HEADER, queue);
+        headers.put(LINE_HEADER, line);
+        if (skipLines > 0) {
+            headers.put(SKIP_LINES_HEADER, skipLines);
+        }
+        else {
+            headers.remove(SKIP_LINES_HEADER);
+        }
+        final byte[] body = offset > 0
+                ? Arrays.copyOfRange(delivery.body, offset, delivery.body.length)
+                : delivery.body;
+        m_deadLetters.add(new DeadLetter(queue, properties.builder().headers(headers).build(),
+                                         body, settlement));
+    }
+
+    /**
+     * @param properties  properties of a message or null
+     * @return leading lines of a dead-lettered message whose rows were loaded, or 0
+     */
+    static int getSkipLines(final AMQP.BasicProperties properties)
+    {
+        if (properties == null || properties.getHeaders() == null) {
+            return 0;
+        }
+        final Object skipLines = properties.getHeaders().get(SKIP_LINES_HEADER);
+        return skipLines instanceof Number ? ((Number) skipLines).intValue() : 0;
+    }
+
+    /**
+     * Publish what is queued and stop.
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException
+    {
+        m_stopping = true;
+        m_thread.join();
+        try {
+            m_channel.close();
+        }
+        catch (IOException | AlreadyClosedException e) {
+            // Ignore
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        final List<DeadLetter> batch = new ArrayList<DeadLetter>();
+        try {
+            while (!m_stopping || !m_deadLetters.isEmpty()) {
+                final DeadLetter first = m_deadLetters.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                m_deadLetters.drainTo(batch, MAX_BATCH - 1);
+                publish(batch);
+                batch.clear();
+            }
+        }
+        catch (InterruptedException e) {
+            // Settle what is left as failed.
+            batch.addAll(m_deadLetters);
+            for (DeadLetter deadLetter : batch) {
+                deadLetter.settlement.settle(false);
+            }
+        }
+    }
+
+    private void publish(final List<DeadLetter> batch) throws InterruptedException
+    {
+        boolean success;
+        try {
+            for (DeadLetter deadLetter : batch) {
+                m_channel.basicPublish(m_exchange, deadLetter.routingKey, deadLetter.properties, deadLetter.body);
+            }
+            success = m_channel.waitForConfirms(CONFIRM_TIMEOUT_MILLIS);
+            if (!success) {
+                RMQBulkLoader.LOG.error(String.format(
+                        "RabbitMQ refused %d dead letters for exchange %s.", batch.size(), m_exchange));
+            }
+        }
+        catch (IOException | TimeoutException | AlreadyClosedException e) {
+            RMQBulkLoader.LOG.error(String.format(
+                    "Failed to publish %d dead letters to exchange %s.", batch.size(), m_exchange), e);
+            success = false;
+        }
+        if (success) {
+            m_count.addAndGet(batch.size());
+        }
+        for (DeadLetter deadLetter : batch) {
+            deadLetter.settlement.settle(success);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the keys of messages or rows that were loaded, message-ids or
+ * values of a key column, so that redeliveries of them can be skipped.
+ * Keys are 64-bit FNV-1a hashes stored in open-addressing tables of
+ * primitive longs, 16 to 32 bytes per key and no garbage per lookup. At
+ * that width a lookup falsely matches one of a million keys about once in
+ * 10^13 tries, so there is no need for an exact store behind it.
+ *
+ * The keys are spread over a few generations of tables. Every window/3 the
+ * oldest generation is cleared and becomes the one added to, so a key is
+ * remembered for at least the window. A generation that fills up is
+ * rotated early, which shortens the window rather than growing the memory.
+ */
+class DedupCache
+{
+    private static final int GENERATIONS = 4;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String m_queue;
+    /// 0-based key column or -1 for the message-id.
+    private final int m_keyColumn;
+    private final long[][] m_tables;
+    private final int[] m_sizes = new int[GENERATIONS];
+    /// Keys per generation, half the table length or less.
+    private final int m_capacity;
+    private final long m_rotateNanos;
+    /// Generation being added to.
+    private int m_current = 0;
+    private long m_rotatedNanos;
+    /// Reported the first early rotation.
+    private boolean m_warned = false;
+    /// Redelivered messages and rows skipped.
+    private final AtomicLong m_skippedCount = new AtomicLong(0);
+
+    /**
+     * @param queue  queue name for reporting
+     * @param keyColumn  0-based key column or -1 to key messages by their message-id
+     * @param windowSeconds  minimum time a key is remembered
+     * @param maxKeys  maximum number of keys remembered
+     */
+    public DedupCache(final String queue, int keyColumn, long windowSeconds, long maxKeys)
+    {
+        m_queue = queue;
+        m_keyColumn = keyColumn;
+        m_capacity = (int) Math.max(maxKeys / GENERATIONS, 1);
+        // A power of two at least twice the capacity.
+        final int length = Integer.highestOneBit(m_capacity) << 2;
+        m_tables = new long[GENERATIONS][length];
+        m_rotateNanos = TimeUnit.SECONDS.toNanos(windowSeconds) / (GENERATIONS - 1);
+        m_rotatedNanos = System.nanoTime();
+    }
+
+    /**
+     * @return 0-based key column or -1 if messages are keyed by their message-id
+     */
+    public int getKeyColumn()
+    {
+        return m_keyColumn;
+    }
+
+    /**
+     * Hash a message-id or other string key.
+     * @param value  key
+     * @return hash
+     */
+    public static long hash(final CharSequence value)
+    {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); ++i) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Remember a loaded key.
+     * @param key  key hash
+     */
+    public synchronized void add(long key)
+    {
+        key = nonZero(key);
+        expire(System.nanoTime());
+        if (m_sizes[m_current] >= m_capacity) {
+            if (!m_warned) {
+                RMQBulkLoader.LOG.warn(String.format(
+                        "Deduplication keys of queue %s fill --dedupmax before --dedupwindow ends; "
+                        + "the window is shortened.", m_queue));
+                m_warned = true;
+            }
+            rotate(System.nanoTime());
+        }
+        if (insert(m_tables[m_current], key)) {
+            m_sizes[m_current]++;
+        }
+    }
+
+    /**
+     * @param key  key hash
+     * @return true if the key was loaded within the window
+     */
+    public synchronized boolean contains(long key)
+    {
+        key = nonZero(key);
+        expire(System.nanoTime());
+        for (int i = 0; i < GENERATIONS; ++i) {
+            if (m_sizes[i] > 0 && find(m_tables[i], key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Count a skipped message or row.
+     */
+    public void skipped()
+    {
+        m_skippedCount.incrementAndGet();
+    }
+
+    /**
+     * @return redelivered messages and rows skipped
+     */
+    public long getSkippedCount()
+    {
+        return m_skippedCount.get();
+    }
+
+    /**
+     * Rotate once for each period that passed, clearing at most all generations.
+     */
+    private void expire(long now)
+    {
+        for (int i = 0; i < GENERATIONS && now - m_rotatedNanos >= m_rotateNanos; ++i) {
+            rotate(m_rotatedNanos + m_rotateNanos);
+        }
+        if (now - m_rotatedNanos >= m_rotateNanos) {
+            m_rotatedNanos = now;
+        }
+    }
+
+    private void rotate(long now)
+    {
+        m_current = (m_current + 1) % GENERATIONS;
+        if (m_sizes[m_current] > 0) {
+            Arrays.fill(m_tables[m_current], 0);
+            m_sizes[m_current] = 0;
+        }
+        m_rotatedNanos = now;
+    }
+
+    /**
+     * @return false if the key was already in the table
+     */
+    private static boolean insert(final long[] table, long key)
+    {
+        final int mask = table.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            if (table[i] == key) {
+                return false;
+            }
+            if (table[i] == 0) {
+                table[i] = key;
+                return true;
+            }
+        }
+    }
+
+    private static boolean find(final long[] table, long key)
+    {
+        final int mask = table.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            if (table[i] == key) {
+                return true;
+            }
+            if (table[i] == 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Spread the hash over the table, since FNV-1a mixes its low bits poorly.
+     */
+    private static int slot(long key, int mask)
+    {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    /**
+     * Zero marks an empty slot.
+     */
+    private static long nonZero(long key)
+    {
+        return key != 0 ? key : 1;
+    }
+}
@@ -0,0 +1,649 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.voltdb.utils.CSVDataLoader;
+
+import com.google_voltpatches.common.net.HostAndPort;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Bulk loader metrics, exported over JMX and optionally over HTTP in the
+ * Prometheus text format.
+ *
+ * The hot path only bumps uncontended per-consumer counters and records
+ * latencies into HdrHistogram recorders. Everything else, e.g. loader row
+ * counts, unacknowledged deliveries and batch sizes, is read from its source
+ * when the metrics are collected.
+ */
+public class LoaderMetrics implements LoaderMetricsMXBean
+{
+    private static final String OBJECT_NAME = "org.voltdb.bulkloader:type=RMQBulkLoader";
+    private static final String PREFIX = "rabbitmq_loader_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * A loader for a table or procedure.
+     */
+    private static class Stream
+    {
+        final String name;
+        final CSVDataLoader loader;
+        final BatchController batchController;
+        final int batchSize;
+
+        Stream(String name, CSVDataLoader loader, BatchController batchController, int batchSize)
+        {
+            this.name = name;
+            this.loader = loader;
+            this.batchController = batchController;
+            this.batchSize = batchSize;
+        }
+
+        int getBatchSize()
+        {
+            return batchController != null ? batchController.getBatchSize() : batchSize;
+        }
+    }
+
+    /**
+     * Per-second rate of a counter between successive reads at least a
+     * second apart.
+     */
+    private static class Rate
+    {
+        private long m_lastCount = 0;
+        private long m_lastTime = System.nanoTime();
+        private double m_rate = 0;
+
+        synchronized double update(long count)
+        {
+            final long now = System.nanoTime();
+            final long elapsed = now - m_lastTime;
+            if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+                m_rate = (count - m_lastCount) * 1e9 / elapsed;
+                m_lastCount = count;
+                m_lastTime = now;
+            }
+            return m_rate;
+        }
+    }
+
+    /**
+     * Accumulates a recorder's interval histograms for cumulative quantiles.
+     */
+    private static class Latency
+    {
+        final Recorder recorder = new Recorder(DeliveryTracker.MAX_LATENCY_MICROS, 3);
+        private final Histogram m_total = new Histogram(DeliveryTracker.MAX_LATENCY_MICROS, 3);
+        private Histogram m_interval = null;
+
+        synchronized Histogram snapshot()
+        {
+            m_interval = recorder.getIntervalHistogram(m_interval);
+            m_total.add(m_interval);
+            return m_total.copy();
+        }
+
+        void record(long nanos)
+        {
+            recordMicros(TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+
+        void recordMicros(long micros)
+        {
+            recorder.recordValue(Math.min(Math.max(micros, 0), DeliveryTracker.MAX_LATENCY_MICROS));
+        }
+    }
+
+    private final List<Stream> m_streams = new CopyOnWriteArrayList<Stream>();
+    private final List<RMQDeliveryConsumer> m_consumers = new CopyOnWriteArrayList<RMQDeliveryConsumer>();
+    private final List<ConsumerConnector> m_connectors = new CopyOnWriteArrayList<ConsumerConnector>();
+    private final List<SpillLog> m_spillLogs = new CopyOnWriteArrayList<SpillLog>();
+    private final List<DedupCache> m_dedupCaches = new CopyOnWriteArrayList<DedupCache>();
+    private final AtomicLong m_errorCount;
+    private final AtomicLong m_deadLetterCount;
+    private final BackpressureMonitor m_backpressureMonitor;
+
+    private final Latency m_deliveryLatency = new Latency();
+    private final Latency m_roundTrip = new Latency();
+    private final Latency m_publishToConsume = new Latency();
+    private final Latency m_consumeToBatch = new Latency();
+    private final Latency m_batchToCommit = new Latency();
+    private final Latency m_publishToCommit = new Latency();
+    private final Rate m_messageRate = new Rate();
+    private final Rate m_byteRate = new Rate();
+    private final Rate m_parsedRate = new Rate();
+    private final Rate m_loadedRate = new Rate();
+
+    private ObjectName m_objectName = null;
+    private HttpServer m_httpServer = null;
+
+    /**
+     * @param errorCount  error counter
+     * @param deadLetterCount  dead letter counter
+     * @param backpressureMonitor  backpressure monitor
+     */
+    public LoaderMetrics(final AtomicLong errorCount, final AtomicLong deadLetterCount,
+                         final BackpressureMonitor backpressureMonitor)
+    {
+        m_errorCount = errorCount;
+        m_deadLetterCount = deadLetterCount;
+        m_backpressureMonitor = backpressureMonitor;
+    }
+
+    /**
+     * Add the loader of a table or procedure.
+     * @param name  table or procedure name
+     * @param loader  loader
+     * @param batchController  batch controller or null
+     * @param batchSize  fixed batch size
+     */
+    public void addStream(final String name, final CSVDataLoader loader,
+                          final BatchController batchController, int batchSize)
+    {
+        m_streams.add(new Stream(name, loader, batchController, batchSize));
+    }
+
+    /**
+     * Add the spill log of a queue.
+     * @param spillLog  spill log
+     */
+    public void addSpillLog(final SpillLog spillLog)
+    {
+        m_spillLogs.add(spillLog);
+    }
+
+    /**
+     * Add the deduplication cache of a queue.
+     * @param dedupCache  deduplication cache
+     */
+    public void addDedupCache(final DedupCache dedupCache)
+    {
+        m_dedupCaches.add(dedupCache);
+    }
+
+    /**
+     * Add a consumer and have it record delivery latencies. Call before the
+     * consumer is started.
+     * @param consumer  RabbitMQ consumer
+     * @param connector  its connector
+     */
+    public void addConsumer(final RMQDeliveryConsumer consumer, final ConsumerConnector connector)
+    {
+        consumer.setLatencyRecorder(m_deliveryLatency.recorder);
+        m_consumers.add(consumer);
+        m_connectors.add(connector);
+    }
+
+    /**
+     * Record a procedure or batch round trip.
+     * @param nanos  round trip
+     */
+    public void recordRoundTrip(long nanos)
+    {
+        m_roundTrip.record(nanos);
+    }
+
+    /**
+     * Record the latencies of a committed row per stage. The publish stages
+     * are only recorded for messages with a publish time.
+     * @param row  row meta-data
+     * @param committedNanos  System.nanoTime() when the row was committed
+     */
+    public void recordCommit(final TracedRow row, long committedNanos)
+    {
+        m_consumeToBatch.record(row.batchedNanos - row.consumedNanos);
+        m_batchToCommit.record(committedNanos - row.batchedNanos);
+        if (row.publishToConsumeMicros >= 0) {
+            m_publishToConsume.recordMicros(row.publishToConsumeMicros);
+            m_publishToCommit.recordMicros(row.publishToConsumeMicros
+                    + TimeUnit.NANOSECONDS.toMicros(committedNanos - row.consumedNanos));
+        }
+    }
+
+    /**
+     * Register the JMX bean.
+     * @throws JMException
+     */
+    public void register() throws JMException
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        m_objectName = new ObjectName(OBJECT_NAME);
+        server.registerMBean(this, m_objectName);
+    }
+
+    /**
+     * Serve the metrics at /metrics in the Prometheus text format.
+     * @param address  listen address, any interface if no host is given
+     * @throws IOException
+     */
+    public void startHttpServer(final HostAndPort address) throws IOException
+    {
+        InetSocketAddress socketAddress = address.getHostText().isEmpty()
+                ? new InetSocketAddress(address.getPort())
+                : new InetSocketAddress(address.getHostText(), address.getPort());
+        m_httpServer = HttpServer.create(socketAddress, 0);
+        m_httpServer.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                byte[] body = format().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream output = exchange.getResponseBody();
+                try {
+                    output.write(body);
+                }
+                finally {
+                    output.close();
+                }
+            }
+        });
+        m_httpServer.start();
+        RMQBulkLoader.LOG.info(String.format("Serving metrics at http://%s/metrics", address));
+    }
+
+    /**
+     * Stop the HTTP server and unregister the JMX bean.
+     */
+    public void close()
+    {
+        if (m_httpServer != null) {
+            m_httpServer.stop(0);
+            m_httpServer = null;
+        }
+        if (m_objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_objectName);
+            }
+            catch (JMException e) {
+                // Ignore
+            }
+            m_objectName = null;
+        }
+    }
+
+    //=== LoaderMetricsMXBean
+
+    @Override
+    public long getMessagesConsumed()
+    {
+        long count = 0;
+        for (RMQDeliveryConsumer consumer : m_consumers) {
+            count += consumer.getMessageCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getBytesConsumed()
+    {
+        long count = 0;
+        for (RMQDeliveryConsumer consumer : m_consumers) {
+            count += consumer.getByteCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getRowsParsed()
+    {
+        long count = 0;
+        for (ConsumerConnector connector : m_connectors) {
+            count += connector.getRowCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getRowsLoaded()
+    {
+        long count = 0;
+        for (Stream stream : m_streams) {
+            count += stream.loader.getProcessedRows();
+        }
+        return count;
+    }
+
+    @Override
+    public long getRowsFailed()
+    {
+        long count = 0;
+        for (Stream stream : m_streams) {
+            count += stream.loader.getFailedRows();
+        }
+        return count;
+    }
+
+    @Override
+    public long getErrors()
+    {
+        return m_errorCount.get();
+    }
+
+    @Override
+    public long getDeadLetters()
+    {
+        return m_deadLetterCount.get();
+    }
+
+    @Override
+    public long getUnackedDeliveries()
+    {
+        long count = 0;
+        for (RMQDeliveryConsumer consumer : m_consumers) {
+            count += consumer.getPendingCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getBackpressurePauses()
+    {
+        return m_backpressureMonitor.getPauseCount();
+    }
+
+    @Override
+    public long getSpilledRecords()
+    {
+        long count = 0;
+        for (SpillLog spillLog : m_spillLogs) {
+            count += spillLog.getSpilledCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getSpillBacklogBytes()
+    {
+        long bytes = 0;
+        for (SpillLog spillLog : m_spillLogs) {
+            bytes += spillLog.getBacklogBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getDuplicatesSkipped()
+    {
+        long count = 0;
+        for (DedupCache dedupCache : m_dedupCaches) {
+            count += dedupCache.getSkippedCount();
+        }
+        return count;
+    }
+
+    @Override
+    public double getMessagesPerSecond()
+    {
+        return m_messageRate.update(getMessagesConsumed());
+    }
+
+    @Override
+    public double getBytesPerSecond()
+    {
+        return m_byteRate.update(getBytesConsumed());
+    }
+
+    @Override
+    public double getRowsParsedPerSecond()
+    {
+        return m_parsedRate.update(getRowsParsed());
+    }
+
+    @Override
+    public double getRowsLoadedPerSecond()
+    {
+        return m_loadedRate.update(getRowsLoaded());
+    }
+
+    @Override
+    public Map<String, Integer> getBatchSizes()
+    {
+        Map<String, Integer> sizes = new LinkedHashMap<String, Integer>();
+        for (Stream stream : m_streams) {
+            sizes.put(stream.name, stream.getBatchSize());
+        }
+        return sizes;
+    }
+
+    @Override
+    public double getDeliveryLatencyMedianMillis()
+    {
+        return m_deliveryLatency.snapshot().getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getDeliveryLatency99Millis()
+    {
+        return m_deliveryLatency.snapshot().getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getDeliveryLatencyMaxMillis()
+    {
+        return m_deliveryLatency.snapshot().getMaxValue() / 1000.0;
+    }
+
+    @Override
+    public double getRoundTripMedianMillis()
+    {
+        return m_roundTrip.snapshot().getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getRoundTrip99Millis()
+    {
+        return m_roundTrip.snapshot().getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getRoundTripMaxMillis()
+    {
+        return m_roundTrip.snapshot().getMaxValue() / 1000.0;
+    }
+
+    @Override
+    public double getPublishToConsumeMedianMillis()
+    {
+        return m_publishToConsume.snapshot().getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getPublishToConsume99Millis()
+    {
+        return m_publishToConsume.snapshot().getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getPublishToConsumeMaxMillis()
+    {
+        return m_publishToConsume.snapshot().getMaxValue() / 1000.0;
+    }
+
+    @Override
+    public double getConsumeToBatchMedianMillis()
+    {
+        return m_consumeToBatch.snapshot().getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getConsumeToBatch99Millis()
+    {
+        return m_consumeToBatch.snapshot().getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getConsumeToBatchMaxMillis()
+    {
+        return m_consumeToBatch.snapshot().getMaxValue() / 1000.0;
+    }
+
+    @Override
+    public double getBatchToCommitMedianMillis()
+    {
+        return m_batchToCommit.snapshot().getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getBatchToCommit99Millis()
+    {
+        return m_batchToCommit.snapshot().getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getBatchToCommitMaxMillis()
+    {
+        return m_batchToCommit.snapshot().getMaxValue() / 1000.0;
+    }
+
+    @Override
+    public double getPublishToCommitMedianMillis()
+    {
+        return m_publishToCommit.snapshot().getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getPublishToCommit99Millis()
+    {
+        return m_publishToCommit.snapshot().getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getPublishToCommitMaxMillis()
+    {
+        return m_publishToCommit.snapshot().getMaxValue() / 1000.0;
+    }
+
+    //=== Prometheus text format
+
+    /**
+     * @return all metrics in the Prometheus text format
+     */
+    public String format()
+    {
+        StringBuilder sb = new StringBuilder();
+        formatMetric(sb, "messages_consumed_total", "counter", "RabbitMQ messages received.",
+                     getMessagesConsumed());
+        formatMetric(sb, "bytes_consumed_total", "counter", "RabbitMQ message body bytes received.",
+                     getBytesConsumed());
+        formatMetric(sb, "rows_parsed_total", "counter", "CSV rows parsed.", getRowsParsed());
+        formatMetric(sb, "errors_total", "counter", "Rows reported as errors.", getErrors());
+        formatMetric(sb, "dead_letters_total", "counter",
+                     "Rows and messages published to the dead-letter exchange.", getDeadLetters());
+        formatMetric(sb, "unacked_deliveries", "gauge", "Deliveries awaiting VoltDB commits.",
+                     getUnackedDeliveries());
+        formatMetric(sb, "backpressure_pauses_total", "counter",
+                     "Times consumption paused for VoltDB backpressure.", getBackpressurePauses());
+        formatMetric(sb, "spilled_records_total", "counter",
+                     "Deliveries and unloaded rows written to the spill logs.", getSpilledRecords());
+        formatMetric(sb, "spill_backlog_bytes", "gauge",
+                     "Spill log bytes not yet loaded and checkpointed.", getSpillBacklogBytes());
+        formatMetric(sb, "duplicates_skipped_total", "counter",
+                     "Redelivered messages and rows skipped as already loaded.", getDuplicatesSkipped());
+
+        formatHeader(sb, "rows_loaded_total", "counter", "Rows processed by VoltDB per target.");
+        for (Stream stream : m_streams) {
+            formatSample(sb, "rows_loaded_total", "target", stream.name, stream.loader.getProcessedRows());
+        }
+        formatHeader(sb, "rows_failed_total", "counter", "Rows that failed to load per target.");
+        for (Stream stream : m_streams) {
+            formatSample(sb, "rows_failed_total", "target", stream.name, stream.loader.getFailedRows());
+        }
+        formatHeader(sb, "batch_size", "gauge", "Current batch size per target.");
+        for (Stream stream : m_streams) {
+            formatSample(sb, "batch_size", "target", stream.name, stream.getBatchSize());
+        }
+
+        formatSummary(sb, "delivery_latency_seconds", "Delivery-to-commit latency.",
+                      m_deliveryLatency.snapshot());
+        formatSummary(sb, "round_trip_seconds", "Procedure and batch round trip.",
+                      m_roundTrip.snapshot());
+        formatSummary(sb, "publish_to_consume_seconds", "Row latency from publish to delivery.",
+                      m_publishToConsume.snapshot());
+        formatSummary(sb, "consume_to_batch_seconds", "Row latency from delivery to batching.",
+                      m_consumeToBatch.snapshot());
+        formatSummary(sb, "batch_to_commit_seconds", "Row latency from batching to commit.",
+                      m_batchToCommit.snapshot());
+        formatSummary(sb, "publish_to_commit_seconds", "Row latency from publish to commit.",
+                      m_publishToCommit.snapshot());
+        return sb.toString();
+    }
+
+    private static void formatHeader(StringBuilder sb, String name, String type, String help)
+    {
+        sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void formatMetric(StringBuilder sb, String name, String type, String help, long value)
+    {
+        formatHeader(sb, name, type, help);
+        sb.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void formatSample(StringBuilder sb, String name, String label, String labelValue,
+                                     Object value)
+    {
+        sb.append(PREFIX).append(name)
+          .append('{').append(label).append("=\"")
+          .append(labelValue.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"} ")
+          .append(value).append('\n');
+    }
+
+    private static void formatSummary(StringBuilder sb, String name, String help, Histogram histogram)
+    {
+        formatHeader(sb, name, "summary", help);
+        for (double quantile : QUANTILES) {
+            formatSample(sb, name, "quantile", Double.toString(quantile),
+                         histogram.getValueAtPercentile(quantile * 100) / 1e6);
+        }
+        final long count = histogram.getTotalCount();
+        sb.append(PREFIX).append(name).append("_sum ")
+          .append(histogram.getMean() * count / 1e6).append('\n');
+        sb.append(PREFIX).append(name).append("_count ").append(count).append('\n');
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.util.Map;
+
+/**
+ * JMX view of the bulk loader metrics.
+ * Registered as org.voltdb.bulkloader:type=RMQBulkLoader.
+ */
+public interface LoaderMetricsMXBean
+{
+    long getMessagesConsumed();
+    long getBytesConsumed();
+    long getRowsParsed();
+    long getRowsLoaded();
+    long getRowsFailed();
+    long getErrors();
+    long getDeadLetters();
+    long getUnackedDeliveries();
+    long getBackpressurePauses();
+    long getSpilledRecords();
+    long getSpillBacklogBytes();
+    long getDuplicatesSkipped();
+
+    double getMessagesPerSecond();
+    double getBytesPerSecond();
+    double getRowsParsedPerSecond();
+    double getRowsLoadedPerSecond();
+
+    /// Current batch size per table.
+    Map<String, Integer> getBatchSizes();
+
+    double getDeliveryLatencyMedianMillis();
+    double getDeliveryLatency99Millis();
+    double getDeliveryLatencyMaxMillis();
+    double getRoundTripMedianMillis();
+    double getRoundTrip99Millis();
+    double getRoundTripMaxMillis();
+
+    /// Row latencies per stage; the publish stages need publish times in the messages.
+    double getPublishToConsumeMedianMillis();
+    double getPublishToConsume99Millis();
+    double getPublishToConsumeMaxMillis();
+    double getConsumeToBatchMedianMillis();
+    double getConsumeToBatch99Millis();
+    double getConsumeToBatchMaxMillis();
+    double getBatchToCommitMedianMillis();
+    double getBatchToCommit99Millis();
+    double getBatchToCommitMaxMillis();
+    double getPublishToCommitMedianMillis();
+    double getPublishToCommit99Millis();
+    double getPublishToCommitMaxMillis();
+}
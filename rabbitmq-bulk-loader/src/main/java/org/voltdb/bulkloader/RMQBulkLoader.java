@@ -25,24 +25,37 @@
 package org.voltdb.bulkloader;
 
 import java.io.IOException;
-import java.io.Reader;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
-import org.supercsv.io.CsvListReader;
-import org.supercsv.prefs.CsvPreference;
+import org.apache.commons.cli.Options;
 import org.voltcore.logging.VoltLogger;
+import org.voltdb.VoltTable;
 import org.voltdb.client.Client;
 import org.voltdb.client.ClientConfig;
 import org.voltdb.client.ClientFactory;
 import org.voltdb.client.ClientImpl;
 import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ClientStatusListenerExt;
+import org.voltdb.client.ProcCallException;
+import org.voltdb.client.VoltBulkLoader.BulkLoaderSuccessCallback;
 import org.voltdb.utils.BulkLoaderErrorHandler;
 import org.voltdb.utils.CSVDataLoader;
 import org.voltdb.utils.RowWithMetaData;
 
 import com.google_voltpatches.common.net.HostAndPort;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
 
 public class RMQBulkLoader
 {
@@ -52,15 +65,39 @@ public class RMQBulkLoader
           + "rabbitmqloader [options] --amqp {uri} table-name\n"
           + "rabbitmqloader [options] --host server[:port] -p proc-name\n"
           + "rabbitmqloader [options] --amqp {uri} -p proc-name\n"
+          + "rabbitmqloader [options] --host server[:port] --map queue=target ...\n"
+          + "rabbitmqloader [options] --host server[:port] --mapfile mapping-file\n"
           + ".";
     private static final int HELP_WIDTH = 100;
 
     static final VoltLogger LOG = new VoltLogger("RABBITMQLOADER");
 
+    /// Maximum rows a worker inserts from one consumer before serving the next.
+    private static final int ROWS_PER_TURN = 64;
+    /// Longest time an idle worker waits before polling its consumers again.
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
     private final static AtomicLong m_errorCount = new AtomicLong(0);
-    private CSVDataLoader m_loader = null;
+    private final AtomicLong m_deadLetterCount = new AtomicLong(0);
+    private final List<CSVDataLoader> m_loaders = new ArrayList<CSVDataLoader>();
     private Client m_client = null;
-    private ConsumerConnector m_consumer = null;
+    private Connection m_connection = null;
+    private final List<RMQDeliveryConsumer> m_rmqConsumers = new ArrayList<RMQDeliveryConsumer>();
+    private final List<ConsumerConnector> m_consumers = new ArrayList<ConsumerConnector>();
+    private ExecutorService m_callbackExecutor = null;
+    private ScheduledExecutorService m_flushScheduler = null;
+    private BackpressureMonitor m_backpressureMonitor = null;
+    private volatile LoaderMetrics m_metrics = null;
+    /// Publishes failed rows to the dead-letter exchange or null.
+    private volatile DeadLetterPublisher m_deadLetters = null;
+    /// Spill logs by queue, empty without --spill.
+    private final Map<String, SpillLog> m_spillLogs = new ConcurrentHashMap<String, SpillLog>();
+    /// Syncs the spill logs or null.
+    private ScheduledExecutorService m_spillScheduler = null;
+    /// Deduplication caches by queue, empty without --dedup.
+    private final Map<String, DedupCache> m_dedupCaches = new ConcurrentHashMap<String, DedupCache>();
+    /// Reconnect to VoltDB after losing all connections instead of failing.
+    private boolean m_reconnect = false;
 
     /**
      * Bulk loader constructor
@@ -70,29 +107,74 @@ public class RMQBulkLoader
     }
 
     /**
-     * Close the consumer when the app is exiting.
+     * Stop consuming when the app is exiting.
      * @throws InterruptedException
      */
     public void closeConsumer() throws InterruptedException
     {
-        if (m_consumer != null) {
-            m_consumer.stop();
-            m_consumer = null;
+        synchronized (m_consumers) {
+            for (ConsumerConnector consumer : m_consumers) {
+                consumer.stop();
+            }
+            m_consumers.clear();
         }
     }
 
     /**
      * Close all connections and cleanup on both sides.
+     * Outstanding rows are drained before the RabbitMQ channels are closed so
+     * that their deliveries can still be settled.
      */
     public void close()
     {
         try {
             closeConsumer();
-            m_loader.close();
+            if (m_flushScheduler != null) {
+                m_flushScheduler.shutdownNow();
+                m_flushScheduler = null;
+            }
+            for (CSVDataLoader loader : m_loaders) {
+                loader.close();
+            }
+            m_loaders.clear();
+            // Dead letters still settle their deliveries.
+            if (m_deadLetters != null) {
+                m_deadLetters.close();
+                m_deadLetters = null;
+            }
+            // Spilled deliveries are acknowledged once on disk.
+            for (SpillLog spillLog : m_spillLogs.values()) {
+                spillLog.close();
+            }
+            m_spillLogs.clear();
+            if (m_spillScheduler != null) {
+                m_spillScheduler.shutdown();
+                m_spillScheduler = null;
+            }
+            for (RMQDeliveryConsumer rmqConsumer : m_rmqConsumers) {
+                rmqConsumer.close();
+            }
+            m_rmqConsumers.clear();
+            if (m_connection != null) {
+                m_connection.close();
+                m_connection = null;
+            }
             if (m_client != null) {
                 m_client.close();
                 m_client = null;
             }
+            if (m_callbackExecutor != null) {
+                m_callbackExecutor.shutdown();
+                m_callbackExecutor = null;
+            }
+            if (m_backpressureMonitor != null) {
+                m_backpressureMonitor.shutdown();
+                m_backpressureMonitor = null;
+            }
+            if (m_metrics != null) {
+                m_metrics.close();
+                m_metrics = null;
+            }
         }
         catch (Exception ex) {
         }
@@ -111,165 +193,465 @@ public class RMQBulkLoader
             final VoltDBOptions voltOpts) throws Exception
     {
         // Create connection
-        final ClientConfig c_config = new ClientConfig(voltOpts.user, voltOpts.password);
-        c_config.setProcedureCallTimeout(0); // Set procedure all to infinite
+        // Backpressure from VoltDB pauses consumption, or with a spill log it spills.
+        m_backpressureMonitor = new BackpressureMonitor();
+        m_reconnect = (loaderOpts.spill != null);
+        // All streams share one VoltDB client and its connections.
+        m_client = connectVoltDB(voltOpts, m_backpressureMonitor);
+
+        final ErrorHandler errorHandler = new ErrorHandler(loaderOpts.maxerrors);
+        final boolean settleRows = (rmqOpts.ackmode == RMQOptions.AckMode.COMMIT);
+        // Committed rows are always called back to measure round trips.
+        m_callbackExecutor = Executors.newSingleThreadExecutor();
+        m_metrics = new LoaderMetrics(m_errorCount, m_deadLetterCount, m_backpressureMonitor);
+        m_metrics.register();
+        if (loaderOpts.metrics != null) {
+            m_metrics.startHttpServer(loaderOpts.metrics);
+        }
+        if (loaderOpts.maxage != null || loaderOpts.autobatch) {
+            m_flushScheduler = Executors.newSingleThreadScheduledExecutor();
+        }
 
-        m_client = getClient(c_config, voltOpts.servers);
-
-        ClientImpl clientImpl = (ClientImpl) m_client;
-        final BulkLoaderErrorHandler errorHandler = new ErrorHandler(loaderOpts.maxerrors);
-        m_loader = loaderOpts.createCSVLoader(clientImpl, errorHandler);
-        m_loader.setFlushInterval(loaderOpts.flush.intValue(), loaderOpts.flush.intValue());
-        Reader msgReader = new RMQMessageReader(rmqOpts);
-        LOG.info(String.format("RabbitMQ consumer started from %s:%s for %s: %s",
-                               rmqOpts.host, rmqOpts.queue,
-                               loaderOpts.targetType.toString(), loaderOpts.targetName));
-
-        // The reader gets RabbitMQ messages, i.e. CSV lines.
-        // The loader performs the VoltDB inserts.
-        // The consumer iterates parsed CSV data read from RabbitMQ.
-        m_consumer = new ConsumerConnector(msgReader);
-        for (BulkLoaderData data : m_consumer) {
-            try {
-                m_loader.insertRow(data.metaData, data.rowData);
+        final List<BulkLoaderOptions.Mapping> mappings = new ArrayList<BulkLoaderOptions.Mapping>();
+        if (loaderOpts.targetType != null) {
+            mappings.add(new BulkLoaderOptions.Mapping(
+                    rmqOpts.queue, loaderOpts.targetType, loaderOpts.targetName));
+        }
+        mappings.addAll(loaderOpts.mappings);
+
+        m_connection = connectRabbitMQ(rmqOpts);
+        if (loaderOpts.dlx != null) {
+            m_deadLetters = new DeadLetterPublisher(m_connection, loaderOpts.dlx, m_deadLetterCount);
+            m_deadLetters.start();
+        }
+        if (loaderOpts.spill != null) {
+            m_spillScheduler = Executors.newSingleThreadScheduledExecutor();
+            for (BulkLoaderOptions.Mapping mapping : mappings) {
+                if (!m_spillLogs.containsKey(mapping.queue)) {
+                    SpillLog spillLog = new SpillLog(
+                            Paths.get(loaderOpts.spill), mapping.queue,
+                            loaderOpts.spillmax != null ? loaderOpts.spillmax << 20 : null,
+                            m_backpressureMonitor);
+                    spillLog.start(m_spillScheduler);
+                    m_spillLogs.put(mapping.queue, spillLog);
+                    m_metrics.addSpillLog(spillLog);
+                }
             }
-            catch (Exception e) {
-                LOG.error("Error in RabbitMQ consumer", e);
-                System.exit(-1);
+        }
+        if (loaderOpts.dedup) {
+            // Consumers of the same queue share the keys, since a message may be redelivered to any of them.
+            final int keyColumn = loaderOpts.dedupcolumn != null ? loaderOpts.dedupcolumn.intValue() - 1 : -1;
+            for (BulkLoaderOptions.Mapping mapping : mappings) {
+                if (!m_dedupCaches.containsKey(mapping.queue)) {
+                    DedupCache dedupCache = new DedupCache(mapping.queue, keyColumn,
+                                                           loaderOpts.dedupwindow, loaderOpts.dedupmax);
+                    m_dedupCaches.put(mapping.queue, dedupCache);
+                    m_metrics.addDedupCache(dedupCache);
+                }
             }
         }
+
+        // Each stream binds a queue to a loader for its table or procedure.
+        // Each RabbitMQ consumer receives messages, i.e. CSV lines, on its own channel.
+        // Each connector parses the CSV data of one consumer's message bodies.
+        // The workers share the connectors round-robin and perform the inserts.
+        final int channelCount = mappings.size() * rmqOpts.consumers.intValue();
+        final List<LoaderWorker> workers = new ArrayList<LoaderWorker>();
+        for (int i = 0; i < loaderOpts.getThreadCount(channelCount); ++i) {
+            workers.add(new LoaderWorker(i + 1, errorHandler));
+        }
+        synchronized (m_consumers) {
+            for (BulkLoaderOptions.Mapping mapping : mappings) {
+                // Batches are only sized for tables.
+                final boolean autobatch = loaderOpts.autobatch
+                        && mapping.targetType == BulkLoaderOptions.TargetType.TABLE;
+                final CommitCallback successCallback = new CommitCallback(settleRows, m_metrics);
+                final FailureCallback failureCallback = new FailureCallback(errorHandler);
+                CSVDataLoader loader = createLoader(
+                        loaderOpts, mapping, failureCallback, m_callbackExecutor, successCallback);
+                loader.setFlushInterval(loaderOpts.flush.intValue(), loaderOpts.flush.intValue());
+                m_loaders.add(loader);
+                BatchController batchController = null;
+                if (autobatch) {
+                    batchController = new BatchController(
+                            loader, mapping.targetName, getPartitionCount(mapping.targetName),
+                            m_flushScheduler, loaderOpts.batch.intValue(),
+                            loaderOpts.batchmin.intValue(), loaderOpts.batchmax.intValue(),
+                            loaderOpts.batchlatency);
+                    successCallback.setBatchController(batchController);
+                }
+                RowAgeFlusher rowAgeFlusher = null;
+                if (loaderOpts.maxage != null) {
+                    rowAgeFlusher = new RowAgeFlusher(
+                            loader, mapping.targetName, m_flushScheduler, loaderOpts.maxage);
+                    successCallback.setRowAgeFlusher(rowAgeFlusher);
+                    failureCallback.setRowAgeFlusher(rowAgeFlusher);
+                }
+                m_metrics.addStream(mapping.targetName, loader, batchController, loaderOpts.batch.intValue());
+                for (int i = 0; i < rmqOpts.consumers; ++i) {
+                    RMQDeliveryConsumer rmqConsumer = new RMQDeliveryConsumer(
+                            m_connection.createChannel(), rmqOpts, mapping.queue);
+                    final SpillLog spillLog = m_spillLogs.get(mapping.queue);
+                    ConsumerConnector consumer = new ConsumerConnector(
+                            rmqConsumer, loader, batchController, rowAgeFlusher, m_deadLetters, spillLog,
+                            m_dedupCaches.get(mapping.queue));
+                    workers.get(m_consumers.size() % workers.size()).add(consumer);
+                    m_rmqConsumers.add(rmqConsumer);
+                    m_consumers.add(consumer);
+                    m_metrics.addConsumer(rmqConsumer, consumer);
+                    if (spillLog != null) {
+                        rmqConsumer.setDiverter(spillLog);
+                    }
+                    rmqConsumer.start();
+                    if (spillLog == null) {
+                        m_backpressureMonitor.addConsumer(rmqConsumer);
+                    }
+                }
+                LOG.info(String.format("RabbitMQ consumers (%d) started from %s:%s for %s: %s (ack mode: %s)",
+                                       rmqOpts.consumers, rmqOpts.host, mapping.queue,
+                                       mapping.targetType.toString(), mapping.targetName,
+                                       rmqOpts.ackmode));
+            }
+        }
+        for (LoaderWorker worker : workers) {
+            worker.start();
+        }
+        for (LoaderWorker worker : workers) {
+            worker.join();
+        }
         close();
     }
 
     /**
-     * Get connection to servers in cluster.
-     * @param config  VoltDB client configuration
-     * @param servers  server host/port list
-     * @return client  VoltDB client
+     * Connect to VoltDB.
+     * @param voltOpts  VoltDB options
+     * @param statusListener  receives backpressure notifications
+     * @return client
      * @throws IOException
      */
-    public static Client getClient(ClientConfig config, HostAndPort[] servers)
+    protected Client connectVoltDB(final VoltDBOptions voltOpts, final ClientStatusListenerExt statusListener)
             throws IOException
     {
-        final Client client = ClientFactory.createClient(config);
+        final ClientConfig c_config = new ClientConfig(voltOpts.user, voltOpts.password, statusListener);
+        c_config.setProcedureCallTimeout(0); // Set procedure all to infinite
+        if (voltOpts.topologyaware) {
+            // VoltBulkLoader batches rows per partition and sends each batch to
+            // its partition. Connections to all hosts let client affinity send
+            // them straight to the partition leaders instead of through a
+            // forwarding host.
+            c_config.setClientAffinity(true);
+            c_config.setTopologyChangeAware(true);
+        }
+        if (m_reconnect) {
+            // The spill logs take over while VoltDB is down.
+            c_config.setReconnectOnConnectionLoss(true);
+        }
+        return getClient(c_config, voltOpts.servers, voltOpts.topologyaware);
+    }
+
+    /**
+     * Connect to RabbitMQ.
+     * @param rmqOpts  RabbitMQ options
+     * @return connection
+     * @throws IOException
+     */
+    protected Connection connectRabbitMQ(final RMQOptions rmqOpts) throws IOException
+    {
+        final ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(rmqOpts.host);
+        return factory.newConnection();
+    }
+
+    /**
+     * Create the loader for a table or procedure using the VoltDB client.
+     * @param loaderOpts  bulk loader options
+     * @param mapping  queue mapping
+     * @param errorHandler  handles failed rows
+     * @param callbackExecutor  runs the success call-backs
+     * @param successCallback  receives committed rows
+     * @return loader
+     * @throws Exception
+     */
+    protected CSVDataLoader createLoader(
+            final BulkLoaderOptions loaderOpts,
+            final BulkLoaderOptions.Mapping mapping,
+            final BulkLoaderErrorHandler errorHandler,
+            final ExecutorService callbackExecutor,
+            final BulkLoaderSuccessCallback successCallback) throws Exception
+    {
+        return loaderOpts.createCSVLoader(
+                (ClientImpl) m_client, mapping.targetType, mapping.targetName,
+                errorHandler, callbackExecutor, successCallback);
+    }
+
+    /**
+     * Count the partitions VoltBulkLoader batches a table's rows for.
+     * @param table  table name
+     * @return partition count of a partitioned table, or 1
+     */
+    protected int getPartitionCount(final String table)
+    {
         try {
-            for (HostAndPort server : servers) {
-                client.createConnection(server.getHostText(), server.getPort());
+            final VoltTable columns = m_client.callProcedure("@SystemCatalog", "COLUMNS").getResults()[0];
+            boolean partitioned = false;
+            while (!partitioned && columns.advanceRow()) {
+                partitioned = columns.getString("TABLE_NAME").equalsIgnoreCase(table)
+                        && "PARTITION_COLUMN".equals(columns.getString("REMARKS"));
+            }
+            if (!partitioned) {
+                return 1;
             }
+            final VoltTable keys = m_client.callProcedure("@GetPartitionKeys", "INTEGER").getResults()[0];
+            return Math.max(keys.getRowCount(), 1);
         }
-        catch (IOException e) {
-            throw new IOException(String.format("Failed to connect to VoltDB: %s",
-                                                e.getLocalizedMessage()), e);
+        catch (IOException | ProcCallException e) {
+            LOG.warn(String.format("Failed to count the partitions of %s, sizing batches as if it had one.",
+                                   table), e);
+            return 1;
         }
-        return client;
     }
 
-    private static class BulkLoaderData
+    /**
+     * @return metrics while loading or null
+     */
+    public LoaderMetrics getMetrics()
     {
-        public final RowWithMetaData metaData;
-        public final Object[] rowData;
+        return m_metrics;
+    }
 
-        public BulkLoaderData(final RowWithMetaData metaData, Object[] rowData)
+    /**
+     * Receives committed rows to record round trips and row latencies, to
+     * settle their deliveries and/or to measure batch round trips for
+     * automatic batch sizing.
+     * Procedure call-backs run on the call-back executor thread, but table
+     * loaders call back from the VoltDB client threads, each of which calls
+     * back all the rows of a batch in turn. The last response is therefore
+     * tracked per thread.
+     */
+    private static class CommitCallback implements BulkLoaderSuccessCallback
+    {
+        /**
+         * Response whose rows a thread is calling back.
+         */
+        private static class LastResponse
         {
-            this.metaData = metaData;
-            this.rowData = rowData;
+            ClientResponse response = null;
+            /// System.nanoTime() when the response arrived.
+            long commitNanos = 0;
         }
-    }
 
-    private static class ConsumerConnector implements Iterable<BulkLoaderData>
-    {
-        private final Reader m_msgReader;
-        private final CsvPreference m_csvPrefs;
-        private final CsvListReader m_csvReader;
+        private final boolean m_settleRows;
+        private final LoaderMetrics m_metrics;
+        private volatile BatchController m_batchController = null;
+        private volatile RowAgeFlusher m_rowAgeFlusher = null;
+        /// The rows of a batch share a response, recorded once.
+        private final ThreadLocal<LastResponse> m_lastResponse = new ThreadLocal<LastResponse>() {
+            @Override
+            protected LastResponse initialValue()
+            {
+                return new LastResponse();
+            }
+        };
 
-        public ConsumerConnector(final Reader msgReader)
+        public CommitCallback(boolean settleRows, final LoaderMetrics metrics)
         {
-            m_msgReader = msgReader;
-            m_csvPrefs = CsvPreference.STANDARD_PREFERENCE;
-            m_csvReader = new CsvListReader(m_msgReader, m_csvPrefs);
+            m_settleRows = settleRows;
+            m_metrics = metrics;
         }
 
-        public void stop()
+        public void setBatchController(final BatchController batchController)
         {
-            try {
-                m_msgReader.close();
+            m_batchController = batchController;
+        }
+
+        public void setRowAgeFlusher(final RowAgeFlusher rowAgeFlusher)
+        {
+            m_rowAgeFlusher = rowAgeFlusher;
+        }
+
+        @Override
+        public void success(Object rowHandle, ClientResponse response)
+        {
+            final LastResponse last = m_lastResponse.get();
+            final boolean newBatch = response != last.response;
+            if (newBatch) {
+                last.response = response;
+                last.commitNanos = System.nanoTime();
+                m_metrics.recordRoundTrip(response.getClientRoundtripNanos());
             }
-            catch (IOException e) {
-                LOG.error("Failed to close message reader.", e);
+            m_metrics.recordCommit((TracedRow) rowHandle, last.commitNanos);
+            final BatchController batchController = m_batchController;
+            if (batchController != null) {
+                batchController.onCommitted(response, newBatch);
+            }
+            final RowAgeFlusher rowAgeFlusher = m_rowAgeFlusher;
+            if (rowAgeFlusher != null) {
+                rowAgeFlusher.onCalledBack(((TracedRow) rowHandle).batchedNanos);
+            }
+            if (m_settleRows) {
+                // Committed rows settle their deliveries through the row meta-data call-back.
+                ((RowWithMetaData) rowHandle).success(rowHandle, response);
             }
         }
+    }
+
+    /**
+     * Receives a loader's failed rows to note them with the row age flusher
+     * and passes them on to the shared error handler.
+     */
+    private static class FailureCallback implements BulkLoaderErrorHandler
+    {
+        private final BulkLoaderErrorHandler m_errorHandler;
+        private volatile RowAgeFlusher m_rowAgeFlusher = null;
+
+        public FailureCallback(final BulkLoaderErrorHandler errorHandler)
+        {
+            m_errorHandler = errorHandler;
+        }
+
+        public void setRowAgeFlusher(final RowAgeFlusher rowAgeFlusher)
+        {
+            m_rowAgeFlusher = rowAgeFlusher;
+        }
 
         @Override
-        public Iterator<BulkLoaderData> iterator()
+        public boolean handleError(RowWithMetaData metaData, ClientResponse response, String error)
         {
-            return new ConnectorDataIterator();
+            final RowAgeFlusher rowAgeFlusher = m_rowAgeFlusher;
+            if (rowAgeFlusher != null) {
+                rowAgeFlusher.onCalledBack(((TracedRow) metaData).batchedNanos);
+            }
+            return m_errorHandler.handleError(metaData, response, error);
         }
 
-        private class ConnectorDataIterator implements Iterator<BulkLoaderData>
+        @Override
+        public boolean hasReachedErrorLimit()
         {
-            /// Caching the data for one row allows hasNext() to look ahead.
-            private BulkLoaderData m_rowCache = null;
-            /// Row count.
-            private int m_count = 0;
-            /// Set to true when done.
-            private boolean m_done = false;
+            return m_errorHandler.hasReachedErrorLimit();
+        }
+    }
 
-            //=== Iterator required overrides
+    /**
+     * Serves a fixed set of consumers round-robin, inserting at most
+     * ROWS_PER_TURN ready rows from one consumer before moving on to the
+     * next, so that a busy stream cannot starve the others. A worker with
+     * nothing to do parks until one of its consumers receives a delivery.
+     */
+    private static class LoaderWorker implements Runnable
+    {
+        private final Thread m_thread;
+        private final ErrorHandler m_errorHandler;
+        private final List<ConsumerConnector> m_connectors = new ArrayList<ConsumerConnector>();
 
-            @Override
-            public boolean hasNext()
-            {
-                return cacheRowAsNeeded();
-            }
+        public LoaderWorker(int id, final ErrorHandler errorHandler)
+        {
+            m_thread = new Thread(this, String.format("RabbitMQ loader worker %d", id));
+            m_errorHandler = errorHandler;
+        }
 
-            @Override
-            public synchronized BulkLoaderData next()
-            {
-                // Cache a row if hasNext() wasn't previously called.
-                cacheRowAsNeeded();
-                // Return the row and drop it from the cache.
-                BulkLoaderData rowData = m_rowCache;
-                m_rowCache = null;
-                return rowData;
-            }
+        /**
+         * Assign a consumer. Call before start().
+         * @param connector  consumer connector
+         */
+        public void add(final ConsumerConnector connector)
+        {
+            m_connectors.add(connector);
+            connector.setDeliveryListener(new Runnable() {
+                @Override
+                public void run()
+                {
+                    LockSupport.unpark(m_thread);
+                }
+            });
+        }
 
-            @Override
-            public void remove()
-            {
-                throw new UnsupportedOperationException();
-            }
+        public void start()
+        {
+            m_thread.start();
+        }
 
-            //=== Private methods
+        public void join() throws InterruptedException
+        {
+            m_thread.join();
+        }
 
-            /**
-             * Check if a row is already cached or attempt to cache the next one.
-             * Used for both hasNext() and next().
-             * @return true if a row is available.
-             */
-            private synchronized boolean cacheRowAsNeeded()
-            {
-                if (!m_done && m_rowCache == null) {
+        @Override
+        public void run()
+        {
+            while (!m_connectors.isEmpty()) {
+                boolean idle = true;
+                Iterator<ConsumerConnector> iter = m_connectors.iterator();
+                while (iter.hasNext()) {
+                    ConsumerConnector connector = iter.next();
                     try {
-                        // Cache a row to support hasNext() followed by next().
-                        List<String> rowStringList = m_csvReader.read();
-                        if (rowStringList != null) {
-                            // Cache the next row.
-                            m_count++;
-                            String rowText = m_csvReader.getUntokenizedRow();
-                            RowWithMetaData metaData = new RowWithMetaData(rowText, m_count);
-                            Object[] rowData = rowStringList.toArray();
-                            m_rowCache = new BulkLoaderData(metaData, rowData);
+                        for (int i = 0; i < ROWS_PER_TURN; ++i) {
+                            ConsumerConnector.BulkLoaderData data = connector.poll();
+                            if (data == null) {
+                                break;
+                            }
+                            idle = false;
+                            try {
+                                connector.insertRow(data);
+                            }
+                            catch (RuntimeException e) {
+                                // A row the loader cannot take fails alone.
+                                m_errorHandler.failRow(data.metaData, e.toString());
+                            }
                         }
                     }
                     catch (IOException e) {
-                        LOG.error("Exception while reading the next RabbitMQ message.", e);
-                        m_rowCache = null;
+                        LOG.error(String.format("Failed to read from RabbitMQ queue %s.", connector.getQueue()), e);
+                        connector.stop();
+                    }
+                    catch (Exception e) {
+                        LOG.error("Error in RabbitMQ consumer", e);
+                        System.exit(-1);
                     }
-                    m_done = (m_rowCache == null);
+                    if (connector.isDone()) {
+                        iter.remove();
+                    }
+                }
+                if (idle) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get connection to servers in cluster.
+     * @param config  VoltDB client configuration
+     * @param servers  server host/port list
+     * @param topologyAware  connect to one server and let the client discover the rest
+     * @return client  VoltDB client
+     * @throws IOException
+     */
+    public static Client getClient(ClientConfig config, HostAndPort[] servers, boolean topologyAware)
+            throws IOException
+    {
+        final Client client = ClientFactory.createClient(config);
+        IOException failure = null;
+        for (HostAndPort server : servers) {
+            try {
+                client.createConnection(server.getHostText(), server.getPort());
+                if (topologyAware) {
+                    return client;
+                }
+            }
+            catch (IOException e) {
+                if (!topologyAware) {
+                    throw new IOException(String.format("Failed to connect to VoltDB: %s",
+                                                        e.getLocalizedMessage()), e);
                 }
-                return !m_done;
+                // Try the next server.
+                failure = e;
             }
         }
+        if (failure != null) {
+            throw new IOException(String.format("Failed to connect to VoltDB: %s",
+                                                failure.getLocalizedMessage()), failure);
+        }
+        return client;
     }
 
     private static boolean isFatalStatus(byte status)
@@ -278,6 +660,15 @@ public class RMQBulkLoader
 
     }
 
+    /**
+     * @return true if VoltDB could not be reached and the row may not have been loaded
+     */
+    private static boolean isUnreachableStatus(byte status)
+    {
+        return (status == ClientResponse.CONNECTION_LOST || status == ClientResponse.CONNECTION_TIMEOUT
+                || status == ClientResponse.SERVER_UNAVAILABLE || status == ClientResponse.RESPONSE_UNKNOWN);
+    }
+
     public class ErrorHandler implements BulkLoaderErrorHandler
     {
         private final long m_maxerrors;
@@ -290,7 +681,26 @@ public class RMQBulkLoader
         @Override
         public boolean handleError(RowWithMetaData metaData, ClientResponse response, String error)
         {
+            if (response != null && isUnreachableStatus(response.getStatus())
+                    && respill((TracedRow) metaData)) {
+                return false;
+            }
+            final DeadLetterPublisher deadLetters = m_deadLetters;
+            if (deadLetters != null && response != null && response.getStatus() != ClientResponse.SUCCESS
+                    && !isFatalStatus(response.getStatus())) {
+                deadLetter(deadLetters, (TracedRow) metaData, response.getStatus(), error);
+                return false;
+            }
             boolean okay = false;
+            if (metaData.procedureCallback != null) {
+                // Reject the delivery that carried the failed row.
+                try {
+                    metaData.procedureCallback.clientCallback(response);
+                }
+                catch (Exception e) {
+                    LOG.error("Failed to settle the RabbitMQ delivery for a failed row.", e);
+                }
+            }
             if (response != null) {
                 byte status = response.getStatus();
                 if (status != ClientResponse.SUCCESS) {
@@ -310,6 +720,54 @@ public class RMQBulkLoader
             return okay;
         }
 
+        /**
+         * Fail a row that the loader did not accept. It is dead-lettered if
+         * there is a dead-letter exchange, or else rejected and counted as an
+         * error.
+         * @param row  row
+         * @param error  reason
+         */
+        public void failRow(final TracedRow row, final String error)
+        {
+            final DeadLetterPublisher deadLetters = m_deadLetters;
+            if (deadLetters != null) {
+                deadLetter(deadLetters, row, null, error);
+                return;
+            }
+            LOG.error(String.format("Failed to insert row: %s: %s", row.rawLine, error));
+            row.getRowCallback().settle(false);
+            if (tooManyErrors(m_errorCount.incrementAndGet())) {
+                try {
+                    LOG.error("RabbitMQ bulk loader will exit.");
+                    closeConsumer();
+                }
+                catch (InterruptedException ex) {
+                    // Ignore
+                }
+            }
+        }
+
+        /**
+         * Spill a row that did not reach VoltDB, to load it again later.
+         * @param row  row
+         * @return false if there is no spill log or it is full
+         */
+        private boolean respill(final TracedRow row)
+        {
+            final ConsumerConnector.RowCallback callback = row.getRowCallback();
+            final SpillLog spillLog = m_spillLogs.get(callback.getQueue());
+            return spillLog != null && spillLog.append(row.rawLine, callback);
+        }
+
+        private void deadLetter(final DeadLetterPublisher deadLetters, final TracedRow row,
+                                final Byte status, final String error)
+        {
+            final ConsumerConnector.RowCallback callback = row.getRowCallback();
+            LOG.warn(String.format("Dead-lettering row at line %d from queue %s: %s: %s",
+                                   callback.getLine(), callback.getQueue(), row.rawLine, error));
+            deadLetters.publishRow(callback.getQueue(), callback.getLine(), row.rawLine, status, error, callback);
+        }
+
         private boolean tooManyErrors(long errorCount)
         {
             return (m_maxerrors > 0 && errorCount > m_maxerrors);
@@ -322,6 +780,39 @@ public class RMQBulkLoader
         }
     }
 
+    /**
+     * Factory method to create the checks of options that combine the bulk
+     * loader and RabbitMQ option sets. Parse it after both.
+     * @param loaderOpts  bulk loader option set
+     * @param rmqOpts  RabbitMQ consumer option set
+     * @return option checks
+     */
+    public static CLIDriver.CLISpec createCLISpecForTarget(final BulkLoaderCLISpec loaderOpts,
+                                                           final RMQCLISpec rmqOpts)
+    {
+        // A table or procedure argument is loaded from the --queue queue.
+        return new CLIDriver.CLISpec() {
+            @Override
+            public void preParse(Options options)
+            {
+            }
+
+            @Override
+            public void postParse(CLIDriver driver)
+            {
+                if (loaderOpts.opts.targetType != null && rmqOpts.opts.queue == null) {
+                    driver.addError("A queue is required to load a %s: --queue", loaderOpts.opts.targetType);
+                }
+                if (loaderOpts.opts.spill != null && rmqOpts.opts.ackmode != RMQOptions.AckMode.COMMIT) {
+                    driver.addError("Spilling requires acknowledging on commit: --ackmode commit");
+                }
+                if (loaderOpts.opts.dedup && rmqOpts.opts.ackmode != RMQOptions.AckMode.COMMIT) {
+                    driver.addError("Deduplication requires acknowledging on commit: --ackmode commit");
+                }
+            }
+        };
+    }
+
     /**
      * RabbitMQ bulk loader CLI main
      *
@@ -333,13 +824,15 @@ public class RMQBulkLoader
         // Set up and parse the CLI.
         final BulkLoaderCLISpec loaderOpts = new BulkLoaderCLISpec();
         // Call the factory method to create an option set tuned for RabbitMQ consumers.
-        final RMQCLISpec rmqOpts = RMQCLISpec.createCLISpecForConsumer();
+        // The queue may instead come from --map or --mapfile.
+        final RMQCLISpec rmqOpts = RMQCLISpec.createCLISpecForConsumer(false);
         final VoltDBCLISpec voltOpts = new VoltDBCLISpec();
+        final CLIDriver.CLISpec targetOpts = createCLISpecForTarget(loaderOpts, rmqOpts);
         final CLIDriver.HelpData helpData = new CLIDriver.HelpData();
         helpData.syntax = HELP_SYNTAX;
         helpData.header = HELP_HEADER;
         helpData.width = HELP_WIDTH;
-        CLIDriver.parse(helpData, args, loaderOpts, rmqOpts, voltOpts);
+        CLIDriver.parse(helpData, args, loaderOpts, rmqOpts, voltOpts, targetOpts);
 
         try {
             final RMQBulkLoader loader = new RMQBulkLoader();
@@ -0,0 +1,102 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * Raw text of a CSV row for RowWithMetaData, which is only needed to report
+ * a failed row. It refers to the row in its message body and decodes it when
+ * printed. Rows of compressed bodies are found again by line number.
+ */
+class RecordText
+{
+    private final byte[] m_body;
+    private final int m_offset;
+    private final int m_length;
+    private final Compression m_compression;
+    private final int m_line;
+
+    /**
+     * Refer to a row in an uncompressed body.
+     * @param body  message body
+     * @param offset  row offset
+     * @param length  row length
+     */
+    public RecordText(final byte[] body, int offset, int length)
+    {
+        m_body = body;
+        m_offset = offset;
+        m_length = length;
+        m_compression = null;
+        m_line = 0;
+    }
+
+    /**
+     * Refer to a row in a compressed body.
+     * @param body  compressed message body
+     * @param compression  body compression
+     * @param line  line where the row starts
+     */
+    public RecordText(final byte[] body, final Compression compression, int line)
+    {
+        m_body = body;
+        m_offset = 0;
+        m_length = 0;
+        m_compression = compression;
+        m_line = line;
+    }
+
+    @Override
+    public String toString()
+    {
+        if (m_compression == null) {
+            return new String(m_body, m_offset, m_length, StandardCharsets.UTF_8);
+        }
+        try {
+            InputStream input = m_compression.decompress(new ByteArrayInputStream(m_body));
+            try {
+                CSVByteParser parser = new CSVByteParser();
+                parser.reset(input);
+                while (parser.nextRecord()) {
+                    if (parser.getRecordLine() == m_line) {
+                        return parser.getRecordText();
+                    }
+                }
+            }
+            finally {
+                input.close();
+            }
+        }
+        catch (IOException | ParseException e) {
+            // Fall through
+        }
+        return String.format("(line %d of %s message)", m_line, m_compression);
+    }
+}
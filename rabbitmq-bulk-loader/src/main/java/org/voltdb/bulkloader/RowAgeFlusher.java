@@ -0,0 +1,217 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltdb.utils.CSVDataLoader;
+
+/**
+ * Flushes a loader's partial batches once the oldest row not yet flushed
+ * reaches a maximum age. Full batches are sent by the loader as soon as
+ * they fill, so this bounds the wait of rows in partial batches, whether
+ * traffic is quiet or only some partitions are busy.
+ *
+ * Rows are counted from insert until their call-back, in slots of a
+ * sixteenth of the maximum age, so the check sees whether a row older than
+ * the deadline is still waiting: busy partitions fill and send their
+ * batches and need no flush. Rows inserted before the last flush went out
+ * with it. A flush may therefore come up to a slot early but never late.
+ * A check is scheduled for the deadline of the oldest unflushed row, so
+ * nothing runs while no rows are waiting.
+ */
+class RowAgeFlusher implements Runnable
+{
+    private static final int SLOTS_PER_AGE = 16;
+
+    private final CSVDataLoader m_loader;
+    private final String m_name;
+    private final ScheduledExecutorService m_scheduler;
+    private final long m_maxAgeNanos;
+    private final long m_slotNanos;
+    /// System.nanoTime() where slot 0 starts.
+    private final long m_originNanos = System.nanoTime();
+    /// Rows not yet called back per slot of insert time. -1 marks a slot being removed.
+    private final ConcurrentSkipListMap<Long, AtomicLong> m_pending = new ConcurrentSkipListMap<Long, AtomicLong>();
+    /// System.nanoTime() when the last forced flush started.
+    private volatile long m_flushedNanos = m_originNanos;
+    /// Insert time of a row that was inserted while a flush started, or 0 for none.
+    private final AtomicLong m_missed = new AtomicLong(0);
+    /// Set while a check is scheduled.
+    private final AtomicBoolean m_scheduled = new AtomicBoolean(false);
+
+    /**
+     * @param loader  loader to flush
+     * @param name  table or procedure name for reporting
+     * @param scheduler  scheduler that runs the checks
+     * @param maxAgeMillis  maximum row age in milliseconds
+     */
+    public RowAgeFlusher(final CSVDataLoader loader, final String name,
+                         final ScheduledExecutorService scheduler, long maxAgeMillis)
+    {
+        m_loader = loader;
+        m_name = name;
+        m_scheduler = scheduler;
+        m_maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+        m_slotNanos = Math.max(m_maxAgeNanos / SLOTS_PER_AGE, 1);
+    }
+
+    /**
+     * Note a row about to be inserted and schedule a check unless one is.
+     * @param batchedNanos  the row's insert time
+     */
+    public void onInsert(long batchedNanos)
+    {
+        final long slot = slotOf(batchedNanos);
+        while (true) {
+            AtomicLong count = m_pending.get(slot);
+            if (count == null) {
+                final AtomicLong added = new AtomicLong(0);
+                count = m_pending.putIfAbsent(slot, added);
+                if (count == null) {
+                    count = added;
+                }
+            }
+            final long rows = count.get();
+            if (rows >= 0 && count.compareAndSet(rows, rows + 1)) {
+                break;
+            }
+            if (rows < 0) {
+                m_pending.remove(slot, count);
+            }
+        }
+        if (m_scheduled.compareAndSet(false, true)) {
+            schedule(m_maxAgeNanos);
+        }
+    }
+
+    /**
+     * Note a row the loader took. A flush that started while it was
+     * inserted may have missed it.
+     * @param batchedNanos  the row's insert time
+     */
+    public void onInserted(long batchedNanos)
+    {
+        if (batchedNanos - m_flushedNanos < 0) {
+            m_missed.compareAndSet(0, batchedNanos | 1);
+        }
+    }
+
+    /**
+     * Note a row that was called back, or that the loader did not take.
+     * @param batchedNanos  the row's insert time
+     */
+    public void onCalledBack(long batchedNanos)
+    {
+        final AtomicLong count = m_pending.get(slotOf(batchedNanos));
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        final long now = System.nanoTime();
+        long oldest = getOldestUnflushed(now);
+        if (oldest == 0) {
+            m_scheduled.set(false);
+            // A row inserted meanwhile saw the check scheduled.
+            oldest = getOldestUnflushed(now);
+            if (oldest == 0 || !m_scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+        final long age = now - oldest;
+        if (age < m_maxAgeNanos) {
+            schedule(m_maxAgeNanos - age);
+            return;
+        }
+        m_flushedNanos = now;
+        m_missed.set(0);
+        try {
+            m_loader.flush();
+        }
+        catch (ExecutionException e) {
+            RMQBulkLoader.LOG.warn(String.format("Failed to flush rows for %s.", m_name), e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Check the rows inserted since.
+        schedule(m_maxAgeNanos);
+    }
+
+    /**
+     * @param now  System.nanoTime()
+     * @return insert time of the oldest row not yet called back or flushed, or 0 for none
+     */
+    private long getOldestUnflushed(long now)
+    {
+        // Drop empty slots that no longer get rows.
+        final long current = slotOf(now);
+        Map.Entry<Long, AtomicLong> head;
+        while ((head = m_pending.firstEntry()) != null && head.getKey() < current - 1
+                && head.getValue().compareAndSet(0, -1)) {
+            m_pending.remove(head.getKey(), head.getValue());
+        }
+        final long flushed = m_flushedNanos;
+        long oldest = 0;
+        for (Map.Entry<Long, AtomicLong> entry : m_pending.tailMap(slotOf(flushed)).entrySet()) {
+            if (entry.getValue().get() > 0) {
+                final long start = m_originNanos + entry.getKey() * m_slotNanos;
+                oldest = (start - flushed > 0 ? start : flushed) | 1;
+                break;
+            }
+        }
+        final long missed = m_missed.get();
+        if (missed != 0 && (oldest == 0 || missed - oldest < 0)) {
+            oldest = missed;
+        }
+        return oldest;
+    }
+
+    private long slotOf(long nanos)
+    {
+        return (nanos - m_originNanos) / m_slotNanos;
+    }
+
+    private void schedule(long delayNanos)
+    {
+        try {
+            m_scheduler.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            // Shutting down.
+        }
+    }
+}
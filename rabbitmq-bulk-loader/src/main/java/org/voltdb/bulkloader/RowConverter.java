@@ -0,0 +1,168 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.math.BigDecimal;
+
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Converts parsed CSV fields to the column or parameter types of a loader's
+ * table or procedure, as reported by CSVDataLoader.getColumnTypes(), which
+ * the loaders look up in the catalog when they are created. Conversion runs
+ * on the worker threads so that VoltDB's loaders are handed typed values.
+ *
+ * Values that do not convert cleanly are passed on as strings so that
+ * VoltDB's own conversion, e.g. of trimmed or hex values, and its error
+ * reporting still apply.
+ */
+class RowConverter
+{
+    /**
+     * Converts one column.
+     */
+    private static abstract class ColumnConverter
+    {
+        /**
+         * @param value  non-null field value
+         * @return converted value or the original value if it doesn't convert
+         */
+        abstract Object convert(String value);
+    }
+
+    private static final ColumnConverter STRING_CONVERTER = new ColumnConverter() {
+        @Override
+        Object convert(String value)
+        {
+            return value;
+        }
+    };
+
+    private static final ColumnConverter INTEGER_CONVERTER = new ColumnConverter() {
+        @Override
+        Object convert(String value)
+        {
+            try {
+                return Long.valueOf(value);
+            }
+            catch (NumberFormatException e) {
+                return value;
+            }
+        }
+    };
+
+    private static final ColumnConverter FLOAT_CONVERTER = new ColumnConverter() {
+        @Override
+        Object convert(String value)
+        {
+            try {
+                return Double.valueOf(value);
+            }
+            catch (NumberFormatException e) {
+                return value;
+            }
+        }
+    };
+
+    private static final ColumnConverter DECIMAL_CONVERTER = new ColumnConverter() {
+        @Override
+        Object convert(String value)
+        {
+            try {
+                return new BigDecimal(value);
+            }
+            catch (NumberFormatException e) {
+                return value;
+            }
+        }
+    };
+
+    private static final ColumnConverter TIMESTAMP_CONVERTER = new ColumnConverter() {
+        @Override
+        Object convert(String value)
+        {
+            try {
+                return new TimestampType(value);
+            }
+            catch (IllegalArgumentException e) {
+                return value;
+            }
+        }
+    };
+
+    private final ColumnConverter[] m_converters;
+
+    /**
+     * @param columnTypes  target column or parameter types
+     */
+    public RowConverter(final VoltType[] columnTypes)
+    {
+        m_converters = new ColumnConverter[columnTypes != null ? columnTypes.length : 0];
+        for (int i = 0; i < m_converters.length; ++i) {
+            m_converters[i] = getConverter(columnTypes[i]);
+        }
+    }
+
+    /**
+     * Convert the fields of the parser's current record. Records with the
+     * wrong number of fields are left as strings for VoltDB to reject.
+     * @param parser  parser positioned on a record
+     * @return row values
+     */
+    public Object[] convert(final CSVByteParser parser)
+    {
+        final int count = parser.getFieldCount();
+        final Object[] values = new Object[count];
+        final boolean convert = (count == m_converters.length);
+        for (int i = 0; i < count; ++i) {
+            String value = parser.getString(i);
+            values[i] = (convert && value != null) ? m_converters[i].convert(value) : value;
+        }
+        return values;
+    }
+
+    private static ColumnConverter getConverter(final VoltType type)
+    {
+        if (type == null) {
+            return STRING_CONVERTER;
+        }
+        switch (type) {
+        case TINYINT:
+        case SMALLINT:
+        case INTEGER:
+        case BIGINT:
+            return INTEGER_CONVERTER;
+        case FLOAT:
+            return FLOAT_CONVERTER;
+        case DECIMAL:
+            return DECIMAL_CONVERTER;
+        case TIMESTAMP:
+            return TIMESTAMP_CONVERTER;
+        default:
+            return STRING_CONVERTER;
+        }
+    }
+}
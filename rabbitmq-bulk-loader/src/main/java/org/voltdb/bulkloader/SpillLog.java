@@ -0,0 +1,869 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Local log that keeps a queue draining while VoltDB is unavailable or
+ * backpressure persists. Deliveries are appended to memory-mapped segment
+ * files and acknowledged once the segment is forced to disk, and the
+ * connectors load them from the log once VoltDB catches up. While the log
+ * holds unread records every new delivery goes through it, which keeps the
+ * queue's order.
+ *
+ * A record is [length][CRC-32][payload] and the payload holds flags such
+ * as redelivered, the content-encoding, the message-id, the publish time,
+ * the lines a dead letter marks as loaded and the body. A
+ * segment ends with a length of -1 or, where nothing was written yet,
+ * zeros. Records are read in order and complete when their rows do, in any
+ * order; the position up to which all have completed is checkpointed about
+ * once a second by writing a new checkpoint file and renaming it over the
+ * old one, and the segments before it are deleted. After a crash the
+ * records after the checkpoint are replayed, up to the first one that is
+ * torn or fails its CRC, so delivery is at least once.
+ */
+class SpillLog implements RMQDeliveryConsumer.Diverter
+{
+    /// Segment size unless the disk limit calls for smaller ones.
+    private static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    private static final int MIN_SEGMENT_SIZE = 1 << 20;
+    /// Segment header: magic number and format version.
+    private static final int SEGMENT_MAGIC = 0x564c5350;
+    private static final int SEGMENT_VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    /// Record header: payload length and CRC-32.
+    private static final int RECORD_HEADER_SIZE = 8;
+    /// Record flag of a redelivered message.
+    private static final byte REDELIVERED_FLAG = 1;
+    private static final int END_OF_SEGMENT = -1;
+    /// Room kept at the end of each segment for END_OF_SEGMENT.
+    private static final int END_MARKER_SIZE = 4;
+    private static final long SYNC_MILLIS = 10;
+    private static final long CHECKPOINT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String LOCK_FILE = "lock";
+
+    /**
+     * A spilled delivery read back from the log. The envelope's delivery tag
+     * is a sequence number. Records of redelivered messages and records
+     * recovered after a restart are marked as redelivered.
+     */
+    static class Record extends RMQDeliveryConsumer.Delivery
+    {
+        /// Position after the record.
+        private final long m_end;
+        /// Guarded by the log.
+        private boolean m_completed = false;
+
+        Record(final Envelope envelope, final AMQP.BasicProperties properties, final byte[] body, long end)
+        {
+            super(envelope, properties, body);
+            m_end = end;
+        }
+    }
+
+    /**
+     * Settlement to run once a record is on disk.
+     */
+    private static class PendingSettlement
+    {
+        final long end;
+        final DeadLetterPublisher.Settlement settlement;
+
+        PendingSettlement(long end, final DeadLetterPublisher.Settlement settlement)
+        {
+            this.end = end;
+            this.settlement = settlement;
+        }
+    }
+
+    private final String m_queue;
+    private final Path m_directory;
+    private final BackpressureMonitor m_monitor;
+    private final int m_segmentSize;
+    private final long m_maxSegments;
+    private final FileChannel m_lockChannel;
+    private final FileLock m_lock;
+    /// Spilled deliveries and rows.
+    private final AtomicLong m_spilledCount = new AtomicLong(0);
+    /// Notified when more records can be read.
+    private final List<Runnable> m_readListeners = new CopyOnWriteArrayList<Runnable>();
+
+    // The rest is guarded by this. Positions are (segment << 32) | offset.
+    private final TreeMap<Long, MappedByteBuffer> m_segments = new TreeMap<Long, MappedByteBuffer>();
+    private long m_writePosition;
+    private long m_syncedPosition;
+    private long m_readPosition;
+    /// All records before this position have completed.
+    private long m_checkpointPosition;
+    private long m_writtenCheckpoint;
+    private long m_lastCheckpointNanos = System.nanoTime();
+    /// Records before this position were recovered and may have been loaded before.
+    private final long m_recoveredEnd;
+    private final ArrayDeque<Record> m_readRecords = new ArrayDeque<Record>();
+    private final ArrayDeque<PendingSettlement> m_pendingSettlements = new ArrayDeque<PendingSettlement>();
+    private long m_readCount = 0;
+    private boolean m_spilling = false;
+    private boolean m_full = false;
+    private boolean m_closed = false;
+    private ScheduledFuture<?> m_syncTask = null;
+    /// Segment after the one being written, created ahead by the sync task.
+    private MappedByteBuffer m_nextSegment = null;
+    private boolean m_preallocationFailed = false;
+
+    /**
+     * Open the log of a queue, recovering what a previous run left behind.
+     * @param directory  spill directory shared by all queues
+     * @param queue  queue name
+     * @param maxBytes  disk space limit in bytes or null for none
+     * @param monitor  decides when to spill
+     * @throws IOException  if the log is locked by another loader or damaged
+     */
+    public SpillLog(final Path directory, final String queue, final Long maxBytes,
+                    final BackpressureMonitor monitor) throws IOException
+    {
+        m_queue = queue;
+        m_directory = directory.resolve(getDirectoryName(queue));
+        m_monitor = monitor;
+        m_segmentSize = maxBytes == null
+                ? DEFAULT_SEGMENT_SIZE
+                : (int) Math.max(Math.min(maxBytes / 4, DEFAULT_SEGMENT_SIZE), MIN_SEGMENT_SIZE);
+        m_maxSegments = maxBytes == null ? Long.MAX_VALUE : Math.max(maxBytes / m_segmentSize, 2);
+        Files.createDirectories(m_directory);
+        m_lockChannel = FileChannel.open(m_directory.resolve(LOCK_FILE),
+                                         StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        m_lock = m_lockChannel.tryLock();
+        if (m_lock == null) {
+            m_lockChannel.close();
+            throw new IOException(String.format("Spill log %s is in use by another loader.", m_directory));
+        }
+        try {
+            m_recoveredEnd = recover();
+        }
+        catch (IOException e) {
+            m_lockChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Start forcing appended records to disk and checkpointing.
+     * @param scheduler  scheduler that runs the sync task
+     */
+    public synchronized void start(final ScheduledExecutorService scheduler)
+    {
+        m_syncTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    sync();
+                }
+                catch (RuntimeException e) {
+                    RMQBulkLoader.LOG.error(String.format("Failed to sync the spill log of queue %s.", m_queue), e);
+                }
+            }
+        }, SYNC_MILLIS, SYNC_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add a listener to run when more records can be read, e.g. to wake up
+     * a thread that polls the log.
+     * @param listener  listener
+     */
+    public void addReadListener(final Runnable listener)
+    {
+        m_readListeners.add(listener);
+    }
+
+    /**
+     * @return name of the queue the log spills
+     */
+    public String getQueue()
+    {
+        return m_queue;
+    }
+
+    /**
+     * @return deliveries and rows spilled
+     */
+    public long getSpilledCount()
+    {
+        return m_spilledCount.get();
+    }
+
+    /**
+     * @return bytes of segments not yet deleted, from the checkpoint to the end of the log
+     */
+    public synchronized long getBacklogBytes()
+    {
+        return (segmentOf(m_writePosition) - segmentOf(m_checkpointPosition)) * (long) m_segmentSize
+                + offsetOf(m_writePosition) - offsetOf(m_checkpointPosition);
+    }
+
+    /**
+     * @return true while VoltDB should not be sent more rows
+     */
+    public boolean isHolding()
+    {
+        return m_monitor.shouldSpill();
+    }
+
+    /**
+     * Spill a delivery if VoltDB cannot take it now or the log has unread
+     * records. It is acknowledged once it is on disk.
+     */
+    @Override
+    public boolean divert(final RMQDeliveryConsumer consumer, final RMQDeliveryConsumer.Delivery delivery)
+    {
+        final DeliveryTracker tracker = consumer.getTracker();
+        if (tracker == null) {
+            return false;
+        }
+        final long deliveryTag = delivery.envelope.getDeliveryTag();
+        final AMQP.BasicProperties properties = delivery.properties;
+        synchronized (this) {
+            if (m_closed) {
+                return false;
+            }
+            if (m_readPosition == m_writePosition && !m_monitor.shouldSpill()) {
+                if (m_spilling) {
+                    m_spilling = false;
+                    RMQBulkLoader.LOG.info(String.format(
+                            "Spill log of queue %s is drained, loading deliveries directly.", m_queue));
+                }
+                return false;
+            }
+            final boolean spilled = append(
+                    delivery.envelope.isRedeliver(),
+                    properties != null ? properties.getContentEncoding() : null,
+                    properties != null ? properties.getMessageId() : null,
+                    delivery.getPublishMicros(), DeadLetterPublisher.getSkipLines(properties), delivery.body,
+                    new DeadLetterPublisher.Settlement() {
+                        @Override
+                        public void settle(boolean success)
+                        {
+                            tracker.complete(deliveryTag, success);
+                        }
+                    });
+            if (spilled && !m_spilling) {
+                m_spilling = true;
+                RMQBulkLoader.LOG.info(String.format("Spilling deliveries from queue %s to %s.",
+                                                     m_queue, m_directory));
+            }
+            return spilled;
+        }
+    }
+
+    /**
+     * Spill a row that VoltDB could not be reached for, as a one-line
+     * message. The settlement runs once it is on disk.
+     * @param rowText  row text
+     * @param settlement  settles the row
+     * @return false if the log is full or closed
+     */
+    public synchronized boolean append(final Object rowText, final DeadLetterPublisher.Settlement settlement)
+    {
+        if (m_closed) {
+            return false;
+        }
+        return append(false, null, null, -1, 0, String.valueOf(rowText).getBytes(StandardCharsets.UTF_8),
+                      settlement);
+    }
+
+    /**
+     * Get the next record that is on disk.
+     * @return record or null if none is ready
+     */
+    public synchronized Record poll()
+    {
+        while (m_readPosition < m_syncedPosition) {
+            final long segment = segmentOf(m_readPosition);
+            final int offset = offsetOf(m_readPosition);
+            final ByteBuffer buffer = m_segments.get(segment).duplicate();
+            final int length = buffer.getInt(offset);
+            if (length == END_OF_SEGMENT) {
+                m_readPosition = position(segment + 1, SEGMENT_HEADER_SIZE);
+                continue;
+            }
+            buffer.position(offset + RECORD_HEADER_SIZE);
+            final byte flags = buffer.get();
+            final String encoding = getString(buffer);
+            final String messageId = getString(buffer);
+            final long publishMicros = buffer.getLong();
+            final int skipLines = buffer.getInt();
+            final byte[] body = new byte[offset + RECORD_HEADER_SIZE + length - buffer.position()];
+            buffer.get(body);
+            final Map<String, Object> headers = new HashMap<String, Object>();
+            if (publishMicros >= 0) {
+                headers.put(RMQDeliveryConsumer.PUBLISH_TIME_HEADER, publishMicros);
+            }
+            if (skipLines > 0) {
+                headers.put(DeadLetterPublisher.SKIP_LINES_HEADER, skipLines);
+            }
+            final AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                    .contentEncoding(encoding)
+                    .messageId(messageId)
+                    .headers(headers)
+                    .build();
+            final boolean redelivered = (flags & REDELIVERED_FLAG) != 0 || m_readPosition < m_recoveredEnd;
+            final Envelope envelope = new Envelope(++m_readCount, redelivered, "", m_queue);
+            final Record record = new Record(envelope, properties, body, position(segment, buffer.position()));
+            m_readPosition = record.m_end;
+            m_readRecords.add(record);
+            return record;
+        }
+        return null;
+    }
+
+    /**
+     * Note that all rows of a record were loaded or failed for good.
+     * @param record  record returned by poll()
+     */
+    public synchronized void complete(final Record record)
+    {
+        record.m_completed = true;
+        while (!m_readRecords.isEmpty() && m_readRecords.peek().m_completed) {
+            m_checkpointPosition = m_readRecords.poll().m_end;
+        }
+    }
+
+    /**
+     * Stop spilling, settle what was appended and checkpoint. Unread records
+     * are loaded by the next run.
+     */
+    public void close()
+    {
+        synchronized (this) {
+            m_closed = true;
+            if (m_syncTask != null) {
+                m_syncTask.cancel(false);
+            }
+        }
+        sync();
+        checkpoint(true);
+        try {
+            m_lock.release();
+            m_lockChannel.close();
+        }
+        catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    //=== Writing
+
+    private boolean append(boolean redelivered, final String encoding, final String messageId, long publishMicros,
+                           int skipLines, final byte[] body, final DeadLetterPublisher.Settlement settlement)
+    {
+        final byte[] encodingBytes = getBytes(encoding);
+        final byte[] messageIdBytes = getBytes(messageId);
+        final int length = 1 + 2 + encodingBytes.length + 2 + messageIdBytes.length + 8 + 4 + body.length;
+        if (SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + (long) length + END_MARKER_SIZE > m_segmentSize) {
+            // Too large for a segment.
+            return false;
+        }
+        MappedByteBuffer segment = m_segments.get(segmentOf(m_writePosition));
+        int offset = offsetOf(m_writePosition);
+        if (offset + RECORD_HEADER_SIZE + length + END_MARKER_SIZE > segment.capacity()) {
+            segment = roll();
+            if (segment == null) {
+                return false;
+            }
+            offset = SEGMENT_HEADER_SIZE;
+        }
+        final ByteBuffer buffer = segment.duplicate();
+        buffer.position(offset + RECORD_HEADER_SIZE);
+        final CRC32 crc = new CRC32();
+        final byte flags = redelivered ? REDELIVERED_FLAG : 0;
+        buffer.put(flags);
+        crc.update(flags);
+        putString(buffer, crc, encodingBytes);
+        putString(buffer, crc, messageIdBytes);
+        final byte[] publishBytes = ByteBuffer.allocate(8).putLong(publishMicros).array();
+        buffer.put(publishBytes);
+        crc.update(publishBytes);
+        final byte[] skipBytes = ByteBuffer.allocate(4).putInt(skipLines).array();
+        buffer.put(skipBytes);
+        crc.update(skipBytes);
+        buffer.put(body);
+        crc.update(body);
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        // The length goes last, making the record visible to recovery.
+        buffer.putInt(offset, length);
+        m_writePosition = position(segmentOf(m_writePosition), offset + RECORD_HEADER_SIZE + length);
+        m_pendingSettlements.add(new PendingSettlement(m_writePosition, settlement));
+        m_spilledCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * End the current segment and start the next one, which the sync task
+     * normally created ahead. The sync task forces the current segment
+     * before it settles records of the next one, so that an acknowledged
+     * record is never in a later segment while an earlier one may be torn.
+     * @return new segment or null if the disk limit was reached
+     */
+    private MappedByteBuffer roll()
+    {
+        final long segment = segmentOf(m_writePosition);
+        MappedByteBuffer next = m_nextSegment;
+        if (next == null && !hasRoom()) {
+            if (!m_full) {
+                m_full = true;
+                RMQBulkLoader.LOG.warn(String.format(
+                        "Spill log of queue %s is full, deliveries wait in the broker.", m_queue));
+            }
+            return null;
+        }
+        if (next == null) {
+            // The segment filled up before the sync task got to it.
+            try {
+                next = mapSegment(segment + 1, true);
+            }
+            catch (IOException e) {
+                RMQBulkLoader.LOG.error(String.format("Failed to add a segment to the spill log of queue %s.",
+                                                      m_queue), e);
+                return null;
+            }
+        }
+        m_nextSegment = null;
+        m_segments.get(segment).putInt(offsetOf(m_writePosition), END_OF_SEGMENT);
+        m_segments.put(segment + 1, next);
+        m_full = false;
+        final boolean caughtUp = m_readPosition == m_writePosition;
+        m_writePosition = position(segment + 1, SEGMENT_HEADER_SIZE);
+        if (caughtUp) {
+            // Nothing is left to read in the old segment.
+            m_readPosition = m_writePosition;
+        }
+        return next;
+    }
+
+    /**
+     * @return true if the disk limit allows another segment
+     */
+    private boolean hasRoom()
+    {
+        return m_segments.size() < m_maxSegments
+                && m_directory.toFile().getUsableSpace() >= 2L * m_segmentSize;
+    }
+
+    /**
+     * Create the segment after the one being written, so that rolling over
+     * does not have to while a consumer waits.
+     */
+    private void preallocate()
+    {
+        final long segment;
+        synchronized (this) {
+            if (m_closed || m_nextSegment != null || !hasRoom()) {
+                return;
+            }
+            segment = segmentOf(m_writePosition) + 1;
+        }
+        final MappedByteBuffer next;
+        try {
+            next = mapSegment(segment, true);
+        }
+        catch (IOException e) {
+            synchronized (this) {
+                if (!m_preallocationFailed) {
+                    m_preallocationFailed = true;
+                    RMQBulkLoader.LOG.error(String.format("Failed to add a segment to the spill log of queue %s.",
+                                                          m_queue), e);
+                }
+            }
+            return;
+        }
+        synchronized (this) {
+            m_preallocationFailed = false;
+            // Unless a consumer rolled over in the meantime.
+            if (!m_closed && segmentOf(m_writePosition) + 1 == segment) {
+                m_nextSegment = next;
+            }
+        }
+    }
+
+    /**
+     * Force appended records to disk, settle them and checkpoint when due.
+     */
+    private void sync()
+    {
+        final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+        final long position;
+        synchronized (this) {
+            position = m_writePosition;
+            if (m_syncedPosition < position) {
+                // Including an earlier segment ended since the last sync.
+                segments.addAll(m_segments.subMap(segmentOf(m_syncedPosition), true,
+                                                  segmentOf(position), true).values());
+            }
+        }
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        final List<DeadLetterPublisher.Settlement> settlements = new ArrayList<DeadLetterPublisher.Settlement>();
+        synchronized (this) {
+            m_syncedPosition = Math.max(m_syncedPosition, position);
+            while (!m_pendingSettlements.isEmpty() && m_pendingSettlements.peek().end <= m_syncedPosition) {
+                settlements.add(m_pendingSettlements.poll().settlement);
+            }
+        }
+        for (DeadLetterPublisher.Settlement settlement : settlements) {
+            settlement.settle(true);
+        }
+        if (!segments.isEmpty()) {
+            for (Runnable listener : m_readListeners) {
+                listener.run();
+            }
+        }
+        preallocate();
+        checkpoint(false);
+    }
+
+    //=== Checkpoints and recovery
+
+    /**
+     * Write the checkpoint if it moved and one is due, and delete the
+     * segments before it.
+     * @param force  write even if the last one is recent
+     */
+    private void checkpoint(boolean force)
+    {
+        final long position;
+        synchronized (this) {
+            if (m_checkpointPosition == m_writtenCheckpoint
+                    || (!force && System.nanoTime() - m_lastCheckpointNanos < CHECKPOINT_NANOS)) {
+                return;
+            }
+            position = m_checkpointPosition;
+            m_lastCheckpointNanos = System.nanoTime();
+        }
+        final Path temporary = m_directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                                                        StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                final CRC32 crc = new CRC32();
+                final ByteBuffer buffer = ByteBuffer.allocate(16).putLong(position);
+                crc.update(buffer.array(), 0, 8);
+                buffer.putLong(crc.getValue());
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, m_directory.resolve(CHECKPOINT_FILE),
+                       StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            RMQBulkLoader.LOG.error(String.format("Failed to checkpoint the spill log of queue %s.", m_queue), e);
+            return;
+        }
+        final List<Long> reclaimed;
+        synchronized (this) {
+            m_writtenCheckpoint = position;
+            reclaimed = new ArrayList<Long>(m_segments.headMap(segmentOf(position)).keySet());
+            m_segments.headMap(segmentOf(position)).clear();
+        }
+        // The mappings are released when they are garbage collected.
+        for (long segment : reclaimed) {
+            deleteSegment(segment);
+        }
+    }
+
+    /**
+     * Find the records after the checkpoint, cut off a torn tail and
+     * prepare to append after the last good record.
+     * @return end of the recovered records
+     * @throws IOException
+     */
+    private long recover() throws IOException
+    {
+        final List<Long> segments = listSegments();
+        long checkpoint = readCheckpoint();
+        if (checkpoint == 0) {
+            if (segments.isEmpty()) {
+                segments.add(1L);
+                m_segments.put(1L, mapSegment(1, true));
+            }
+            checkpoint = position(segments.get(0), SEGMENT_HEADER_SIZE);
+        }
+        final long first = segmentOf(checkpoint);
+        if (!segments.contains(first)) {
+            throw new IOException(String.format("Spill log %s has no segment %d for its checkpoint.",
+                                                m_directory, first));
+        }
+        for (long segment : segments) {
+            if (segment < first) {
+                deleteSegment(segment);
+            }
+        }
+
+        long segment = first;
+        int offset = offsetOf(checkpoint);
+        long count = 0;
+        MappedByteBuffer buffer = m_segments.containsKey(segment) ? m_segments.get(segment) : mapSegment(segment, false);
+        m_segments.put(segment, buffer);
+        while (true) {
+            final int length = offset + RECORD_HEADER_SIZE <= buffer.capacity() ? buffer.getInt(offset) : 0;
+            if (length == END_OF_SEGMENT && segments.contains(segment + 1)) {
+                segment++;
+                offset = SEGMENT_HEADER_SIZE;
+                buffer = mapSegment(segment, false);
+                m_segments.put(segment, buffer);
+                continue;
+            }
+            if (length == END_OF_SEGMENT) {
+                // Crashed while rolling.
+                buffer.putInt(offset, 0);
+                break;
+            }
+            if (length <= 0 || offset + RECORD_HEADER_SIZE + (long) length + END_MARKER_SIZE > buffer.capacity()
+                    || !isValid(buffer, offset, length)) {
+                break;
+            }
+            offset += RECORD_HEADER_SIZE + length;
+            count++;
+        }
+        // Clear whatever a torn write left behind and drop later segments.
+        final ByteBuffer tail = buffer.duplicate();
+        tail.position(offset);
+        final byte[] zeros = new byte[Math.min(tail.remaining(), 1 << 16)];
+        while (tail.hasRemaining()) {
+            tail.put(zeros, 0, Math.min(zeros.length, tail.remaining()));
+        }
+        buffer.force();
+        for (long later : segments) {
+            if (later > segment) {
+                deleteSegment(later);
+            }
+        }
+
+        m_writePosition = position(segment, offset);
+        m_syncedPosition = m_writePosition;
+        m_readPosition = checkpoint;
+        m_checkpointPosition = checkpoint;
+        m_writtenCheckpoint = checkpoint;
+        if (count > 0) {
+            RMQBulkLoader.LOG.info(String.format("Loading %d spilled records of queue %s from %s.",
+                                                 count, m_queue, m_directory));
+        }
+        return m_writePosition;
+    }
+
+    private static boolean isValid(final ByteBuffer segment, int offset, int length)
+    {
+        final ByteBuffer buffer = segment.duplicate();
+        buffer.position(offset + RECORD_HEADER_SIZE);
+        final byte[] payload = new byte[length];
+        buffer.get(payload);
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        return segment.getInt(offset + 4) == (int) crc.getValue();
+    }
+
+    /**
+     * @return checkpoint position or 0 if there is none
+     * @throws IOException  if it is damaged
+     */
+    private long readCheckpoint() throws IOException
+    {
+        final Path path = m_directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, Math.min(buffer.capacity(), 8));
+        if (buffer.capacity() != 16 || buffer.getLong(8) != crc.getValue()) {
+            throw new IOException(String.format("Spill log checkpoint %s is damaged.", path));
+        }
+        return buffer.getLong(0);
+    }
+
+    //=== Segment files
+
+    private List<Long> listSegments() throws IOException
+    {
+        final List<Long> segments = new ArrayList<Long>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                m_directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                final String name = path.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                                               name.length() - SEGMENT_SUFFIX.length())));
+                }
+                catch (NumberFormatException e) {
+                    // Not a segment.
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private Path getSegmentPath(long segment)
+    {
+        return m_directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Map a segment file, creating it if asked to.
+     * @param segment  segment number
+     * @param create  create a new segment
+     * @return mapping of the whole file
+     * @throws IOException  if the file is not a segment
+     */
+    private MappedByteBuffer mapSegment(long segment, boolean create) throws IOException
+    {
+        final Path path = getSegmentPath(segment);
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            if (create) {
+                file.setLength(m_segmentSize);
+            }
+            final MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            if (buffer.capacity() < SEGMENT_HEADER_SIZE) {
+                throw new IOException(String.format("%s is not a spill log segment.", path));
+            }
+            // A new segment may have lost its header in a crash.
+            if (create || (buffer.getInt(0) == 0 && buffer.getInt(4) == 0)) {
+                buffer.putInt(0, SEGMENT_MAGIC);
+                buffer.putInt(4, SEGMENT_VERSION);
+                buffer.force();
+            }
+            else if (buffer.getInt(0) != SEGMENT_MAGIC || buffer.getInt(4) != SEGMENT_VERSION) {
+                throw new IOException(String.format("%s is not a spill log segment.", path));
+            }
+            return buffer;
+        }
+    }
+
+    private void deleteSegment(long segment)
+    {
+        try {
+            Files.deleteIfExists(getSegmentPath(segment));
+        }
+        catch (IOException e) {
+            RMQBulkLoader.LOG.warn(String.format("Failed to delete spill log segment %s.",
+                                                 getSegmentPath(segment)), e);
+        }
+    }
+
+    //=== Helpers
+
+    private static long position(long segment, int offset)
+    {
+        return (segment << 32) | offset;
+    }
+
+    private static long segmentOf(long position)
+    {
+        return position >>> 32;
+    }
+
+    private static int offsetOf(long position)
+    {
+        return (int) position;
+    }
+
+    private static byte[] getBytes(final String string)
+    {
+        return string != null ? string.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+
+    private static void putString(final ByteBuffer buffer, final CRC32 crc, final byte[] bytes)
+    {
+        final byte[] length = ByteBuffer.allocate(2).putShort((short) bytes.length).array();
+        buffer.put(length);
+        crc.update(length);
+        buffer.put(bytes);
+        crc.update(bytes);
+    }
+
+    private static String getString(final ByteBuffer buffer)
+    {
+        final int length = buffer.getShort() & 0xffff;
+        if (length == 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param queue  queue name
+     * @return directory name for the queue's log with unsafe characters escaped
+     */
+    static String getDirectoryName(final String queue)
+    {
+        final ByteArrayOutputStream name = new ByteArrayOutputStream();
+        for (byte b : queue.getBytes(StandardCharsets.UTF_8)) {
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-' || b == '_') {
+                name.write(b);
+            }
+            else {
+                final byte[] escape = String.format("%%%02X", b & 0xff).getBytes(StandardCharsets.US_ASCII);
+                name.write(escape, 0, escape.length);
+            }
+        }
+        return new String(name.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import org.voltdb.utils.RowWithMetaData;
+
+/**
+ * Row meta-data that also carries the times a row passed through the
+ * loader, so that the commit call-back can record its latency per stage:
+ * publish to consume, consume to batch and batch to commit.
+ */
+class TracedRow extends RowWithMetaData
+{
+    /// Publish-to-consume latency in microseconds or -1 if the publish time is unknown.
+    final long publishToConsumeMicros;
+    /// System.nanoTime() when the delivery arrived.
+    final long consumedNanos;
+    /// System.nanoTime() when the row was added to a batch.
+    long batchedNanos = 0;
+
+    /**
+     * @param rawLine  row text
+     * @param lineNumber  row number
+     * @param procedureCallback  row call-back
+     * @param publishToConsumeMicros  publish-to-consume latency in microseconds or -1
+     * @param consumedNanos  System.nanoTime() when the delivery arrived
+     */
+    public TracedRow(final Object rawLine, long lineNumber, final ConsumerConnector.RowCallback procedureCallback,
+                     long publishToConsumeMicros, long consumedNanos)
+    {
+        super(rawLine, lineNumber, procedureCallback);
+        this.publishToConsumeMicros = publishToConsumeMicros;
+        this.consumedNanos = consumedNanos;
+    }
+
+    /**
+     * @return call-back that settles the row's delivery
+     */
+    public ConsumerConnector.RowCallback getRowCallback()
+    {
+        return (ConsumerConnector.RowCallback) procedureCallback;
+    }
+}
@@ -24,10 +24,16 @@
 
 package org.voltdb.bulkloader;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.voltdb.bulkloader.BulkLoaderOptions.TargetType;
 
+import com.google_voltpatches.common.net.HostAndPort;
+
 public class BulkLoaderCLISpec implements CLIDriver.CLISpec
 {
     // Public option opts
@@ -53,6 +59,56 @@ public class BulkLoaderCLISpec implements CLIDriver.CLISpec
                         "maximum number of errors before giving up (default: %d)",
                         this.opts.maxerrors))
                 .create('m'));
+        options.addOption(OptionBuilder
+                .withLongOpt("dlx")
+                .withArgName("exchange")
+                .withType(String.class)
+                .hasArg()
+                .withDescription("publish rows that fail to load to this exchange with the reason "
+                                 + "in headers and keep going, routed by the source queue name")
+                .create());
+        options.addOption(OptionBuilder
+                .withLongOpt("spill")
+                .withArgName("directory")
+                .withType(String.class)
+                .hasArg()
+                .withDescription("keep consuming into memory-mapped logs in this directory while VoltDB "
+                                 + "is unavailable or backpressure persists, and load from them afterwards "
+                                 + "(requires --ackmode commit)")
+                .create());
+        options.addOption(OptionBuilder
+                .withLongOpt("spillmax")
+                .withArgName("megabytes")
+                .withType(Number.class)
+                .hasArg()
+                .withDescription("disk space limit per queue for --spill (default: none)")
+                .create());
+        options.addOption(OptionBuilder
+                .withLongOpt("dedup")
+                .withArgName("messageid|column")
+                .withType(String.class)
+                .hasArg()
+                .withDescription("skip redelivered messages whose message-id, or rows whose value in this "
+                                 + "1-based column, was already loaded (requires --ackmode commit)")
+                .create());
+        options.addOption(OptionBuilder
+                .withLongOpt("dedupwindow")
+                .withArgName("seconds")
+                .withType(Number.class)
+                .hasArg()
+                .withDescription(String.format(
+                        "how long --dedup remembers a loaded key (default: %d)",
+                        this.opts.dedupwindow))
+                .create());
+        options.addOption(OptionBuilder
+                .withLongOpt("dedupmax")
+                .withArgName("keys")
+                .withType(Number.class)
+                .hasArg()
+                .withDescription(String.format(
+                        "maximum keys --dedup remembers per queue, at 16-32 bytes each (default: %d)",
+                        this.opts.dedupmax))
+                .create());
         options.addOption(OptionBuilder
                 .withLongOpt("flush")
                 .withArgName("flush")
@@ -62,15 +118,79 @@ public class BulkLoaderCLISpec implements CLIDriver.CLISpec
                         "periodic flush interval in seconds. (default: %d)",
                         this.opts.flush))
                 .create('f'));
+        options.addOption(OptionBuilder
+                .withLongOpt("maxage")
+                .withArgName("milliseconds")
+                .withType(Number.class)
+                .hasArg()
+                .withDescription("flush partial batches when their oldest row reaches this age in milliseconds")
+                .create());
+        options.addOption(OptionBuilder
+                .withLongOpt("metrics")
+                .withArgName("[host:]port")
+                .withType(String.class)
+                .hasArg()
+                .withDescription("serve Prometheus metrics over HTTP at /metrics on this address")
+                .create());
         options.addOption(OptionBuilder
                 .withLongOpt("batch")
                 .withArgName("batch")
-                .withType(Number.class)
+                .withType(String.class)
                 .hasArg()
                 .withDescription(String.format(
-                        "batch size for processing. (default: %d)",
+                        "rows per partition batch, or \"auto\" to adjust it to the load. (default: %d)",
                         this.opts.batch))
                 .create('b'));
+        options.addOption(OptionBuilder
+                .withLongOpt("batchmin")
+                .withArgName("batchmin")
+                .withType(Number.class)
+                .hasArg()
+                .withDescription(String.format(
+                        "minimum automatic batch size (default: %d)",
+                        this.opts.batchmin))
+                .create());
+        options.addOption(OptionBuilder
+                .withLongOpt("batchmax")
+                .withArgName("batchmax")
+                .withType(Number.class)
+                .hasArg()
+                .withDescription(String.format(
+                        "maximum automatic batch size (default: %d)",
+                        this.opts.batchmax))
+                .create());
+        options.addOption(OptionBuilder
+                .withLongOpt("batchlatency")
+                .withArgName("milliseconds")
+                .withType(Number.class)
+                .hasArg()
+                .withDescription(String.format(
+                        "automatic batch round trip target in milliseconds (default: %d)",
+                        this.opts.batchlatency))
+                .create());
+        options.addOption(OptionBuilder
+                .withLongOpt("map")
+                .withArgName("queue=target")
+                .withType(String.class)
+                .hasArg()
+                .withDescription("load a queue into a table (queue=table) or through a procedure "
+                        + "(queue=proc:procedure), may be repeated")
+                .create());
+        options.addOption(OptionBuilder
+                .withLongOpt("mapfile")
+                .withArgName("mapfile")
+                .withType(String.class)
+                .hasArg()
+                .withDescription("file with one queue=target mapping per line")
+                .create());
+        options.addOption(OptionBuilder
+                .withLongOpt("threads")
+                .withArgName("threads")
+                .withType(Number.class)
+                .hasArg()
+                .withDescription("worker threads shared by all consumers "
+                        + "(default: one per consumer, up to the processor count)")
+                .create());
     }
 
     /**
@@ -99,16 +219,130 @@ public class BulkLoaderCLISpec implements CLIDriver.CLISpec
             this.opts.targetType = TargetType.PROCEDURE;
             this.opts.targetName = procedure;
         }
-        if (this.opts.targetType == null) {
-            driver.abort(true, "Either a table or a procedure name is required.");
+        for (String spec : driver.getStrings("map")) {
+            addMapping(driver, spec);
+        }
+        String mapfile = driver.getTrimmedString("mapfile");
+        if (mapfile != null) {
+            readMappings(driver, mapfile);
+        }
+        if (this.opts.targetType == null && this.opts.mappings.isEmpty()) {
+            driver.abort(true, "Either a table or a procedure name or a queue mapping is required.");
+        }
+        this.opts.threads = driver.getNumber("threads", this.opts.threads);
+        if (this.opts.threads != null && this.opts.threads <= 0) {
+            driver.abort(true, "Number of threads must be > 0.");
+        }
+        String batchParam = driver.getTrimmedString("batch");
+        if (batchParam != null) {
+            if (batchParam.equalsIgnoreCase("auto")) {
+                this.opts.autobatch = true;
+            }
+            else {
+                try {
+                    this.opts.batch = Long.parseLong(batchParam);
+                }
+                catch (NumberFormatException e) {
+                    driver.abort(true, "Bad batch size: %s", batchParam);
+                }
+                if (this.opts.batch < 0) {
+                    driver.abort(true, "Batch size must be >= 0.");
+                }
+            }
+        }
+        this.opts.batchmin = driver.getNumber("batchmin", this.opts.batchmin);
+        this.opts.batchmax = driver.getNumber("batchmax", this.opts.batchmax);
+        if (this.opts.batchmin <= 0 || this.opts.batchmax < this.opts.batchmin) {
+            driver.abort(true, "Automatic batch sizes must satisfy 0 < batchmin <= batchmax.");
+        }
+        this.opts.batchlatency = driver.getNumber("batchlatency", this.opts.batchlatency);
+        if (this.opts.batchlatency <= 0) {
+            driver.abort(true, "Batch round trip target must be > 0.");
+        }
+        this.opts.maxerrors = driver.getNumber("maxerrors", this.opts.maxerrors);
+        if (this.opts.maxerrors < 0) {
+            driver.abort(true, "Maximum errors must be >= 0 (0 for no limit).");
         }
-        this.opts.batch = driver.getNumber("batch", this.opts.batch);
-        if (this.opts.batch < 0) {
-            driver.abort(true, "Batch size must be >= 0.");
+        this.opts.dlx = driver.getString("dlx", null);
+        this.opts.spill = driver.getTrimmedString("spill");
+        this.opts.spillmax = driver.getNumber("spillmax", this.opts.spillmax);
+        if (this.opts.spillmax != null && this.opts.spill == null) {
+            driver.abort(true, "A spill limit requires a spill directory: --spill");
+        }
+        if (this.opts.spillmax != null && this.opts.spillmax <= 0) {
+            driver.abort(true, "Spill limit must be > 0.");
+        }
+        String dedupParam = driver.getTrimmedString("dedup");
+        if (dedupParam != null) {
+            this.opts.dedup = true;
+            if (!dedupParam.equalsIgnoreCase("messageid")) {
+                try {
+                    this.opts.dedupcolumn = Long.parseLong(dedupParam);
+                }
+                catch (NumberFormatException e) {
+                    driver.abort(true, "Bad deduplication key: %s", dedupParam);
+                }
+                if (this.opts.dedupcolumn <= 0) {
+                    driver.abort(true, "Deduplication key column must be > 0.");
+                }
+            }
+        }
+        this.opts.dedupwindow = driver.getNumber("dedupwindow", this.opts.dedupwindow);
+        if (this.opts.dedupwindow <= 0) {
+            driver.abort(true, "Deduplication window must be > 0.");
+        }
+        this.opts.dedupmax = driver.getNumber("dedupmax", this.opts.dedupmax);
+        if (this.opts.dedupmax <= 0 || this.opts.dedupmax > Integer.MAX_VALUE / 2) {
+            driver.abort(true, "Maximum deduplication keys must satisfy 0 < dedupmax <= %d.",
+                         Integer.MAX_VALUE / 2);
         }
         this.opts.flush = driver.getNumber("flush", this.opts.flush);
         if (this.opts.flush <= 0) {
             driver.abort(true, "Periodic flush interval must be > 0");
         }
+        this.opts.maxage = driver.getNumber("maxage", this.opts.maxage);
+        if (this.opts.maxage != null && this.opts.maxage <= 0) {
+            driver.abort(true, "Maximum row age must be > 0.");
+        }
+        String metricsSpec = driver.getString("metrics", null);
+        if (metricsSpec != null) {
+            try {
+                this.opts.metrics = HostAndPort.fromString(metricsSpec);
+                if (!this.opts.metrics.hasPort()) {
+                    this.opts.metrics = HostAndPort.fromParts("", Integer.parseInt(metricsSpec));
+                }
+            }
+            catch (IllegalArgumentException e) {
+                driver.abort(true, "Bad metrics address: %s", metricsSpec);
+            }
+        }
+    }
+
+    private void addMapping(CLIDriver driver, String spec)
+    {
+        BulkLoaderOptions.Mapping mapping = BulkLoaderOptions.Mapping.parse(spec);
+        if (mapping == null) {
+            driver.addError("Bad queue mapping: %s", spec);
+        }
+        else {
+            this.opts.mappings.add(mapping);
+        }
+    }
+
+    private void readMappings(CLIDriver driver, String mapfile)
+    {
+        try (BufferedReader reader = new BufferedReader(new FileReader(mapfile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                // Skip blank lines and comments.
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    addMapping(driver, line);
+                }
+            }
+        }
+        catch (IOException e) {
+            driver.addError("Could not read mapping file: %s: %s", mapfile, e.getLocalizedMessage());
+        }
     }
 }
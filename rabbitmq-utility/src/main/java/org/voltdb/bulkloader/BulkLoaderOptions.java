@@ -25,19 +25,31 @@
 package org.voltdb.bulkloader;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import org.voltdb.client.ClientImpl;
+import org.voltdb.client.VoltBulkLoader.BulkLoaderSuccessCallback;
 import org.voltdb.utils.BulkLoaderErrorHandler;
 import org.voltdb.utils.CSVBulkDataLoader;
 import org.voltdb.utils.CSVDataLoader;
 import org.voltdb.utils.CSVTupleDataLoader;
 
+import com.google_voltpatches.common.net.HostAndPort;
+
 
 public class BulkLoaderOptions
 {
     private final static int DEFAULT_MAX_ERRORS = 100;
     private final static int DEFAULT_FLUSH_INTERVAL = 10;
     private final static int DEFAULT_BATCH_SIZE = 200;
+    private final static int DEFAULT_BATCH_MIN = 50;
+    private final static int DEFAULT_BATCH_MAX = 5000;
+    private final static int DEFAULT_BATCH_LATENCY = 50;
+    private final static int DEFAULT_DEDUP_WINDOW = 600;
+    private final static int DEFAULT_DEDUP_MAX = 1000000;
+    private final static String PROCEDURE_PREFIX = "proc:";
 
     public enum TargetType {
         TABLE("table"),
@@ -57,12 +69,100 @@ public class BulkLoaderOptions
         }
     }
 
+    /**
+     * Binding of a RabbitMQ queue to a VoltDB table or procedure.
+     */
+    public static class Mapping
+    {
+        public final String queue;
+        public final TargetType targetType;
+        public final String targetName;
+
+        public Mapping(final String queue, final TargetType targetType, final String targetName)
+        {
+            this.queue = queue;
+            this.targetType = targetType;
+            this.targetName = targetName;
+        }
+
+        /**
+         * Parse a "queue=table" or "queue=proc:procedure" mapping.
+         *
+         * @param spec  mapping specification
+         * @return mapping or null if the specification is malformed
+         */
+        public static Mapping parse(final String spec)
+        {
+            final int separator = spec.indexOf('=');
+            if (separator < 0) {
+                return null;
+            }
+            final String queue = spec.substring(0, separator).trim();
+            String target = spec.substring(separator + 1).trim();
+            TargetType targetType = TargetType.TABLE;
+            if (target.startsWith(PROCEDURE_PREFIX)) {
+                targetType = TargetType.PROCEDURE;
+                target = target.substring(PROCEDURE_PREFIX.length()).trim();
+            }
+            if (queue.isEmpty() || target.isEmpty()) {
+                return null;
+            }
+            return new Mapping(queue, targetType, target);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s -> %s: %s", queue, targetType, targetName);
+        }
+    }
+
     // Public option opts
     public TargetType targetType = null;
     public String targetName = null;
     public Long maxerrors = (long) DEFAULT_MAX_ERRORS;
+    /// Dead-letter exchange for rows that fail to load or null.
+    public String dlx = null;
+    /// Directory of the spill logs or null.
+    public String spill = null;
+    /// Disk space limit per spill log in megabytes or null.
+    public Long spillmax = null;
+    /// Skip redelivered messages or rows that were already loaded.
+    public boolean dedup = false;
+    /// 1-based column holding the deduplication key, or null for the message-id.
+    public Long dedupcolumn = null;
+    /// Seconds a loaded key is remembered.
+    public Long dedupwindow = (long) DEFAULT_DEDUP_WINDOW;
+    /// Maximum number of keys remembered per queue.
+    public Long dedupmax = (long) DEFAULT_DEDUP_MAX;
     public Long flush = (long) DEFAULT_FLUSH_INTERVAL;
+    /// Maximum age in milliseconds of a row waiting in a partial batch or null.
+    public Long maxage = null;
     public Long batch = (long) DEFAULT_BATCH_SIZE;
+    /// Adjust the batch size between batchmin and batchmax at run time.
+    public boolean autobatch = false;
+    public Long batchmin = (long) DEFAULT_BATCH_MIN;
+    public Long batchmax = (long) DEFAULT_BATCH_MAX;
+    /// Batch round trip target in milliseconds.
+    public Long batchlatency = (long) DEFAULT_BATCH_LATENCY;
+    public List<Mapping> mappings = new ArrayList<Mapping>();
+    /// Prometheus metrics HTTP listen address or null.
+    public HostAndPort metrics = null;
+    public Long threads = null;
+
+    /**
+     * Get the number of worker threads.
+     *
+     * @param channelCount  number of consumer channels
+     * @return the explicit thread count or one per channel up to the processor count
+     */
+    public int getThreadCount(int channelCount)
+    {
+        if (this.threads != null) {
+            return (int) Math.min(this.threads, channelCount);
+        }
+        return Math.min(channelCount, Runtime.getRuntime().availableProcessors());
+    }
 
     /**
      * Create a CSV data loader based on the option settings.
@@ -76,13 +176,62 @@ public class BulkLoaderOptions
             ClientImpl clientImpl,
             BulkLoaderErrorHandler errorHandler)
             throws IOException
+    {
+        return createCSVLoader(clientImpl, errorHandler, null, null);
+    }
+
+    /**
+     * Create a CSV data loader that also reports successfully committed rows.
+     *
+     * @param clientImpl  VoltDB client
+     * @param errorHandler  error handler call-back
+     * @param callbackExecutor  executor for procedure success call-backs (or null)
+     * @param successCallback  success call-back (or null)
+     * @return CSV loader object
+     * @throws IOException
+     */
+    public CSVDataLoader createCSVLoader(
+            ClientImpl clientImpl,
+            BulkLoaderErrorHandler errorHandler,
+            ExecutorService callbackExecutor,
+            BulkLoaderSuccessCallback successCallback)
+            throws IOException
+    {
+        return createCSVLoader(clientImpl, this.targetType, this.targetName,
+                               errorHandler, callbackExecutor, successCallback);
+    }
+
+    /**
+     * Create a CSV data loader for a given target.
+     *
+     * @param clientImpl  VoltDB client
+     * @param targetType  table or procedure
+     * @param targetName  table or procedure name
+     * @param errorHandler  error handler call-back
+     * @param callbackExecutor  executor for procedure success call-backs (or null)
+     * @param successCallback  success call-back (or null)
+     * @return CSV loader object
+     * @throws IOException
+     */
+    public CSVDataLoader createCSVLoader(
+            ClientImpl clientImpl,
+            TargetType targetType,
+            String targetName,
+            BulkLoaderErrorHandler errorHandler,
+            ExecutorService callbackExecutor,
+            BulkLoaderSuccessCallback successCallback)
+            throws IOException
     {
         try {
-            switch(this.targetType) {
+            switch(targetType) {
             case PROCEDURE:
-                return new CSVTupleDataLoader(clientImpl, this.targetName, errorHandler);
+                return new CSVTupleDataLoader(clientImpl, targetName, errorHandler,
+                                              callbackExecutor, successCallback);
             case TABLE:
-                return new CSVBulkDataLoader(clientImpl, this.targetName, this.batch.intValue(), errorHandler);
+                // An automatic batch size is applied by flushing early.
+                int batchSize = this.autobatch ? this.batchmax.intValue() : this.batch.intValue();
+                return new CSVBulkDataLoader(clientImpl, targetName, batchSize,
+                                             false, errorHandler, successCallback);
             }
         }
         catch(Exception e) {
@@ -162,6 +162,17 @@ public class CLIDriver
         }
     }
 
+    /**
+     * Get all values of a repeatable string option
+     * @param name  option name
+     * @return  option values (empty if the option is absent)
+     */
+    public String[] getStrings(String name)
+    {
+        String[] values = this.cmd.getOptionValues(name);
+        return values != null ? values : new String[] {};
+    }
+
     /**
      * Get number option value
      * @param name  option name
@@ -0,0 +1,464 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Parses CSV records straight out of UTF-8 message bytes without going
+ * through a Reader. Follows the rules of SuperCSV's STANDARD_PREFERENCE:
+ * comma delimiter, double quote quoting with "" as an escaped quote, quoted
+ * sections may appear anywhere in a column and may span lines, surrounding
+ * spaces are kept, empty columns are null and empty lines are skipped.
+ *
+ * Scanning bytes is safe for UTF-8 because the delimiter, quote and line
+ * break characters never occur inside multi-byte sequences.
+ *
+ * Input is either a byte array or a stream, e.g. a decompressing one, that
+ * is read in chunks so that only the record being parsed is buffered.
+ *
+ * Tokenizing only records field offsets in reusable arrays. Quoted fields
+ * are unescaped into a reusable scratch buffer. Strings are created when
+ * fields are requested.
+ */
+class CSVByteParser
+{
+    private static final byte QUOTE = '"';
+    private static final byte DELIMITER = ',';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    /// Initial size of the buffer for stream input.
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private byte[] m_data = null;
+    private int m_pos = 0;
+    private int m_limit = 0;
+    private int m_recordStart = 0;
+    private int m_recordEnd = 0;
+    /// Input offset of m_data[0], used to report error offsets.
+    private long m_base = 0;
+    /// Stream being read or null when it is exhausted or the input is an array.
+    private InputStream m_input = null;
+    /// Buffer for stream input, kept across resets.
+    private byte[] m_buffer = null;
+    /// Line breaks consumed so far.
+    private int m_lineBreaks = 0;
+    /// 1-based line number where the last record started.
+    private int m_recordLine = 0;
+    /// True after a CR ending a record, whose LF belongs to the same line break.
+    private boolean m_afterCR = false;
+
+    /// Number of fields in the current record.
+    private int m_fieldCount = 0;
+    /// Field start offsets, relative to m_recordStart or into m_scratch.
+    private int[] m_fieldStart = new int[16];
+    /// Field end offsets, relative to m_recordStart or into m_scratch.
+    private int[] m_fieldEnd = new int[16];
+    /// True for fields that were unescaped into m_scratch.
+    private boolean[] m_fieldEscaped = new boolean[16];
+    /// Unescaped bytes of the current record's columns that contain quotes.
+    private byte[] m_scratch = new byte[256];
+    private int m_scratchLength = 0;
+
+    /**
+     * Start parsing a new chunk of data.
+     *
+     * @param data  data buffer
+     * @param offset  start offset
+     * @param length  number of bytes
+     */
+    public void reset(final byte[] data, int offset, int length)
+    {
+        m_input = null;
+        m_data = data;
+        m_base = -offset;
+        start(offset, offset + length);
+    }
+
+    /**
+     * Start parsing a stream of data. The caller remains responsible for
+     * closing the stream.
+     *
+     * @param input  input stream
+     */
+    public void reset(final InputStream input)
+    {
+        if (m_buffer == null) {
+            m_buffer = new byte[BUFFER_SIZE];
+        }
+        m_input = input;
+        m_data = m_buffer;
+        m_base = 0;
+        start(0, 0);
+    }
+
+    /**
+     * Parse the next record into column values.
+     *
+     * @return column values or null when the data is exhausted
+     * @throws ParseException  if a quoted section is not terminated
+     * @throws IOException  if reading the input stream fails
+     */
+    public Object[] next() throws ParseException, IOException
+    {
+        if (!nextRecord()) {
+            return null;
+        }
+        final Object[] values = new Object[m_fieldCount];
+        for (int i = 0; i < m_fieldCount; ++i) {
+            values[i] = getString(i);
+        }
+        return values;
+    }
+
+    /**
+     * Tokenize the next record. Its fields are available until the
+     * following call to nextRecord(), next() or hasMoreData().
+     *
+     * @return false when the data is exhausted
+     * @throws ParseException  if a quoted section is not terminated
+     * @throws IOException  if reading the input stream fails
+     */
+    public boolean nextRecord() throws ParseException, IOException
+    {
+        if (!skipEmptyLines()) {
+            return false;
+        }
+        m_recordStart = m_pos;
+        m_recordLine = m_lineBreaks + 1;
+        m_fieldCount = 0;
+
+        int start = m_pos;
+        int i = m_pos;
+        boolean escaped = false;
+        int scratchStart = 0;
+        boolean inQuotes = false;
+        // Set right after a closing quote, where another quote is escaped.
+        boolean closed = false;
+        // Set after a CR inside quotes, where an LF is part of the same line break.
+        boolean afterCR = false;
+        m_scratchLength = 0;
+        while (true) {
+            if (i >= m_limit) {
+                if (m_input != null) {
+                    // Continue from the same positions in the refilled buffer.
+                    int shift = fill();
+                    i -= shift;
+                    start -= shift;
+                    continue;
+                }
+                if (inQuotes) {
+                    throw new ParseException("Unterminated quoted column", (int) (m_base + start));
+                }
+                addField(start, i, escaped, scratchStart);
+                m_recordEnd = i;
+                m_pos = i;
+                break;
+            }
+            final byte b = m_data[i];
+            if (inQuotes) {
+                if (afterCR) {
+                    afterCR = false;
+                    if (b == LF) {
+                        i++;
+                        continue;
+                    }
+                }
+                if (b == QUOTE) {
+                    inQuotes = false;
+                    closed = true;
+                }
+                else if (b == CR) {
+                    // Line breaks inside quotes become a single '\n'.
+                    appendScratch(LF);
+                    m_lineBreaks++;
+                    afterCR = true;
+                }
+                else {
+                    if (b == LF) {
+                        m_lineBreaks++;
+                    }
+                    appendScratch(b);
+                }
+                i++;
+                continue;
+            }
+            final boolean reopened = closed;
+            closed = false;
+            if (b == DELIMITER) {
+                addField(start, i, escaped, scratchStart);
+                i++;
+                start = i;
+                escaped = false;
+            }
+            else if (b == LF || b == CR) {
+                addField(start, i, escaped, scratchStart);
+                m_recordEnd = i;
+                m_lineBreaks++;
+                m_afterCR = (b == CR);
+                m_pos = i + 1;
+                break;
+            }
+            else if (b == QUOTE) {
+                if (reopened) {
+                    // "" inside a quoted section.
+                    appendScratch(QUOTE);
+                }
+                else if (!escaped) {
+                    // Switch to building the column in the scratch buffer.
+                    scratchStart = m_scratchLength;
+                    for (int j = start; j < i; ++j) {
+                        appendScratch(m_data[j]);
+                    }
+                    escaped = true;
+                }
+                inQuotes = true;
+                i++;
+            }
+            else {
+                if (escaped) {
+                    appendScratch(b);
+                }
+                i++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of fields in the current record
+     */
+    public int getFieldCount()
+    {
+        return m_fieldCount;
+    }
+
+    /**
+     * @param field  field index
+     * @return true if the field is empty, which reads as null
+     */
+    public boolean isNull(int field)
+    {
+        return m_fieldEnd[field] == m_fieldStart[field];
+    }
+
+    /**
+     * Decode a field of the current record.
+     *
+     * @param field  field index
+     * @return field value or null if it is empty
+     */
+    public String getString(int field)
+    {
+        final int start = m_fieldStart[field];
+        final int length = m_fieldEnd[field] - start;
+        if (length == 0) {
+            return null;
+        }
+        if (m_fieldEscaped[field]) {
+            return new String(m_scratch, start, length, StandardCharsets.UTF_8);
+        }
+        return new String(m_data, m_recordStart + start, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Hash the bytes of a field of the current record with 64-bit FNV-1a,
+     * without decoding it.
+     *
+     * @param field  field index
+     * @return hash
+     */
+    public long hashField(int field)
+    {
+        final byte[] data = m_fieldEscaped[field] ? m_scratch : m_data;
+        final int base = m_fieldEscaped[field] ? 0 : m_recordStart;
+        long hash = 0xcbf29ce484222325L;
+        for (int i = base + m_fieldStart[field]; i < base + m_fieldEnd[field]; ++i) {
+            hash = (hash ^ (data[i] & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Get the text of the last record returned by next(). It is available
+     * until the following call to next() or hasMoreData().
+     *
+     * @return record text
+     */
+    public String getRecordText()
+    {
+        return new String(m_data, m_recordStart, m_recordEnd - m_recordStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return offset of the last record in the array passed to reset(), for
+     *         array input only
+     */
+    public int getRecordOffset()
+    {
+        return m_recordStart;
+    }
+
+    /**
+     * @return length of the last record in bytes
+     */
+    public int getRecordLength()
+    {
+        return m_recordEnd - m_recordStart;
+    }
+
+    /**
+     * @return 1-based line number within the data where the last record
+     *         returned by next(), or the record that failed to parse, started
+     */
+    public int getRecordLine()
+    {
+        return m_recordLine;
+    }
+
+    /**
+     * @return true if more records may follow
+     * @throws IOException  if reading the input stream fails
+     */
+    public boolean hasMoreData() throws IOException
+    {
+        return skipEmptyLines();
+    }
+
+    private void start(int offset, int limit)
+    {
+        m_pos = offset;
+        m_limit = limit;
+        m_recordStart = offset;
+        m_recordEnd = offset;
+        m_lineBreaks = 0;
+        m_recordLine = 0;
+        m_afterCR = false;
+    }
+
+    /**
+     * Skip line breaks up to the next record.
+     *
+     * @return true if a record follows
+     * @throws IOException  if reading the input stream fails
+     */
+    private boolean skipEmptyLines() throws IOException
+    {
+        while (true) {
+            if (m_pos >= m_limit) {
+                if (m_input == null) {
+                    return false;
+                }
+                // Nothing before the next record needs to be kept.
+                m_recordStart = m_pos;
+                m_recordEnd = m_pos;
+                fill();
+                continue;
+            }
+            final byte b = m_data[m_pos];
+            if (b == LF && m_afterCR) {
+                m_afterCR = false;
+            }
+            else if (b == LF || b == CR) {
+                m_lineBreaks++;
+                m_afterCR = (b == CR);
+            }
+            else {
+                m_afterCR = false;
+                return true;
+            }
+            m_pos++;
+        }
+    }
+
+    /**
+     * Read more stream input after the buffered data. The current record is
+     * first moved to the start of the buffer, which grows if the record
+     * fills it. The stream is dropped when it is exhausted.
+     *
+     * @return distance the buffered data moved down
+     * @throws IOException  if reading the input stream fails
+     */
+    private int fill() throws IOException
+    {
+        final int shift = m_recordStart;
+        final int kept = m_limit - shift;
+        if (kept == m_data.length) {
+            byte[] data = new byte[m_data.length * 2];
+            System.arraycopy(m_data, shift, data, 0, kept);
+            m_data = data;
+            m_buffer = data;
+        }
+        else if (shift > 0) {
+            System.arraycopy(m_data, shift, m_data, 0, kept);
+        }
+        m_base += shift;
+        m_recordStart = 0;
+        m_recordEnd -= shift;
+        m_pos -= shift;
+        m_limit = kept;
+        final int count = m_input.read(m_data, m_limit, m_data.length - m_limit);
+        if (count < 0) {
+            m_input = null;
+        }
+        else {
+            m_limit += count;
+        }
+        return shift;
+    }
+
+    private void addField(int start, int end, boolean escaped, int scratchStart)
+    {
+        if (m_fieldCount == m_fieldStart.length) {
+            final int capacity = m_fieldCount * 2;
+            m_fieldStart = Arrays.copyOf(m_fieldStart, capacity);
+            m_fieldEnd = Arrays.copyOf(m_fieldEnd, capacity);
+            m_fieldEscaped = Arrays.copyOf(m_fieldEscaped, capacity);
+        }
+        if (escaped) {
+            m_fieldStart[m_fieldCount] = scratchStart;
+            m_fieldEnd[m_fieldCount] = m_scratchLength;
+        }
+        else {
+            // Relative offsets stay valid when a refill moves the record.
+            m_fieldStart[m_fieldCount] = start - m_recordStart;
+            m_fieldEnd[m_fieldCount] = end - m_recordStart;
+        }
+        m_fieldEscaped[m_fieldCount] = escaped;
+        m_fieldCount++;
+    }
+
+    private void appendScratch(byte b)
+    {
+        if (m_scratchLength == m_scratch.length) {
+            m_scratch = Arrays.copyOf(m_scratch, m_scratch.length * 2);
+        }
+        m_scratch[m_scratchLength++] = b;
+    }
+}
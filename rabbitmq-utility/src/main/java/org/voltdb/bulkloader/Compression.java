@@ -0,0 +1,174 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * Message body compression, named by the AMQP content-encoding property.
+ * Streams are used so that bodies can be decompressed chunk by chunk.
+ */
+public enum Compression
+{
+    GZIP("gzip")
+    {
+        @Override
+        public InputStream decompress(InputStream input) throws IOException
+        {
+            return new GZIPInputStream(input, STREAM_BUFFER_SIZE);
+        }
+
+        @Override
+        public OutputStream compress(OutputStream output) throws IOException
+        {
+            return new GZIPOutputStream(output, STREAM_BUFFER_SIZE);
+        }
+    },
+    /// zlib format, as for HTTP.
+    DEFLATE("deflate")
+    {
+        @Override
+        public InputStream decompress(InputStream input) throws IOException
+        {
+            return new InflaterInputStream(input);
+        }
+
+        @Override
+        public OutputStream compress(OutputStream output) throws IOException
+        {
+            return new DeflaterOutputStream(output);
+        }
+    },
+    /// LZ4 frame format.
+    LZ4("lz4")
+    {
+        @Override
+        public InputStream decompress(InputStream input) throws IOException
+        {
+            return new LZ4FrameInputStream(input);
+        }
+
+        @Override
+        public OutputStream compress(OutputStream output) throws IOException
+        {
+            return new LZ4FrameOutputStream(output);
+        }
+    },
+    ZSTD("zstd")
+    {
+        @Override
+        public InputStream decompress(InputStream input) throws IOException
+        {
+            return new ZstdInputStream(input);
+        }
+
+        @Override
+        public OutputStream compress(OutputStream output) throws IOException
+        {
+            return new ZstdOutputStream(output);
+        }
+    };
+
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    private final String m_encoding;
+
+    private Compression(final String encoding)
+    {
+        m_encoding = encoding;
+    }
+
+    /**
+     * @return content-encoding property value
+     */
+    public String getEncoding()
+    {
+        return m_encoding;
+    }
+
+    @Override
+    public String toString()
+    {
+        return m_encoding;
+    }
+
+    /**
+     * Wrap a stream of compressed data.
+     * @param input  compressed input
+     * @return stream of decompressed data
+     * @throws IOException  if the compressed data header is bad
+     */
+    public abstract InputStream decompress(InputStream input) throws IOException;
+
+    /**
+     * Wrap a stream to compress data written to it.
+     * @param output  compressed output
+     * @return stream to write uncompressed data to
+     * @throws IOException
+     */
+    public abstract OutputStream compress(OutputStream output) throws IOException;
+
+    /**
+     * Look up compression by content-encoding.
+     * @param encoding  content-encoding property value
+     * @return compression or null if the encoding is unknown
+     */
+    public static Compression fromEncoding(final String encoding)
+    {
+        for (Compression compression : values()) {
+            if (compression.m_encoding.equalsIgnoreCase(encoding)) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return comma-separated list of supported encodings
+     */
+    public static String getEncodings()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Compression compression : values()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(compression.m_encoding);
+        }
+        return sb.toString();
+    }
+}
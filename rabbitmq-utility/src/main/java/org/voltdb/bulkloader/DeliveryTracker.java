@@ -0,0 +1,248 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Recorder;
+import org.voltcore.logging.VoltLogger;
+
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Tracks unsettled deliveries on one RabbitMQ channel and settles them once
+ * the rows they carry have been committed or rejected by VoltDB.
+ *
+ * Delivery tags are assigned sequentially per channel, so the tracker keeps
+ * a ring of states indexed by tag. Successful deliveries are acknowledged
+ * with multiple=true once a contiguous run of at least ackBatch deliveries
+ * has been settled, or when nothing remains outstanding. Failed deliveries
+ * are rejected individually right away.
+ */
+class DeliveryTracker
+{
+    private static final VoltLogger LOG = new VoltLogger("RABBITMQLOADER");
+
+    private static final byte PENDING = 0;
+    private static final byte COMMITTED = 1;
+    private static final byte REJECTED = 2;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    /// Latencies above this many microseconds are recorded as this value.
+    static final long MAX_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+
+    private final Channel m_channel;
+    private final int m_ackBatch;
+
+    /// Settlement state ring, indexed by (tag - m_baseTag + m_head) % capacity.
+    private byte[] m_states = new byte[INITIAL_CAPACITY];
+    /// Delivery times, parallel to m_states (only kept for latency consumers).
+    private long[] m_times = null;
+    private PrefetchController m_prefetchController = null;
+    private Recorder m_latencyRecorder = null;
+    private int m_head = 0;
+    /// Lowest delivery tag that has not been settled with the broker.
+    private long m_baseTag = 1;
+    /// Next delivery tag expected from the broker.
+    private long m_nextTag = 1;
+    /// Highest committed tag that has not been acknowledged yet (0 if none).
+    private long m_ackableTag = 0;
+    /// Number of deliveries covered by m_ackableTag.
+    private int m_ackableCount = 0;
+
+    /**
+     * Construct a tracker for a channel.
+     *
+     * @param channel  channel the deliveries arrive on
+     * @param ackBatch  minimum number of deliveries per bulk acknowledgement
+     */
+    public DeliveryTracker(final Channel channel, int ackBatch)
+    {
+        m_channel = channel;
+        m_ackBatch = Math.max(ackBatch, 1);
+    }
+
+    /**
+     * Feed delivery-to-commit latencies to a prefetch controller.
+     *
+     * @param prefetchController  prefetch controller
+     */
+    public synchronized void setPrefetchController(final PrefetchController prefetchController)
+    {
+        m_prefetchController = prefetchController;
+        keepTimes();
+    }
+
+    /**
+     * Record delivery-to-settlement latencies in microseconds.
+     *
+     * @param latencyRecorder  latency histogram recorder
+     */
+    public synchronized void setLatencyRecorder(final Recorder latencyRecorder)
+    {
+        m_latencyRecorder = latencyRecorder;
+        keepTimes();
+    }
+
+    /**
+     * Register a delivery received from the broker.
+     *
+     * @param deliveryTag  delivery tag
+     */
+    public synchronized void register(long deliveryTag)
+    {
+        if (deliveryTag < m_nextTag) {
+            throw new IllegalStateException(String.format(
+                    "Delivery tag %d is out of sequence (expected %d).", deliveryTag, m_nextTag));
+        }
+        // Skipped tags were never handed to us and have nothing to settle.
+        while (m_nextTag <= deliveryTag) {
+            ensureCapacity();
+            setState(m_nextTag, m_nextTag == deliveryTag ? PENDING : REJECTED);
+            m_nextTag++;
+        }
+        if (m_times != null) {
+            m_times[index(deliveryTag)] = System.nanoTime();
+        }
+    }
+
+    /**
+     * Settle a delivery after its row was committed or rejected.
+     *
+     * @param deliveryTag  delivery tag
+     * @param success  true if VoltDB committed the row
+     */
+    public synchronized void complete(long deliveryTag, boolean success)
+    {
+        if (deliveryTag < m_baseTag || deliveryTag >= m_nextTag) {
+            LOG.warn(String.format("Ignoring completion for unknown delivery tag %d.", deliveryTag));
+            return;
+        }
+        if (m_times != null) {
+            final long latency = System.nanoTime() - m_times[index(deliveryTag)];
+            if (m_prefetchController != null) {
+                m_prefetchController.onSettled(latency, getPendingCount());
+            }
+            if (m_latencyRecorder != null) {
+                m_latencyRecorder.recordValue(
+                        Math.min(TimeUnit.NANOSECONDS.toMicros(latency), MAX_LATENCY_MICROS));
+            }
+        }
+        if (success) {
+            setState(deliveryTag, COMMITTED);
+        }
+        else {
+            setState(deliveryTag, REJECTED);
+            try {
+                m_channel.basicNack(deliveryTag, false, false);
+            }
+            catch (IOException | AlreadyClosedException e) {
+                LOG.warn(String.format("Failed to reject delivery %d.", deliveryTag), e);
+            }
+        }
+
+        // Advance past the contiguous settled prefix.
+        while (m_baseTag < m_nextTag && getState(m_baseTag) != PENDING) {
+            if (getState(m_baseTag) == COMMITTED) {
+                m_ackableTag = m_baseTag;
+            }
+            m_ackableCount++;
+            m_head = (m_head + 1) % m_states.length;
+            m_baseTag++;
+        }
+        if (m_ackableCount >= m_ackBatch || m_baseTag == m_nextTag) {
+            flush();
+        }
+    }
+
+    /**
+     * Acknowledge all committed deliveries in the settled prefix.
+     */
+    public synchronized void flush()
+    {
+        if (m_ackableTag > 0) {
+            try {
+                m_channel.basicAck(m_ackableTag, true);
+            }
+            catch (IOException | AlreadyClosedException e) {
+                LOG.warn(String.format("Failed to acknowledge deliveries up to %d. "
+                                       + "They will be redelivered.", m_ackableTag), e);
+            }
+            m_ackableTag = 0;
+        }
+        m_ackableCount = 0;
+    }
+
+    /**
+     * @return number of registered deliveries not yet settled
+     */
+    public synchronized int getPendingCount()
+    {
+        return (int) (m_nextTag - m_baseTag);
+    }
+
+    private void keepTimes()
+    {
+        if (m_times == null) {
+            m_times = new long[m_states.length];
+        }
+    }
+
+    private int index(long deliveryTag)
+    {
+        return (int) ((m_head + deliveryTag - m_baseTag) % m_states.length);
+    }
+
+    private byte getState(long deliveryTag)
+    {
+        return m_states[index(deliveryTag)];
+    }
+
+    private void setState(long deliveryTag, byte state)
+    {
+        m_states[index(deliveryTag)] = state;
+    }
+
+    private void ensureCapacity()
+    {
+        int size = (int) (m_nextTag - m_baseTag);
+        if (size < m_states.length) {
+            return;
+        }
+        byte[] states = new byte[m_states.length * 2];
+        long[] times = m_times != null ? new long[states.length] : null;
+        for (int i = 0; i < size; ++i) {
+            states[i] = m_states[(m_head + i) % m_states.length];
+            if (times != null) {
+                times[i] = m_times[(m_head + i) % m_states.length];
+            }
+        }
+        m_states = states;
+        m_times = times;
+        m_head = 0;
+    }
+}
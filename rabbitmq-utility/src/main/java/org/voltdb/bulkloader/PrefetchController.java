@@ -0,0 +1,247 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.voltcore.logging.VoltLogger;
+
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Adjusts the prefetch window of a consumer channel to the observed
+ * delivery-to-commit latency.
+ *
+ * The window grows while the consumer keeps it full and the latency stays
+ * close to the best latency seen so far, i.e. while the broker rather than
+ * VoltDB is holding the loader back. It shrinks when the latency climbs,
+ * which means deliveries are queuing up inside the loader.
+ *
+ * Settlements only record samples and pick the window. Changing the
+ * prefetch is a broker round trip, so it is applied on a separate thread
+ * rather than the settling one, which may be a VoltDB client thread.
+ */
+class PrefetchController
+{
+    private static final VoltLogger LOG = new VoltLogger("RABBITMQLOADER");
+
+    private static final long EVALUATION_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double LATENCY_WEIGHT = 0.2;
+    /// Growth is allowed while latency is within this multiple of the baseline.
+    private static final double GROW_LATENCY_FACTOR = 2.0;
+    /// The window shrinks when latency exceeds this multiple of the baseline.
+    private static final double SHRINK_LATENCY_FACTOR = 4.0;
+    /// The baseline drifts up by this factor per evaluation to forget stale minimums.
+    private static final double BASELINE_DRIFT = 1.01;
+    /// The window counts as full when this fraction of it is outstanding.
+    private static final double FULL_WINDOW_FRACTION = 0.9;
+
+    private final Channel m_channel;
+    private final int m_minWindow;
+    private final int m_maxWindow;
+    /// Target window.
+    private int m_window;
+    private boolean m_paused = false;
+    /// True while an apply task is queued.
+    private boolean m_applyQueued = false;
+    /// Serializes prefetch changes, taken before the controller's own lock.
+    private final Object m_qosLock = new Object();
+    /// Window last applied to the channel, guarded by m_qosLock.
+    private int m_appliedWindow;
+    private final ExecutorService m_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "RabbitMQ prefetch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Runnable m_apply = new Runnable() {
+        @Override
+        public void run()
+        {
+            synchronized (m_qosLock) {
+                final int window;
+                synchronized (PrefetchController.this) {
+                    m_applyQueued = false;
+                    if (m_paused) {
+                        // Resuming applies the window.
+                        return;
+                    }
+                    window = m_window;
+                }
+                if (window == m_appliedWindow) {
+                    return;
+                }
+                try {
+                    m_channel.basicQos(window, true);
+                    m_appliedWindow = window;
+                }
+                catch (IOException | AlreadyClosedException e) {
+                    LOG.warn("Failed to change the prefetch window.", e);
+                }
+            }
+        }
+    };
+
+    private double m_latency = 0;
+    private double m_baseline = Double.MAX_VALUE;
+    private int m_peakPending = 0;
+    private long m_sampleCount = 0;
+    private long m_lastEvaluation = System.nanoTime();
+
+    /**
+     * Construct a controller for a channel.
+     *
+     * @param channel  consumer channel
+     * @param initialWindow  initial prefetch window
+     * @param minWindow  lower bound for the window
+     * @param maxWindow  upper bound for the window
+     */
+    public PrefetchController(final Channel channel, int initialWindow, int minWindow, int maxWindow)
+    {
+        m_channel = channel;
+        m_minWindow = Math.max(minWindow, 1);
+        m_maxWindow = Math.max(maxWindow, m_minWindow);
+        m_window = Math.min(Math.max(initialWindow, m_minWindow), m_maxWindow);
+        m_appliedWindow = m_window;
+    }
+
+    /**
+     * Apply the initial window. Call before consuming starts.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException
+    {
+        synchronized (m_qosLock) {
+            // A channel-wide limit takes effect immediately for an active consumer.
+            m_channel.basicQos(m_appliedWindow, true);
+        }
+    }
+
+    /**
+     * Stop the thread that applies window changes.
+     */
+    public void shutdown()
+    {
+        m_executor.shutdownNow();
+    }
+
+    /**
+     * @return current prefetch window
+     */
+    public synchronized int getWindow()
+    {
+        return m_window;
+    }
+
+    /**
+     * Pause deliveries by dropping the channel-wide limit to the paused
+     * prefetch, or resume them with the current window. The window is not
+     * adjusted while paused.
+     *
+     * @param paused  true to pause or false to resume
+     */
+    public void setPaused(boolean paused)
+    {
+        synchronized (m_qosLock) {
+            final int window;
+            synchronized (this) {
+                m_paused = paused;
+                window = m_window;
+            }
+            try {
+                m_channel.basicQos(paused ? RMQDeliveryConsumer.PAUSED_PREFETCH : window, true);
+                m_appliedWindow = paused ? RMQDeliveryConsumer.PAUSED_PREFETCH : window;
+            }
+            catch (IOException | AlreadyClosedException e) {
+                LOG.warn(String.format("Failed to %s consuming.", paused ? "pause" : "resume"), e);
+            }
+        }
+    }
+
+    /**
+     * Record a settled delivery and re-evaluate the window periodically.
+     *
+     * @param latencyNanos  delivery-to-commit latency
+     * @param pendingCount  deliveries outstanding before this one settled
+     */
+    public synchronized void onSettled(long latencyNanos, int pendingCount)
+    {
+        m_latency = m_sampleCount == 0
+                ? latencyNanos
+                : m_latency + LATENCY_WEIGHT * (latencyNanos - m_latency);
+        m_sampleCount++;
+        m_peakPending = Math.max(m_peakPending, pendingCount);
+
+        final long now = System.nanoTime();
+        if (now - m_lastEvaluation >= EVALUATION_INTERVAL_NANOS) {
+            m_lastEvaluation = now;
+            evaluate();
+        }
+    }
+
+    private void evaluate()
+    {
+        if (m_paused) {
+            // Latency while VoltDB pushes back says nothing about the window.
+            m_peakPending = 0;
+            return;
+        }
+        m_baseline = Math.min(m_baseline * BASELINE_DRIFT, m_latency);
+        int window = m_window;
+        if (m_latency > m_baseline * SHRINK_LATENCY_FACTOR) {
+            window = Math.max(m_minWindow, window / 2);
+        }
+        else if (m_peakPending >= m_window * FULL_WINDOW_FRACTION
+                    && m_latency <= m_baseline * GROW_LATENCY_FACTOR) {
+            window = Math.min(m_maxWindow, window + Math.max(window / 2, 1));
+        }
+        m_peakPending = 0;
+        if (window != m_window) {
+            LOG.debug(String.format("Prefetch window %d -> %d (latency %.1f ms, baseline %.1f ms)",
+                    m_window, window, m_latency / 1e6, m_baseline / 1e6));
+            m_window = window;
+            if (!m_applyQueued) {
+                try {
+                    m_executor.execute(m_apply);
+                    m_applyQueued = true;
+                }
+                catch (RejectedExecutionException e) {
+                    // Shut down with the consumer.
+                }
+            }
+        }
+    }
+}
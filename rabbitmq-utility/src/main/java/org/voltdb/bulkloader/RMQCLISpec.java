@@ -49,6 +49,8 @@ public class RMQCLISpec implements CLIDriver.CLISpec
     private boolean m_enableRoutingKey = false;
     private boolean m_enableBindingKey = false;
     private boolean m_enablePersistentFlag = false;
+    private boolean m_enableConsumerTuning = false;
+    private boolean m_requireQueue = true;
 
     static String EXCHANGE_TYPE_LIST;
     {
@@ -77,9 +79,21 @@ public class RMQCLISpec implements CLIDriver.CLISpec
     }
 
     public static RMQCLISpec createCLISpecForConsumer()
+    {
+        return createCLISpecForConsumer(true);
+    }
+
+    /**
+     * Create consumer options.
+     * @param requireQueue  false if queues may be specified by other means
+     * @return CLI spec
+     */
+    public static RMQCLISpec createCLISpecForConsumer(boolean requireQueue)
     {
         RMQCLISpec opts = new RMQCLISpec();
         opts.m_enableBindingKey = true;
+        opts.m_enableConsumerTuning = true;
+        opts.m_requireQueue = requireQueue;
         return opts;
     }
 
@@ -93,6 +107,16 @@ public class RMQCLISpec implements CLIDriver.CLISpec
         return null;
     }
 
+    protected RMQOptions.AckMode checkAckMode(String ackMode)
+    {
+        for (RMQOptions.AckMode cmpAckMode : RMQOptions.AckMode.values()) {
+            if (ackMode.equalsIgnoreCase(cmpAckMode.toString())) {
+                return cmpAckMode;
+            }
+        }
+        return null;
+    }
+
     /**
      * Add handled option metadata to provided Commons CLI Options object.
      */
@@ -113,7 +137,7 @@ public class RMQCLISpec implements CLIDriver.CLISpec
                             .withType(String.class)
                             .hasArg()
                             .withDescription("RabbitMQ queue name: (default: \"\")")
-                            .isRequired()
+                            .isRequired(m_requireQueue)
                             .create());
         options.addOption(OptionBuilder
                             .withLongOpt("exchange")
@@ -188,6 +212,53 @@ public class RMQCLISpec implements CLIDriver.CLISpec
                                         EXCHANGE_TYPE_LIST, this.opts.extype))
                                 .create());
         }
+        if (m_enableConsumerTuning) {
+            options.addOption(OptionBuilder
+                                .withLongOpt("ackmode")
+                                .withArgName("ackmode")
+                                .withType(String.class)
+                                .hasArg()
+                                .withDescription(String.format(
+                                        "RabbitMQ acknowledgement mode: immediate/commit (default: %s)",
+                                        this.opts.ackmode))
+                                .create());
+            options.addOption(OptionBuilder
+                                .withLongOpt("ackbatch")
+                                .withArgName("ackbatch")
+                                .withType(Number.class)
+                                .hasArg()
+                                .withDescription(String.format(
+                                        "minimum deliveries per bulk acknowledgement in commit mode (default: %d)",
+                                        this.opts.ackbatch))
+                                .create());
+            options.addOption(OptionBuilder
+                                .withLongOpt("prefetch")
+                                .withArgName("prefetch")
+                                .withType(String.class)
+                                .hasArg()
+                                .withDescription("RabbitMQ prefetch window or \"auto\" to adjust it "
+                                        + "to the commit latency (requires --ackmode commit) "
+                                        + "(default: 1, commit mode: 1000)")
+                                .create());
+            options.addOption(OptionBuilder
+                                .withLongOpt("prefetchmax")
+                                .withArgName("prefetchmax")
+                                .withType(Number.class)
+                                .hasArg()
+                                .withDescription(String.format(
+                                        "maximum automatic prefetch window (default: %d)",
+                                        this.opts.prefetchmax))
+                                .create());
+            options.addOption(OptionBuilder
+                                .withLongOpt("consumers")
+                                .withArgName("consumers")
+                                .withType(Number.class)
+                                .hasArg()
+                                .withDescription(String.format(
+                                        "number of parallel consumers, each with its own channel (default: %d)",
+                                        this.opts.consumers))
+                                .create());
+        }
     }
 
     /**
@@ -264,5 +335,53 @@ public class RMQCLISpec implements CLIDriver.CLISpec
         if (m_enableBindingKey) {
             this.opts.bindings = driver.getCommaSeparatedStrings("mqbinding");
         }
+
+        if (m_enableConsumerTuning) {
+            final String ackModeParam = driver.getTrimmedString(
+                    "ackmode", this.opts.ackmode.toString());
+            if (ackModeParam == null) {
+                driver.addError("Acknowledgement mode is empty.");
+            }
+            else {
+                this.opts.ackmode = checkAckMode(ackModeParam);
+                if (this.opts.ackmode == null) {
+                    driver.addError("Invalid acknowledgement mode: %s", ackModeParam);
+                }
+            }
+            this.opts.ackbatch = driver.getNumber("ackbatch", this.opts.ackbatch);
+            if (this.opts.ackbatch <= 0) {
+                driver.addError("Acknowledgement batch size must be > 0.");
+            }
+
+            final String prefetchParam = driver.getTrimmedString("prefetch", "");
+            if (prefetchParam != null) {
+                if (prefetchParam.equalsIgnoreCase("auto")) {
+                    this.opts.autoprefetch = true;
+                    if (this.opts.ackmode != RMQOptions.AckMode.COMMIT) {
+                        driver.addError("Automatic prefetch requires --ackmode commit.");
+                    }
+                }
+                else {
+                    try {
+                        this.opts.prefetch = Long.parseLong(prefetchParam);
+                        if (this.opts.prefetch <= 0 || this.opts.prefetch > 65535) {
+                            driver.addError("Prefetch window must be between 1 and 65535.");
+                        }
+                    }
+                    catch (NumberFormatException e) {
+                        driver.addError("Bad prefetch window: %s", prefetchParam);
+                    }
+                }
+            }
+            this.opts.prefetchmax = driver.getNumber("prefetchmax", this.opts.prefetchmax);
+            if (this.opts.prefetchmax <= 0 || this.opts.prefetchmax > 65535) {
+                driver.addError("Maximum prefetch window must be between 1 and 65535.");
+            }
+
+            this.opts.consumers = driver.getNumber("consumers", this.opts.consumers);
+            if (this.opts.consumers <= 0) {
+                driver.addError("Number of consumers must be > 0.");
+            }
+        }
     }
 }
@@ -0,0 +1,480 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Recorder;
+import org.voltcore.logging.VoltLogger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Push-based RabbitMQ consumer that hands raw message bodies to a parsing
+ * thread. The broker pushes deliveries into a queue bounded by the prefetch
+ * window, and take() returns them without copying or decoding the body.
+ */
+class RMQDeliveryConsumer extends DefaultConsumer
+{
+    private static final VoltLogger LOG = new VoltLogger("RABBITMQLOADER");
+
+    /// Smallest window the automatic prefetch may shrink to.
+    private static final int MIN_AUTO_PREFETCH = 10;
+    /// Channel-wide prefetch limit while consumption is paused.
+    static final int PAUSED_PREFETCH = 1;
+
+    /**
+     * A message as delivered by the broker.
+     */
+    public static class Delivery
+    {
+        public final Envelope envelope;
+        public final AMQP.BasicProperties properties;
+        public final byte[] body;
+        /// System.nanoTime() on arrival.
+        public final long receivedNanos = System.nanoTime();
+
+        public Delivery(final Envelope envelope, final AMQP.BasicProperties properties, final byte[] body)
+        {
+            this.envelope = envelope;
+            this.properties = properties;
+            this.body = body;
+        }
+
+        /**
+         * Get the publish time from the PUBLISH_TIME_HEADER header or, with
+         * only second precision, the timestamp property.
+         * @return publish time in microseconds since the epoch or -1 if unknown
+         */
+        public long getPublishMicros()
+        {
+            if (this.properties == null) {
+                return -1;
+            }
+            if (this.properties.getHeaders() != null) {
+                final Object micros = this.properties.getHeaders().get(PUBLISH_TIME_HEADER);
+                if (micros instanceof Number) {
+                    return ((Number) micros).longValue();
+                }
+            }
+            if (this.properties.getTimestamp() != null) {
+                return TimeUnit.MILLISECONDS.toMicros(this.properties.getTimestamp().getTime());
+            }
+            return -1;
+        }
+
+        /**
+         * @return arrival time in microseconds since the epoch
+         */
+        public long getReceivedMicros()
+        {
+            return EPOCH_OFFSET_MICROS + TimeUnit.NANOSECONDS.toMicros(this.receivedNanos);
+        }
+    }
+
+    /**
+     * Takes deliveries before they are queued for take() and poll(), e.g.
+     * to store them elsewhere. In COMMIT mode a diverted delivery stays
+     * registered with the tracker until the diverter completes it.
+     */
+    public interface Diverter
+    {
+        /**
+         * @param consumer  consumer that received the delivery
+         * @param delivery  delivery
+         * @return true if the delivery was taken
+         */
+        boolean divert(RMQDeliveryConsumer consumer, Delivery delivery);
+    }
+
+    /// Header with the publish time in microseconds since the epoch.
+    static final String PUBLISH_TIME_HEADER = "x-publish-micros";
+    /// Offset from System.nanoTime() to the epoch in microseconds.
+    private static final long EPOCH_OFFSET_MICROS =
+            TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())
+            - TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+
+    /// Queued after the last delivery when consuming stops.
+    private static final Delivery END_OF_STREAM = new Delivery(null, null, null);
+
+    /// RabbitMQ-related options.
+    private final RMQOptions m_opts;
+    /// Queue to consume from.
+    private final String m_queue;
+    /// Notified after each delivery is queued (optional).
+    private volatile Runnable m_deliveryListener = null;
+    /// Takes deliveries before they are queued (optional).
+    private volatile Diverter m_diverter = null;
+    private final BlockingQueue<Delivery> m_deliveries = new LinkedBlockingQueue<Delivery>();
+    // Tracks unsettled deliveries in COMMIT acknowledgement mode (null otherwise).
+    private volatile DeliveryTracker m_tracker = null;
+    // Adjusts the prefetch window in automatic mode (null otherwise).
+    private PrefetchController m_prefetchController = null;
+    private volatile boolean m_stopped = false;
+    private boolean m_paused = false;
+    /// Receives delivery-to-settlement latencies in COMMIT mode (optional).
+    private Recorder m_latencyRecorder = null;
+    private final AtomicLong m_messageCount = new AtomicLong(0);
+    private final AtomicLong m_byteCount = new AtomicLong(0);
+
+    /**
+     * Construct a consumer for a channel.
+     *
+     * @param channel  channel to consume from
+     * @param opts  RabbitMQ options
+     */
+    public RMQDeliveryConsumer(final Channel channel, final RMQOptions opts)
+    {
+        this(channel, opts, opts.queue);
+    }
+
+    /**
+     * Construct a consumer for a channel and a queue other than the one in
+     * the options.
+     *
+     * @param channel  channel to consume from
+     * @param opts  RabbitMQ options
+     * @param queue  queue name
+     */
+    public RMQDeliveryConsumer(final Channel channel, final RMQOptions opts, final String queue)
+    {
+        super(channel);
+        m_opts = opts;
+        m_queue = queue;
+    }
+
+    /**
+     * Set a listener to run on the connection thread after each delivery,
+     * e.g. to wake up a thread that polls several consumers.
+     *
+     * @param deliveryListener  listener
+     */
+    public void setDeliveryListener(final Runnable deliveryListener)
+    {
+        m_deliveryListener = deliveryListener;
+    }
+
+    /**
+     * Set a diverter to offer each delivery to on the connection thread
+     * before it is queued.
+     *
+     * @param diverter  diverter
+     */
+    public void setDiverter(final Diverter diverter)
+    {
+        m_diverter = diverter;
+    }
+
+    /**
+     * Pause or resume deliveries, e.g. while VoltDB applies backpressure.
+     * While paused the channel-wide prefetch limit drops to one unacknowledged
+     * delivery, so that deliveries back up in the broker rather than in the
+     * loader's memory.
+     *
+     * @param paused  true to pause or false to resume
+     */
+    public synchronized void setPaused(boolean paused)
+    {
+        if (paused == m_paused) {
+            return;
+        }
+        m_paused = paused;
+        if (m_prefetchController != null) {
+            m_prefetchController.setPaused(paused);
+            return;
+        }
+        try {
+            // Without a channel-wide limit the per-consumer prefetch applies again.
+            getChannel().basicQos(paused ? PAUSED_PREFETCH : 0, true);
+        }
+        catch (IOException | AlreadyClosedException e) {
+            LOG.warn(String.format("Failed to %s consuming from queue %s.",
+                                   paused ? "pause" : "resume", m_queue), e);
+        }
+    }
+
+    /**
+     * Record delivery-to-settlement latencies. Call before start().
+     *
+     * @param latencyRecorder  latency histogram recorder
+     */
+    public void setLatencyRecorder(final Recorder latencyRecorder)
+    {
+        m_latencyRecorder = latencyRecorder;
+    }
+
+    /**
+     * @return number of messages received
+     */
+    public long getMessageCount()
+    {
+        return m_messageCount.get();
+    }
+
+    /**
+     * @return number of message body bytes received
+     */
+    public long getByteCount()
+    {
+        return m_byteCount.get();
+    }
+
+    /**
+     * @return number of deliveries awaiting settlement in COMMIT mode, or 0
+     */
+    public int getPendingCount()
+    {
+        final DeliveryTracker tracker = m_tracker;
+        return tracker != null ? tracker.getPendingCount() : 0;
+    }
+
+    /**
+     * @return queue name
+     */
+    public String getQueue()
+    {
+        return m_queue;
+    }
+
+    /**
+     * Declare the queue and its bindings, apply the prefetch window and start
+     * consuming.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException
+    {
+        final Channel channel = getChannel();
+        if (m_opts.exchange != null && m_opts.extype != null) {
+            channel.exchangeDeclare(m_opts.exchange, m_opts.extype);
+        }
+        channel.queueDeclare(m_queue, m_opts.persistent, false, false, null);
+        if (m_opts.exchange != null) {
+            for (String bindingKey : m_opts.bindings) {
+                channel.queueBind(m_queue, m_opts.exchange, bindingKey);
+            }
+        }
+
+        if (m_opts.ackmode == RMQOptions.AckMode.COMMIT) {
+            m_tracker = new DeliveryTracker(channel, m_opts.ackbatch.intValue());
+            if (m_latencyRecorder != null) {
+                m_tracker.setLatencyRecorder(m_latencyRecorder);
+            }
+        }
+        if (m_opts.autoprefetch && m_tracker != null) {
+            PrefetchController prefetchController = new PrefetchController(
+                    channel, m_opts.getPrefetch(), MIN_AUTO_PREFETCH, m_opts.prefetchmax.intValue());
+            prefetchController.start();
+            m_tracker.setPrefetchController(prefetchController);
+            m_prefetchController = prefetchController;
+        }
+        else {
+            channel.basicQos(m_opts.getPrefetch());
+        }
+        channel.basicConsume(m_queue, false, this);
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope,
+            AMQP.BasicProperties properties, byte[] body) throws IOException
+    {
+        if (m_tracker != null) {
+            // Registering on arrival lets the latency include time spent queued here.
+            m_tracker.register(envelope.getDeliveryTag());
+        }
+        m_messageCount.incrementAndGet();
+        m_byteCount.addAndGet(body.length);
+        final Delivery delivery = new Delivery(envelope, properties, body);
+        final Diverter diverter = m_diverter;
+        if (diverter != null && diverter.divert(this, delivery)) {
+            return;
+        }
+        m_deliveries.add(delivery);
+        notifyListener();
+    }
+
+    @Override
+    public void handleCancelOk(String consumerTag)
+    {
+        m_deliveries.add(END_OF_STREAM);
+        notifyListener();
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) throws IOException
+    {
+        LOG.error(String.format("RabbitMQ consumer for queue %s was cancelled by the broker.", m_queue));
+        m_deliveries.add(END_OF_STREAM);
+        notifyListener();
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig)
+    {
+        if (!sig.isInitiatedByApplication()) {
+            LOG.error("RabbitMQ channel shut down unexpectedly.", sig);
+        }
+        m_deliveries.add(END_OF_STREAM);
+        notifyListener();
+    }
+
+    /**
+     * Wait for the next delivery. In IMMEDIATE mode it is acknowledged here.
+     *
+     * @return delivery or null when consuming has stopped
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public Delivery take() throws InterruptedException, IOException
+    {
+        if (m_stopped) {
+            return null;
+        }
+        return accept(m_deliveries.take());
+    }
+
+    /**
+     * Get the next delivery if one is waiting. In IMMEDIATE mode it is
+     * acknowledged here.
+     *
+     * @return delivery or null if none is waiting or consuming has stopped
+     * @throws IOException
+     */
+    public Delivery poll() throws IOException
+    {
+        if (m_stopped) {
+            return null;
+        }
+        return accept(m_deliveries.poll());
+    }
+
+    /**
+     * Offer the queued deliveries to the diverter in order, e.g. once it
+     * starts taking them, so that they no longer hold up the prefetch window.
+     * Deliveries it refuses stay queued. Call from the thread that takes
+     * deliveries.
+     */
+    public void divertQueued()
+    {
+        final Diverter diverter = m_diverter;
+        if (diverter == null) {
+            return;
+        }
+        Delivery delivery;
+        while ((delivery = m_deliveries.peek()) != null && delivery != END_OF_STREAM
+                && diverter.divert(this, delivery)) {
+            m_deliveries.poll();
+        }
+    }
+
+    /**
+     * @return true once consuming has stopped and take() will return null
+     */
+    public boolean isStopped()
+    {
+        return m_stopped;
+    }
+
+    private Delivery accept(final Delivery delivery) throws IOException
+    {
+        if (delivery == null) {
+            return null;
+        }
+        if (delivery == END_OF_STREAM) {
+            m_stopped = true;
+            return null;
+        }
+        if (m_tracker == null) {
+            getChannel().basicAck(delivery.envelope.getDeliveryTag(), false);
+        }
+        return delivery;
+    }
+
+    private void notifyListener()
+    {
+        final Runnable listener = m_deliveryListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * @return delivery tracker in COMMIT acknowledgement mode, otherwise null
+     */
+    public DeliveryTracker getTracker()
+    {
+        return m_tracker;
+    }
+
+    /**
+     * Stop consuming. Deliveries that were not taken yet are left
+     * unacknowledged and the broker will redeliver them.
+     */
+    public void stop()
+    {
+        m_stopped = true;
+        // Wake up a thread blocked in take() or waiting for the listener.
+        m_deliveries.add(END_OF_STREAM);
+        notifyListener();
+        try {
+            if (getConsumerTag() != null && getChannel().isOpen()) {
+                getChannel().basicCancel(getConsumerTag());
+            }
+        }
+        catch (IOException | AlreadyClosedException e) {
+            LOG.warn("Failed to cancel the RabbitMQ consumer.", e);
+        }
+    }
+
+    /**
+     * Acknowledge whatever is committed and close the channel.
+     */
+    public void close()
+    {
+        if (m_prefetchController != null) {
+            m_prefetchController.shutdown();
+        }
+        if (m_tracker != null) {
+            m_tracker.flush();
+        }
+        try {
+            if (getChannel().isOpen()) {
+                getChannel().close();
+            }
+        }
+        catch (IOException | AlreadyClosedException e) {
+            LOG.warn("Failed to close the RabbitMQ channel.", e);
+        }
+    }
+}
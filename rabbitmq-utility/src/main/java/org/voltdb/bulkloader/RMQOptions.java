@@ -29,6 +29,32 @@ package org.voltdb.bulkloader;
  */
 public class RMQOptions
 {
+    private final static int DEFAULT_ACK_BATCH = 100;
+    private final static int DEFAULT_PREFETCH = 1;
+    private final static int DEFAULT_COMMIT_PREFETCH = 1000;
+    private final static int DEFAULT_PREFETCH_MAX = 10000;
+
+    /// When deliveries are acknowledged to the broker
+    public enum AckMode {
+        /// As soon as the message is read
+        IMMEDIATE("immediate"),
+        /// After VoltDB commits the row carried by the message
+        COMMIT("commit");
+
+        private final String text;
+
+        private AckMode(final String text)
+        {
+            this.text = text;
+        }
+
+        @Override
+        public String toString()
+        {
+            return text;
+        }
+    }
+
     /// Host name or IP address
     public String host = null;
 
@@ -64,4 +90,39 @@ public class RMQOptions
 
     /// Make the queue persistent when true
     public boolean persistent = false;
+
+    /// Acknowledgement mode (consumers only)
+    public AckMode ackmode = AckMode.IMMEDIATE;
+
+    /// Minimum deliveries per bulk acknowledgement in COMMIT mode
+    public Long ackbatch = (long) DEFAULT_ACK_BATCH;
+
+    /// Consumer prefetch window (null for the ack mode default)
+    public Long prefetch = null;
+
+    /// Adjust the prefetch window at runtime when true
+    public boolean autoprefetch = false;
+
+    /// Upper bound for the adjusted prefetch window
+    public Long prefetchmax = (long) DEFAULT_PREFETCH_MAX;
+
+    /// Number of parallel consumers, each with its own channel
+    public Long consumers = 1L;
+
+    /**
+     * Get the initial prefetch window. Unless set explicitly, COMMIT mode
+     * gets a window large enough to fill batches while waiting for commits.
+     *
+     * @return prefetch window
+     */
+    public int getPrefetch()
+    {
+        if (this.prefetch != null) {
+            return this.prefetch.intValue();
+        }
+        if (this.ackmode == AckMode.COMMIT) {
+            return (int) Math.max(DEFAULT_COMMIT_PREFETCH, this.ackbatch * 2);
+        }
+        return DEFAULT_PREFETCH;
+    }
 }
@@ -72,6 +72,10 @@ public class VoltDBCLISpec implements CLIDriver.CLISpec
             .hasArg()
             .withDescription("VoltDB authentication password")
             .create());
+        options.addOption(OptionBuilder
+            .withLongOpt("topologyaware")
+            .withDescription("connect to all VoltDB hosts to route each partition's batches to its leader")
+            .create());
     }
 
     @Override
@@ -93,5 +97,6 @@ public class VoltDBCLISpec implements CLIDriver.CLISpec
         }
         this.opts.user = driver.getString("user");
         this.opts.password = driver.getString("password");
+        this.opts.topologyaware = driver.getBoolean("topologyaware");
     }
 }
@@ -32,4 +32,6 @@ public class VoltDBOptions
     public HostAndPort[] servers = null;
     public String user = null;
     public String password = null;
+    /// Connect to every host so that partition batches go straight to their leaders.
+    public boolean topologyaware = false;
 }
\ No newline at end of file
@@ -25,105 +25,361 @@
 package org.voltdb.bulkloader;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.voltdb.bulkloader.CLIDriver.CLISpec;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
-import com.rabbitmq.client.ConsumerCancelledException;
-import com.rabbitmq.client.QueueingConsumer;
-import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
 
+/**
+ * Drains a queue as fast as RabbitMQ delivers, without loading anything, to
+ * measure the broker-side baseline that the loader's throughput and latency
+ * can be compared against. Consumers count messages, bytes and CSV rows,
+ * record publish-to-receive latencies of messages with a publish time, and
+ * acknowledge in batches.
+ */
 public class RMQCSVReceive
 {
     private static final String SYNTAX = "test-rabbitmq-csv-receive [options ...]";
+    /// Prefetch window unless --prefetch is given.
+    private static final int DEFAULT_PREFETCH = 1000;
+    /// Seconds between rate summaries.
+    private static final long DEFAULT_REPORT_INTERVAL = 5;
+    /// Highest latency recorded, in microseconds.
+    private static final long MAX_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+
+    /**
+     * Counters shared by the consumers.
+     */
+    private static class ReceiveCounters
+    {
+        final AtomicLong messages = new AtomicLong(0);
+        final AtomicLong bytes = new AtomicLong(0);
+        final AtomicLong rows = new AtomicLong(0);
+        /// Publish-to-receive latencies in microseconds.
+        final Recorder latency = new Recorder(MAX_LATENCY_MICROS, 3);
+        /// Released when the message limit is reached.
+        final CountDownLatch done = new CountDownLatch(1);
+        /// Message limit or null for no limit.
+        final Long limit;
+
+        ReceiveCounters(Long limit)
+        {
+            this.limit = limit;
+        }
+    }
 
-    public static void receiveMessages(RMQOptions rmqOpts, TestOptions testOpts, String[] args)
-            throws IOException
+    /**
+     * Counts deliveries on its own channel and acknowledges every ackBatch
+     * of them with one multiple acknowledgement.
+     */
+    private static class BaselineConsumer extends DefaultConsumer
     {
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost(rmqOpts.host);
-        Connection connection = factory.newConnection();
-        Channel channel = connection.createChannel();
-        if (rmqOpts.exchange != null) {
-            if (rmqOpts.extype != null) {
-                channel.exchangeDeclare(rmqOpts.exchange, rmqOpts.extype);
+        private final ReceiveCounters counters;
+        private final long ackBatch;
+        private long unacked = 0;
+        private long lastTag = 0;
+
+        public BaselineConsumer(Channel channel, ReceiveCounters counters, long ackBatch)
+        {
+            super(channel);
+            this.counters = counters;
+            this.ackBatch = ackBatch;
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope,
+                AMQP.BasicProperties properties, byte[] body) throws IOException
+        {
+            final RMQDeliveryConsumer.Delivery delivery =
+                    new RMQDeliveryConsumer.Delivery(envelope, properties, body);
+            final long publishMicros = delivery.getPublishMicros();
+            if (publishMicros >= 0) {
+                // Clocks of other hosts may run ahead.
+                this.counters.latency.recordValue(Math.min(
+                        Math.max(delivery.getReceivedMicros() - publishMicros, 0), MAX_LATENCY_MICROS));
+            }
+            final String encoding = properties != null ? properties.getContentEncoding() : null;
+            if (encoding == null || encoding.isEmpty() || encoding.equalsIgnoreCase("identity")) {
+                this.counters.rows.addAndGet(countRows(body));
             }
-            for (String bindingKey : rmqOpts.bindings) {
-                channel.queueBind(rmqOpts.queue, rmqOpts.exchange, bindingKey);
+            this.counters.bytes.addAndGet(body.length);
+            final long messages = this.counters.messages.incrementAndGet();
+            if (this.ackBatch > 0) {
+                synchronized (this) {
+                    this.lastTag = envelope.getDeliveryTag();
+                    if (++this.unacked >= this.ackBatch) {
+                        getChannel().basicAck(this.lastTag, true);
+                        this.unacked = 0;
+                    }
+                }
+            }
+            if (this.counters.limit != null && messages >= this.counters.limit) {
+                this.counters.done.countDown();
             }
         }
 
-        try {
-            channel.queueDeclare(rmqOpts.queue, rmqOpts.persistent, false, false, null);
-            System.out.println(" [*] Waiting for messages. To exit press CTRL+C");
-            channel.basicQos(1);
-            QueueingConsumer consumer = new QueueingConsumer(channel);
-            channel.basicConsume(rmqOpts.queue, false, consumer);
-            while (true) {
-                QueueingConsumer.Delivery delivery = consumer.nextDelivery();
-                String message = new String(delivery.getBody());
-                channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-                // Sleep 1 second for every trailing '.'.
-                int dotCount = 0;
-                for (int i = message.length() - 1; i >= 0; --i) {
-                    if (message.charAt(i) == '.') {
-                        dotCount++;
+        /**
+         * Acknowledge the deliveries left over from the last batch.
+         * @throws IOException
+         */
+        public synchronized void flush() throws IOException
+        {
+            if (this.unacked > 0) {
+                getChannel().basicAck(this.lastTag, true);
+                this.unacked = 0;
+            }
+        }
+
+        private static long countRows(byte[] body)
+        {
+            long rows = 0;
+            for (byte b : body) {
+                if (b == '\n') {
+                    rows++;
+                }
+            }
+            if (body.length > 0 && body[body.length - 1] != '\n') {
+                rows++;
+            }
+            return rows;
+        }
+    }
+
+    public static void receiveMessages(final Connection connection, RMQOptions rmqOpts, TestOptions testOpts)
+            throws IOException, InterruptedException
+    {
+        final ReceiveCounters counters = new ReceiveCounters(testOpts.messages);
+        final int prefetch = rmqOpts.prefetch != null ? rmqOpts.getPrefetch() : DEFAULT_PREFETCH;
+        // A batch must fit into the prefetch window or consumption stalls.
+        final long ackBatch = testOpts.autoack ? 0 : Math.max(Math.min(rmqOpts.ackbatch, prefetch / 2), 1);
+        List<BaselineConsumer> consumers = new ArrayList<BaselineConsumer>();
+        for (int i = 0; i < rmqOpts.consumers; ++i) {
+            Channel channel = connection.createChannel();
+            if (i == 0) {
+                if (rmqOpts.exchange != null) {
+                    if (rmqOpts.extype != null) {
+                        channel.exchangeDeclare(rmqOpts.exchange, rmqOpts.extype);
                     }
-                    else {
-                        break;
+                }
+                channel.queueDeclare(rmqOpts.queue, rmqOpts.persistent, false, false, null);
+                if (rmqOpts.exchange != null) {
+                    for (String bindingKey : rmqOpts.bindings) {
+                        channel.queueBind(rmqOpts.queue, rmqOpts.exchange, bindingKey);
                     }
                 }
-                if (dotCount > 0) {
-                    message = message.substring(0, message.length() - dotCount);
+            }
+            if (!testOpts.autoack) {
+                channel.basicQos(prefetch);
+            }
+            consumers.add(new BaselineConsumer(channel, counters, ackBatch));
+        }
+        System.out.printf("Receiving from queue %s with %d consumers, %s.\n",
+                          rmqOpts.queue, consumers.size(),
+                          testOpts.autoack
+                                  ? "acknowledged automatically"
+                                  : String.format("prefetch %d, acknowledging every %d", prefetch, ackBatch));
+
+        final long start = System.nanoTime();
+        final long deadline = testOpts.duration != null ? start + TimeUnit.SECONDS.toNanos(testOpts.duration) : 0;
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        // Guards the latency recorder's interval histograms.
+        final Histogram total = new Histogram(MAX_LATENCY_MICROS, 3);
+        Thread totalPrinter = new Thread() {
+            @Override
+            public void run()
+            {
+                // Also report the totals when interrupted.
+                if (finished.compareAndSet(false, true)) {
+                    printTotals(counters, total, System.nanoTime() - start);
                 }
-                System.out.printf(" [x] Received '%s'\n", message);
-                Thread.sleep(dotCount * 1000);
             }
+        };
+        Runtime.getRuntime().addShutdownHook(totalPrinter);
+        for (BaselineConsumer consumer : consumers) {
+            consumer.getChannel().basicConsume(rmqOpts.queue, testOpts.autoack, consumer);
         }
-        catch (ShutdownSignalException|ConsumerCancelledException|InterruptedException e) {
-            e.printStackTrace();
+
+        long lastTime = start;
+        long lastMessages = 0;
+        long lastBytes = 0;
+        long lastRows = 0;
+        Histogram interval = null;
+        boolean done = false;
+        while (!done) {
+            long wait = TimeUnit.SECONDS.toNanos(testOpts.report) - (System.nanoTime() - lastTime);
+            if (deadline != 0) {
+                wait = Math.min(wait, deadline - System.nanoTime());
+            }
+            done = counters.done.await(Math.max(wait, 0), TimeUnit.NANOSECONDS)
+                    || (deadline != 0 && System.nanoTime() - deadline >= 0);
+            final long now = System.nanoTime();
+            if (now - lastTime >= TimeUnit.SECONDS.toNanos(testOpts.report)) {
+                final long messages = counters.messages.get();
+                final long bytes = counters.bytes.get();
+                final long rows = counters.rows.get();
+                synchronized (total) {
+                    interval = counters.latency.getIntervalHistogram(interval);
+                    total.add(interval);
+                }
+                printRates("", messages - lastMessages, bytes - lastBytes, rows - lastRows,
+                           now - lastTime, interval);
+                lastTime = now;
+                lastMessages = messages;
+                lastBytes = bytes;
+                lastRows = rows;
+            }
         }
-        finally {
-            channel.close();
-            connection.close();
+
+        for (BaselineConsumer consumer : consumers) {
+            consumer.getChannel().basicCancel(consumer.getConsumerTag());
+            consumer.flush();
+        }
+        if (finished.compareAndSet(false, true)) {
+            printTotals(counters, total, System.nanoTime() - start);
+            Runtime.getRuntime().removeShutdownHook(totalPrinter);
+        }
+    }
+
+    private static void printRates(String prefix, long messages, long bytes, long rows, long nanos,
+                                   Histogram latency)
+    {
+        final double seconds = nanos / 1e9;
+        System.out.printf("%s%d messages in %.1f s: %.0f messages/s, %.0f rows/s, %.2f MB/s\n",
+                          prefix, messages, seconds, messages / seconds, rows / seconds,
+                          bytes / seconds / (1024 * 1024));
+        if (latency.getTotalCount() > 0) {
+            System.out.printf("  publish to receive p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms\n",
+                              latency.getValueAtPercentile(50) / 1000.0,
+                              latency.getValueAtPercentile(99) / 1000.0,
+                              latency.getValueAtPercentile(99.9) / 1000.0,
+                              latency.getMaxValue() / 1000.0);
+        }
+    }
+
+    private static void printTotals(ReceiveCounters counters, Histogram total, long nanos)
+    {
+        synchronized (total) {
+            total.add(counters.latency.getIntervalHistogram());
+            printRates("Total: ", counters.messages.get(), counters.bytes.get(), counters.rows.get(),
+                       nanos, total);
         }
     }
 
-    //TODO: Additional test-specific option and argument handling. Delete if not needed.
     private static class TestOptions
     {
+        /// Seconds between rate summaries.
+        public long report = DEFAULT_REPORT_INTERVAL;
+        /// Stop after this many messages or null.
+        public Long messages = null;
+        /// Stop after this many seconds or null.
+        public Long duration = null;
+        /// Let the broker acknowledge on delivery when true.
+        public boolean autoack = false;
     }
 
     private static class TestCLISpec implements CLISpec
     {
         /// Public option data
         public TestOptions opts = new TestOptions();
+        /// RabbitMQ options, parsed first.
+        private final RMQOptions rmqOpts;
+
+        public TestCLISpec(final RMQOptions rmqOpts)
+        {
+            this.rmqOpts = rmqOpts;
+        }
 
         @Override
+        @SuppressWarnings("static-access")
         public void preParse(Options options)
         {
+            options.addOption(OptionBuilder
+                                .withLongOpt("report")
+                                .withArgName("seconds")
+                                .withType(Number.class)
+                                .hasArg()
+                                .withDescription(String.format(
+                                        "seconds between rate summaries (default: %d)", DEFAULT_REPORT_INTERVAL))
+                                .create());
+            options.addOption(OptionBuilder
+                                .withLongOpt("messages")
+                                .withArgName("messages")
+                                .withType(Number.class)
+                                .hasArg()
+                                .withDescription("stop after this many messages")
+                                .create());
+            options.addOption(OptionBuilder
+                                .withLongOpt("duration")
+                                .withArgName("seconds")
+                                .withType(Number.class)
+                                .hasArg()
+                                .withDescription("stop after this many seconds")
+                                .create());
+            options.addOption(OptionBuilder
+                                .withLongOpt("autoack")
+                                .withDescription("let the broker acknowledge deliveries as it sends them, "
+                                                 + "ignoring --prefetch and --ackbatch")
+                                .create());
         }
 
         @Override
         public void postParse(CLIDriver driver)
         {
+            this.opts.report = driver.getNumber("report", this.opts.report);
+            if (this.opts.report <= 0) {
+                driver.addError("Report interval must be greater than zero: %d", this.opts.report);
+            }
+            this.opts.messages = driver.getNumber("messages", this.opts.messages);
+            if (this.opts.messages != null && this.opts.messages <= 0) {
+                driver.addError("Message limit must be greater than zero: %d", this.opts.messages);
+            }
+            this.opts.duration = driver.getNumber("duration", this.opts.duration);
+            if (this.opts.duration != null && this.opts.duration <= 0) {
+                driver.addError("Duration must be greater than zero: %d", this.opts.duration);
+            }
+            this.opts.autoack = driver.getBoolean("autoack");
+            if (this.rmqOpts.autoprefetch) {
+                driver.addError("The receiver keeps a fixed prefetch window, so --prefetch auto "
+                                + "only applies to the bulk loader.");
+            }
         }
     }
 
     public static void main(String[] args) throws IOException
     {
         RMQCLISpec rmqCLI = RMQCLISpec.createCLISpecForConsumer();
-        TestCLISpec testCLI = new TestCLISpec();
-        CLIDriver options = CLIDriver.parse(SYNTAX, args, rmqCLI, testCLI);
+        TestCLISpec testCLI = new TestCLISpec(rmqCLI.opts);
+        CLIDriver.parse(SYNTAX, args, rmqCLI, testCLI);
+        Connection connection = null;
         try {
-            receiveMessages(rmqCLI.opts, testCLI.opts, options.args);
+            ConnectionFactory factory = new ConnectionFactory();
+            factory.setHost(rmqCLI.opts.host);
+            connection = factory.newConnection();
+            receiveMessages(connection, rmqCLI.opts, testCLI.opts);
         }
         catch (Exception e) {
             e.printStackTrace();
             System.exit(255);
         }
+        finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
     }
 }
@@ -0,0 +1,515 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Generates CSV rows from a generator specification with one letter per
+ * column, optionally followed by [arguments] and by ? to make the column
+ * nullable:
+ *
+ *   i              sequence number
+ *   s              "S" plus the sequence number, quoted
+ *   s[N], s[M-N]   random alphanumeric string of N, or M to N, characters
+ *   l              random long
+ *   k[N]           uniformly distributed key from 0 to N-1 (default N: 1000000)
+ *   z[N,THETA]     Zipfian key from 0 to N-1 with skew 0 < THETA < 1, where 0
+ *                  is the hottest (default N: 1000000, THETA: 0.99)
+ *   d[P,S]         decimal with P digits, S of them after the point (default 12,4)
+ *   t              timestamp within 2018 with microseconds
+ *   x[N]           hexadecimal VARBINARY value of N bytes (default 16)
+ *   ?, ?P          empty, i.e. null, in 10%, or P%, of the rows
+ *
+ * E.g. "iz[100000,0.9]s[8-32]d[10,2]?t" or the original "is".
+ *
+ * Random values are drawn up front into a pool of rows, which are then
+ * cycled through with only the sequence numbers filled in, so that
+ * generating rows costs little more than copying them.
+ */
+class CSVRowGenerator
+{
+    /// Most rows in the pool.
+    private static final int MAX_POOL_ROWS = 65536;
+    /// Fewest rows in the pool, however wide they are.
+    private static final int MIN_POOL_ROWS = 1024;
+    /// Characters in the pool beyond which no more rows are added.
+    private static final int MAX_POOL_CHARS = 16 * 1024 * 1024;
+    private static final int DEFAULT_NULL_PERCENT = 10;
+    private static final long DEFAULT_KEY_COUNT = 1000000;
+    private static final double DEFAULT_THETA = 0.99;
+    private static final char[] ALPHANUMERIC =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    /// Timestamps fall within 2018.
+    private static final long TIMESTAMP_START_MILLIS = 1514764800000L;
+    private static final long TIMESTAMP_RANGE_MILLIS = 365L * 24 * 3600 * 1000;
+
+    /**
+     * A column of the specification.
+     */
+    private static abstract class Column
+    {
+        int nullPercent = 0;
+
+        /**
+         * @return true if the column shows the sequence number, filled in per row
+         */
+        boolean isSequence()
+        {
+            return false;
+        }
+
+        /**
+         * Append a random value.
+         */
+        abstract void append(StringBuilder sb, Random random);
+
+        /**
+         * Append the value for a sequence number.
+         */
+        void appendSequence(StringBuilder sb, long sequence)
+        {
+        }
+    }
+
+    private static class SequenceColumn extends Column
+    {
+        @Override
+        boolean isSequence()
+        {
+            return true;
+        }
+
+        @Override
+        void append(StringBuilder sb, Random random)
+        {
+        }
+
+        @Override
+        void appendSequence(StringBuilder sb, long sequence)
+        {
+            sb.append(sequence);
+        }
+    }
+
+    private static class SequenceStringColumn extends SequenceColumn
+    {
+        @Override
+        void appendSequence(StringBuilder sb, long sequence)
+        {
+            sb.append("\"S").append(sequence).append('"');
+        }
+    }
+
+    private static class StringColumn extends Column
+    {
+        private final int m_minLength;
+        private final int m_maxLength;
+
+        StringColumn(int minLength, int maxLength)
+        {
+            m_minLength = minLength;
+            m_maxLength = maxLength;
+        }
+
+        @Override
+        void append(StringBuilder sb, Random random)
+        {
+            final int length = m_minLength + random.nextInt(m_maxLength - m_minLength + 1);
+            for (int i = 0; i < length; ++i) {
+                sb.append(ALPHANUMERIC[random.nextInt(ALPHANUMERIC.length)]);
+            }
+        }
+    }
+
+    private static class LongColumn extends Column
+    {
+        @Override
+        void append(StringBuilder sb, Random random)
+        {
+            long value;
+            do {
+                value = random.nextLong();
+            } while (value == Long.MIN_VALUE); // VoltDB's BIGINT null
+            sb.append(value);
+        }
+    }
+
+    private static class UniformKeyColumn extends Column
+    {
+        private final long m_count;
+
+        UniformKeyColumn(long count)
+        {
+            m_count = count;
+        }
+
+        @Override
+        void append(StringBuilder sb, Random random)
+        {
+            sb.append((long) (random.nextDouble() * m_count));
+        }
+    }
+
+    /**
+     * Zipfian keys as described in Gray et al., "Quickly Generating
+     * Billion-Record Synthetic Databases", SIGMOD 1994.
+     */
+    private static class ZipfianKeyColumn extends Column
+    {
+        private final long m_count;
+        private final double m_theta;
+        private final double m_alpha;
+        private final double m_zetan;
+        private final double m_eta;
+
+        ZipfianKeyColumn(long count, double theta)
+        {
+            m_count = count;
+            m_theta = theta;
+            m_alpha = 1.0 / (1.0 - theta);
+            m_zetan = zeta(count, theta);
+            m_eta = (1 - Math.pow(2.0 / count, 1 - theta)) / (1 - zeta(2, theta) / m_zetan);
+        }
+
+        private static double zeta(long count, double theta)
+        {
+            double sum = 0;
+            for (long i = 1; i <= count; ++i) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        @Override
+        void append(StringBuilder sb, Random random)
+        {
+            final double u = random.nextDouble();
+            final double uz = u * m_zetan;
+            long key;
+            if (uz < 1.0) {
+                key = 0;
+            }
+            else if (uz < 1.0 + Math.pow(0.5, m_theta)) {
+                key = 1;
+            }
+            else {
+                key = Math.min((long) (m_count * Math.pow(m_eta * u - m_eta + 1, m_alpha)), m_count - 1);
+            }
+            sb.append(key);
+        }
+    }
+
+    private static class DecimalColumn extends Column
+    {
+        private final int m_integerDigits;
+        private final int m_scale;
+
+        DecimalColumn(int precision, int scale)
+        {
+            m_integerDigits = precision - scale;
+            m_scale = scale;
+        }
+
+        @Override
+        void append(StringBuilder sb, Random random)
+        {
+            if (random.nextBoolean()) {
+                sb.append('-');
+            }
+            if (m_integerDigits == 0) {
+                sb.append('0');
+            }
+            else {
+                appendDigits(sb, random, 1 + random.nextInt(m_integerDigits), false);
+            }
+            if (m_scale > 0) {
+                sb.append('.');
+                appendDigits(sb, random, m_scale, true);
+            }
+        }
+
+        private static void appendDigits(StringBuilder sb, Random random, int count, boolean leadingZero)
+        {
+            for (int i = 0; i < count; ++i) {
+                sb.append((char) ('0' + (i == 0 && !leadingZero ? 1 + random.nextInt(9) : random.nextInt(10))));
+            }
+        }
+    }
+
+    private static class TimestampColumn extends Column
+    {
+        private final SimpleDateFormat m_format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+        TimestampColumn()
+        {
+            m_format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+
+        @Override
+        void append(StringBuilder sb, Random random)
+        {
+            final long millis = TIMESTAMP_START_MILLIS + (long) (random.nextDouble() * TIMESTAMP_RANGE_MILLIS);
+            sb.append(m_format.format(new Date(millis)));
+            final int micros = random.nextInt(1000);
+            sb.append((char) ('0' + micros / 100)).append((char) ('0' + micros / 10 % 10))
+              .append((char) ('0' + micros % 10));
+        }
+    }
+
+    private static class HexColumn extends Column
+    {
+        private final int m_length;
+
+        HexColumn(int length)
+        {
+            m_length = length;
+        }
+
+        @Override
+        void append(StringBuilder sb, Random random)
+        {
+            for (int i = 0; i < m_length; ++i) {
+                final int value = random.nextInt(256);
+                sb.append(HEX[value >> 4]).append(HEX[value & 0xF]);
+            }
+        }
+    }
+
+    /**
+     * A pooled row: literal text around the sequence number columns.
+     */
+    private static class PooledRow
+    {
+        final String[] literals;
+        /// Sequence number columns that are null in this row, or null if none are.
+        final boolean[] sequenceNulls;
+
+        PooledRow(final String[] literals, final boolean[] sequenceNulls)
+        {
+            this.literals = literals;
+            this.sequenceNulls = sequenceNulls;
+        }
+    }
+
+    private final List<Column> m_sequenceColumns = new ArrayList<Column>();
+    private final PooledRow[] m_pool;
+    private long m_sequence = 0;
+    private int m_next = 0;
+
+    private CSVRowGenerator(final List<Column> columns, final Random random)
+    {
+        for (Column column : columns) {
+            if (column.isSequence()) {
+                m_sequenceColumns.add(column);
+            }
+        }
+        List<PooledRow> pool = new ArrayList<PooledRow>();
+        long poolChars = 0;
+        while (pool.size() < MAX_POOL_ROWS && (pool.size() < MIN_POOL_ROWS || poolChars < MAX_POOL_CHARS)) {
+            PooledRow row = generate(columns, random);
+            for (String literal : row.literals) {
+                poolChars += literal.length();
+            }
+            pool.add(row);
+        }
+        m_pool = pool.toArray(new PooledRow[pool.size()]);
+    }
+
+    private PooledRow generate(final List<Column> columns, final Random random)
+    {
+        final String[] literals = new String[m_sequenceColumns.size() + 1];
+        boolean[] sequenceNulls = null;
+        StringBuilder sb = new StringBuilder();
+        int sequenceIndex = 0;
+        for (int i = 0; i < columns.size(); ++i) {
+            final Column column = columns.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            final boolean isNull = column.nullPercent > 0 && random.nextInt(100) < column.nullPercent;
+            if (column.isSequence()) {
+                if (isNull) {
+                    if (sequenceNulls == null) {
+                        sequenceNulls = new boolean[m_sequenceColumns.size()];
+                    }
+                    sequenceNulls[sequenceIndex] = true;
+                }
+                literals[sequenceIndex++] = sb.toString();
+                sb.setLength(0);
+            }
+            else if (!isNull) {
+                column.append(sb, random);
+            }
+        }
+        literals[sequenceIndex] = sb.toString();
+        return new PooledRow(literals, sequenceNulls);
+    }
+
+    /**
+     * @return next row
+     */
+    public String nextRow()
+    {
+        final PooledRow row = m_pool[m_next];
+        m_next = (m_next + 1) % m_pool.length;
+        m_sequence++;
+        if (row.literals.length == 1) {
+            return row.literals[0];
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < m_sequenceColumns.size(); ++i) {
+            sb.append(row.literals[i]);
+            if (row.sequenceNulls == null || !row.sequenceNulls[i]) {
+                m_sequenceColumns.get(i).appendSequence(sb, m_sequence);
+            }
+        }
+        sb.append(row.literals[row.literals.length - 1]);
+        return sb.toString();
+    }
+
+    /**
+     * Parse a generator specification.
+     * @param genspec  specification
+     * @param seed  random seed or null
+     * @return generator
+     * @throws IllegalArgumentException  if the specification is bad
+     */
+    public static CSVRowGenerator parse(final String genspec, final Long seed)
+    {
+        final List<Column> columns = new ArrayList<Column>();
+        int pos = 0;
+        while (pos < genspec.length()) {
+            final char type = genspec.charAt(pos++);
+            String[] args = new String[0];
+            if (pos < genspec.length() && genspec.charAt(pos) == '[') {
+                final int end = genspec.indexOf(']', pos);
+                if (end < 0) {
+                    throw new IllegalArgumentException(String.format("Missing ] after %c[", type));
+                }
+                args = genspec.substring(pos + 1, end).split(",");
+                pos = end + 1;
+            }
+            final Column column = createColumn(type, args);
+            if (pos < genspec.length() && genspec.charAt(pos) == '?') {
+                int end = ++pos;
+                while (end < genspec.length() && Character.isDigit(genspec.charAt(end))) {
+                    end++;
+                }
+                column.nullPercent = end > pos ? Integer.parseInt(genspec.substring(pos, end)) : DEFAULT_NULL_PERCENT;
+                if (column.nullPercent > 100) {
+                    throw new IllegalArgumentException("Null percentage over 100");
+                }
+                pos = end;
+            }
+            columns.add(column);
+        }
+        if (columns.isEmpty()) {
+            throw new IllegalArgumentException("No columns");
+        }
+        return new CSVRowGenerator(columns, seed != null ? new Random(seed) : new Random());
+    }
+
+    private static Column createColumn(char type, final String[] args)
+    {
+        try {
+            switch (type) {
+            case 'i':
+                checkArgs(type, args, 0);
+                return new SequenceColumn();
+            case 's':
+                checkArgs(type, args, 1);
+                if (args.length == 0) {
+                    return new SequenceStringColumn();
+                }
+                final String[] range = args[0].split("-");
+                final int minLength = Integer.parseInt(range[0].trim());
+                final int maxLength = range.length > 1 ? Integer.parseInt(range[1].trim()) : minLength;
+                if (range.length > 2 || minLength < 0 || maxLength < minLength) {
+                    throw new IllegalArgumentException("Bad string length: " + args[0]);
+                }
+                return new StringColumn(minLength, maxLength);
+            case 'l':
+                checkArgs(type, args, 0);
+                return new LongColumn();
+            case 'k':
+                checkArgs(type, args, 1);
+                return new UniformKeyColumn(getPositiveLong(args, 0, DEFAULT_KEY_COUNT));
+            case 'z':
+                checkArgs(type, args, 2);
+                final long count = getPositiveLong(args, 0, DEFAULT_KEY_COUNT);
+                final double theta = args.length > 1 ? Double.parseDouble(args[1].trim()) : DEFAULT_THETA;
+                if (!(theta > 0 && theta < 1) || count < 2) {
+                    throw new IllegalArgumentException("Zipfian keys need N >= 2 and 0 < THETA < 1");
+                }
+                return new ZipfianKeyColumn(count, theta);
+            case 'd':
+                checkArgs(type, args, 2);
+                final int precision = (int) getPositiveLong(args, 0, 12);
+                final int scale = args.length > 1 ? Integer.parseInt(args[1].trim()) : 4;
+                if (scale < 0 || scale > precision || precision > 38) {
+                    throw new IllegalArgumentException("Bad decimal precision or scale");
+                }
+                return new DecimalColumn(precision, scale);
+            case 't':
+                checkArgs(type, args, 0);
+                return new TimestampColumn();
+            case 'x':
+                checkArgs(type, args, 1);
+                return new HexColumn((int) getPositiveLong(args, 0, 16));
+            default:
+                throw new IllegalArgumentException(String.format("Unknown column type '%c'", type));
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Bad number for '%c': %s", type, e.getMessage()));
+        }
+    }
+
+    private static void checkArgs(char type, final String[] args, int maxCount)
+    {
+        if (args.length > maxCount) {
+            throw new IllegalArgumentException(String.format("Too many arguments for '%c'", type));
+        }
+    }
+
+    private static long getPositiveLong(final String[] args, int index, long defaultValue)
+    {
+        if (index >= args.length || args[index].trim().isEmpty()) {
+            return defaultValue;
+        }
+        final long value = Long.parseLong(args[index].trim());
+        if (value <= 0) {
+            throw new IllegalArgumentException("Not a positive number: " + args[index]);
+        }
+        return value;
+    }
+}
@@ -25,15 +25,28 @@
 package org.voltdb.bulkloader;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
-
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.voltdb.bulkloader.CLIDriver.CLISpec;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
@@ -47,12 +60,41 @@ public class RMQCSVSend
           + "test-rabbitmq-csv-send [options] -g genspec\n"
           + ".";
     private static final String HELP_FOOTER = ".\n"
-          + "The genspec parameter is a string with one character per "
-          + "generated column. "
-          + "'s' represents a string column. "
-          + "'i' represents an integer column.";
+          + "The genspec parameter has one letter per generated column, "
+          + "optionally followed by [arguments]: "
+          + "i sequence number; "
+          + "s \"S\" plus the sequence number; "
+          + "s[N] or s[M-N] random string of N or M to N characters; "
+          + "l random long; "
+          + "k[N] uniform key below N; "
+          + "z[N,THETA] Zipfian key below N with skew THETA (default 0.99); "
+          + "d[P,S] decimal with precision P and scale S; "
+          + "t timestamp; "
+          + "x[N] hex VARBINARY of N bytes. "
+          + "A column followed by ? or ?P is null in 10% or P% of rows. "
+          + "Random values repeat after up to 65536 rows; --seed makes them reproducible.\n"
+          + "Every message carries its send time in microseconds since the epoch "
+          + "in header x-publish-micros, from which the loader measures latencies. "
+          + "With --rate, messages are sent on an open-loop schedule, each also with "
+          + "its scheduled send time in header x-intended-send-micros. "
+          + "Rate profiles, where S is seconds: "
+          + "constant; "
+          + "ramp:S rises from zero to the rate over S; "
+          + "step:S:N rises to the rate in N steps of S each; "
+          + "sine:S:A varies by a fraction A of the rate with period S; "
+          + "burst:S:L:F multiplies the rate by F for L out of every S.";
     private static final int HELP_WIDTH = 80;
     private static final String DEFAULT_EXCHANGE_TYPE = "direct";
+    /// Messages published between waits for publisher confirms.
+    private static final long DEFAULT_CONFIRM_BATCH = 1000;
+    /// Seconds between rate summaries in load mode.
+    private static final long DEFAULT_REPORT_INTERVAL = 5;
+    /// Longest wait in milliseconds for a batch of publisher confirms.
+    private static final long CONFIRM_TIMEOUT_MILLIS = 60000;
+    /// Header with the scheduled send time in microseconds since the epoch.
+    static final String INTENDED_SEND_HEADER = "x-intended-send-micros";
+    /// Highest send lag recorded, in microseconds.
+    private static final long MAX_LAG_MICROS = TimeUnit.HOURS.toMicros(1);
 
     private interface LineIterator extends Iterator<String>
     {
@@ -146,17 +188,15 @@ public class RMQCSVSend
     }
 
     /**
-     * Iterator for CSV rows generated based on a counter.
-     * Assumes the spec string was pre-validated.
+     * Iterator for CSV rows from a generator specification.
      */
-    private static class SequentialCSVGenerator implements LineIterator
+    private static class GeneratedCSVIterator implements LineIterator
     {
-        private String genspec;
-        private Integer counter = 0;
+        private final CSVRowGenerator generator;
 
-        public SequentialCSVGenerator(String genspec)
+        public GeneratedCSVIterator(CSVRowGenerator generator)
         {
-            this.genspec = genspec;
+            this.generator = generator;
         }
 
         @Override
@@ -168,24 +208,7 @@ public class RMQCSVSend
         @Override
         public String next()
         {
-            counter++;
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < this.genspec.length(); ++i) {
-                if (i > 0) {
-                    sb.append(",");
-                }
-                switch(this.genspec.charAt(i)) {
-                case 'i':
-                    sb.append(this.counter.toString());
-                    break;
-                case 's':
-                    sb.append(String.format("\"S%d\"", this.counter));
-                    break;
-                default:
-                    assert false;
-                }
-            }
-            return sb.toString();
+            return this.generator.nextRow();
         }
 
         @Override
@@ -234,14 +257,21 @@ public class RMQCSVSend
 
         try {
             channel.queueDeclare(rmqOpts.queue, rmqOpts.persistent, false, false, null);
+            AMQP.BasicProperties properties = MessageProperties.TEXT_PLAIN;
+            if (testOpts.compression != null) {
+                properties = properties.builder()
+                        .contentEncoding(testOpts.compression.getEncoding())
+                        .build();
+            }
             try {
-                while (testOpts.lineIter.hasNext()) {
-                    String message = testOpts.lineIter.next();
+                String message;
+                while ((message = nextMessage(testOpts)) != null) {
                     channel.basicPublish(
                             exchangeName,
                             routingKey,
-                            MessageProperties.TEXT_PLAIN,
-                            message.getBytes());
+                            withPublishTime(properties, null,
+                                            TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())),
+                            encode(message, testOpts.compression));
                     System.out.printf(" [x] Sent '%s'\n", message);
                     sleeperOpts.sleeper.sleep();
                 }
@@ -264,10 +294,293 @@ public class RMQCSVSend
         }
     }
 
+    /**
+     * Stamp message properties with the publish time and, if scheduled, the
+     * intended send time.
+     * @param properties  properties shared by all messages
+     * @param intendedMicros  intended send time in microseconds since the epoch or null
+     * @param publishMicros  publish time in microseconds since the epoch
+     * @return message properties
+     */
+    private static AMQP.BasicProperties withPublishTime(AMQP.BasicProperties properties,
+                                                        Long intendedMicros, long publishMicros)
+    {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        if (intendedMicros != null) {
+            headers.put(INTENDED_SEND_HEADER, intendedMicros);
+        }
+        headers.put(RMQDeliveryConsumer.PUBLISH_TIME_HEADER, publishMicros);
+        return properties.builder().headers(headers).build();
+    }
+
+    /**
+     * Pack up to testOpts.rows lines into one message.
+     * @param testOpts  test options
+     * @return message or null when the lines are exhausted
+     */
+    private static String nextMessage(TestOptions testOpts)
+    {
+        if (!testOpts.lineIter.hasNext()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(testOpts.lineIter.next());
+        for (int i = 1; i < testOpts.rows && testOpts.lineIter.hasNext(); ++i) {
+            sb.append('\n').append(testOpts.lineIter.next());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Counts what the publisher threads have sent.
+     */
+    private static class LoadCounters
+    {
+        final AtomicLong messages = new AtomicLong(0);
+        final AtomicLong bytes = new AtomicLong(0);
+        /// Remaining messages or null for no limit.
+        final AtomicLong remaining;
+        /// Delays of actual behind intended send times in microseconds.
+        final Recorder lag = new Recorder(MAX_LAG_MICROS, 3);
+        /// System.nanoTime() after which no more messages are sent, or 0.
+        volatile long deadline = 0;
+        /// Offset from System.nanoTime() to the epoch in microseconds.
+        volatile long epochOffsetMicros = 0;
+
+        LoadCounters(Long limit)
+        {
+            this.remaining = limit != null ? new AtomicLong(limit) : null;
+        }
+
+        long toEpochMicros(long nanos)
+        {
+            return this.epochOffsetMicros + TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+    }
+
+    /**
+     * Publishes messages on its own channel, as fast as possible or at the
+     * times given by the rate schedule, waiting for publisher confirms after
+     * each batch of messages. Messages carry their send times, and scheduled
+     * messages also their intended send times, in headers.
+     */
+    private static class Publisher implements Runnable
+    {
+        private final Channel channel;
+        private final String exchangeName;
+        private final String routingKey;
+        private final AMQP.BasicProperties properties;
+        private final TestOptions testOpts;
+        private final LoadCounters counters;
+        private IOException failure = null;
+
+        public Publisher(Channel channel, String exchangeName, String routingKey,
+                         AMQP.BasicProperties properties, TestOptions testOpts, LoadCounters counters)
+        {
+            this.channel = channel;
+            this.exchangeName = exchangeName;
+            this.routingKey = routingKey;
+            this.properties = properties;
+            this.testOpts = testOpts;
+            this.counters = counters;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                if (this.testOpts.confirms > 0) {
+                    this.channel.confirmSelect();
+                }
+                final RateSchedule schedule = this.testOpts.schedule;
+                long unconfirmed = 0;
+                while (this.counters.remaining == null || this.counters.remaining.getAndDecrement() > 0) {
+                    String message;
+                    // The lines are shared by all the publishers.
+                    synchronized (this.testOpts.lineIter) {
+                        message = nextMessage(this.testOpts);
+                    }
+                    if (message == null) {
+                        break;
+                    }
+                    byte[] body = encode(message, this.testOpts.compression);
+                    Long intendedMicros = null;
+                    if (schedule != null) {
+                        final long due = schedule.next();
+                        if (this.counters.deadline != 0 && due - this.counters.deadline >= 0) {
+                            break;
+                        }
+                        RateSchedule.waitUntil(due);
+                        final long now = System.nanoTime();
+                        this.counters.lag.recordValue(
+                                Math.min(TimeUnit.NANOSECONDS.toMicros(now - due), MAX_LAG_MICROS));
+                        intendedMicros = this.counters.toEpochMicros(due);
+                    }
+                    else if (this.counters.deadline != 0 && System.nanoTime() - this.counters.deadline >= 0) {
+                        break;
+                    }
+                    AMQP.BasicProperties messageProperties = withPublishTime(
+                            this.properties, intendedMicros, this.counters.toEpochMicros(System.nanoTime()));
+                    this.channel.basicPublish(this.exchangeName, this.routingKey, messageProperties, body);
+                    if (this.testOpts.confirms > 0 && ++unconfirmed >= this.testOpts.confirms) {
+                        this.channel.waitForConfirmsOrDie(CONFIRM_TIMEOUT_MILLIS);
+                        unconfirmed = 0;
+                    }
+                    this.counters.messages.incrementAndGet();
+                    this.counters.bytes.addAndGet(body.length);
+                }
+                if (unconfirmed > 0) {
+                    this.channel.waitForConfirmsOrDie(CONFIRM_TIMEOUT_MILLIS);
+                }
+            }
+            catch (IOException e) {
+                this.failure = e;
+            }
+            catch (InterruptedException | TimeoutException e) {
+                this.failure = new IOException("Publisher confirms did not arrive.", e);
+            }
+        }
+    }
+
+    /**
+     * Publish from several threads, each on its own channel, without
+     * per-message output or sleeping, and print a rate summary periodically.
+     */
+    private static void generateLoad(RMQOptions rmqOpts, TestOptions testOpts) throws InterruptedException
+    {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(rmqOpts.host);
+        String exchangeName = rmqOpts.exchange != null ? rmqOpts.exchange : "";
+        // Use the queue name if the routing key is not specified.
+        String routingKey = rmqOpts.routing != null ? rmqOpts.routing : rmqOpts.queue;
+        AMQP.BasicProperties properties = MessageProperties.TEXT_PLAIN;
+        if (testOpts.compression != null) {
+            properties = properties.builder()
+                    .contentEncoding(testOpts.compression.getEncoding())
+                    .build();
+        }
+
+        Connection connection = null;
+        LoadCounters counters = new LoadCounters(testOpts.messages);
+        List<Publisher> publishers = new ArrayList<Publisher>();
+        List<Thread> threads = new ArrayList<Thread>();
+        try {
+            connection = factory.newConnection();
+            for (int i = 0; i < testOpts.publishers; ++i) {
+                Channel channel = connection.createChannel();
+                if (i == 0) {
+                    if (rmqOpts.exchange != null) {
+                        channel.exchangeDeclare(exchangeName, rmqOpts.extype);
+                    }
+                    channel.queueDeclare(rmqOpts.queue, rmqOpts.persistent, false, false, null);
+                }
+                Publisher publisher = new Publisher(channel, exchangeName, routingKey,
+                                                    properties, testOpts, counters);
+                publishers.add(publisher);
+                threads.add(new Thread(publisher, String.format("Publisher %d", i + 1)));
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.exit(255);
+        }
+
+        final long start = System.nanoTime();
+        counters.epochOffsetMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())
+                                   - TimeUnit.NANOSECONDS.toMicros(start);
+        if (testOpts.duration != null) {
+            counters.deadline = start + TimeUnit.SECONDS.toNanos(testOpts.duration);
+        }
+        if (testOpts.schedule != null) {
+            testOpts.schedule.start(start);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long lastTime = start;
+        long lastMessages = 0;
+        long lastBytes = 0;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                thread.join(TimeUnit.SECONDS.toMillis(testOpts.report));
+                final long now = System.nanoTime();
+                if (now - lastTime >= TimeUnit.SECONDS.toNanos(testOpts.report)) {
+                    final long messages = counters.messages.get();
+                    final long bytes = counters.bytes.get();
+                    printRates("", messages - lastMessages, bytes - lastBytes, now - lastTime, testOpts);
+                    if (testOpts.schedule != null) {
+                        printLag(counters.lag.getIntervalHistogram(),
+                                 testOpts.schedule.getRate((now - start) / 1e9));
+                    }
+                    lastTime = now;
+                    lastMessages = messages;
+                    lastBytes = bytes;
+                }
+            }
+        }
+        printRates("Total: ", counters.messages.get(), counters.bytes.get(), System.nanoTime() - start, testOpts);
+        testOpts.lineIter.close();
+        for (Publisher publisher : publishers) {
+            if (publisher.failure != null) {
+                publisher.failure.printStackTrace();
+            }
+        }
+        try {
+            connection.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void printRates(String prefix, long messages, long bytes, long nanos, TestOptions testOpts)
+    {
+        final double seconds = nanos / 1e9;
+        System.out.printf("%s%d messages in %.1f s: %.0f messages/s, %.0f rows/s, %.2f MB/s\n",
+                          prefix, messages, seconds, messages / seconds,
+                          messages * testOpts.rows / seconds, bytes / seconds / (1024 * 1024));
+    }
+
+    private static void printLag(Histogram lag, double targetRate)
+    {
+        System.out.printf("  target %.0f messages/s, send lag p50 %.3f ms, p99 %.3f ms, max %.3f ms\n",
+                          targetRate, lag.getValueAtPercentile(50) / 1000.0,
+                          lag.getValueAtPercentile(99) / 1000.0, lag.getMaxValue() / 1000.0);
+    }
+
+    private static byte[] encode(String message, Compression compression) throws IOException
+    {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        if (compression == null) {
+            return body;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 2 + 64);
+        OutputStream output = compression.compress(bytes);
+        try {
+            output.write(body);
+        }
+        finally {
+            output.close();
+        }
+        return bytes.toByteArray();
+    }
+
     private static class TestOptions
     {
         public LineIterator lineIter = null;
-
+        public long rows = 1;
+        public Compression compression = null;
+        /// Publisher threads in load mode, or 0 to publish one message at a time.
+        public long publishers = 0;
+        /// Messages between publisher confirm waits, or 0 for no confirms.
+        public long confirms = DEFAULT_CONFIRM_BATCH;
+        /// Seconds between rate summaries.
+        public long report = DEFAULT_REPORT_INTERVAL;
+        /// Message limit or null.
+        public Long messages = null;
+        /// Seconds to send for in load mode or null.
+        public Long duration = null;
+        /// Open-loop send schedule or null to send as fast as possible.
+        public RateSchedule schedule = null;
     }
 
     private static class TestCLISpec implements CLISpec
@@ -293,6 +606,77 @@ public class RMQCSVSend
                                 .hasArg()
                                 .withDescription("CSV generation specification (see below)")
                                 .create('g'));
+            options.addOption(OptionBuilder
+                                .withLongOpt("rows")
+                                .withArgName("rows")
+                                .withType(Number.class)
+                                .hasArg()
+                                .withDescription("CSV lines per message (default: 1)")
+                                .create());
+            options.addOption(OptionBuilder
+                                .withLongOpt("compress")
+                                .withArgName("encoding")
+                                .withType(String.class)
+                                .hasArg()
+                                .withDescription(String.format("message compression (%s)",
+                                                               Compression.getEncodings()))
+                                .create());
+            options.addOption(OptionBuilder
+                                .withLongOpt("publishers")
+                                .withArgName("threads")
+                                .withType(Number.class)
+                                .hasArg()
+                                .withDescription("generate load from this many publisher threads "
+                                                 + "without output or sleeping")
+                                .create());
+            options.addOption(OptionBuilder
+                                .withLongOpt("confirms")
+                                .withArgName("messages")
+                                .withType(Number.class)
+                                .hasArg()
+                                .withDescription(String.format(
+                                        "messages between publisher confirm waits in load mode, 0 for none "
+                                        + "(default: %d)", DEFAULT_CONFIRM_BATCH))
+                                .create());
+            options.addOption(OptionBuilder
+                                .withLongOpt("report")
+                                .withArgName("seconds")
+                                .withType(Number.class)
+                                .hasArg()
+                                .withDescription(String.format(
+                                        "seconds between rate summaries in load mode (default: %d)",
+                                        DEFAULT_REPORT_INTERVAL))
+                                .create());
+            options.addOption(OptionBuilder
+                                .withLongOpt("messages")
+                                .withArgName("messages")
+                                .withType(Number.class)
+                                .hasArg()
+                                .withDescription("stop after this many messages in load mode")
+                                .create());
+            options.addOption(OptionBuilder
+                                .withLongOpt("duration")
+                                .withArgName("seconds")
+                                .withType(Number.class)
+                                .hasArg()
+                                .withDescription("stop after this many seconds in load mode")
+                                .create());
+            options.addOption(OptionBuilder
+                                .withLongOpt("rate")
+                                .withArgName("messages")
+                                .withType(Number.class)
+                                .hasArg()
+                                .withDescription("send on an open-loop schedule at this many messages per second "
+                                                 + "(implies load mode)")
+                                .create());
+            options.addOption(OptionBuilder
+                                .withLongOpt("profile")
+                                .withArgName("profile")
+                                .withType(String.class)
+                                .hasArg()
+                                .withDescription("rate profile: constant, ramp:S, step:S:N, sine:S:A, burst:S:L:F "
+                                                 + "(see below, default: constant)")
+                                .create());
         }
 
         @Override
@@ -300,6 +684,61 @@ public class RMQCSVSend
         {
             String csvfilePath = driver.getString("csvfile");
             String genspec = driver.getString("genspec");
+            String compress = driver.getString("compress");
+            if (compress != null) {
+                this.opts.compression = Compression.fromEncoding(compress);
+                if (this.opts.compression == null) {
+                    driver.addError("Unsupported compression: %s", compress);
+                }
+            }
+            Long rows = driver.getNumber("rows");
+            if (rows != null) {
+                if (rows > 0) {
+                    this.opts.rows = rows;
+                }
+                else {
+                    driver.addError("Rows per message must be greater than zero: %d", rows);
+                }
+            }
+            this.opts.publishers = driver.getNumber("publishers", this.opts.publishers);
+            if (this.opts.publishers < 0) {
+                driver.addError("Publisher threads must be >= 0: %d", this.opts.publishers);
+            }
+            this.opts.confirms = driver.getNumber("confirms", this.opts.confirms);
+            if (this.opts.confirms < 0) {
+                driver.addError("Messages between confirm waits must be >= 0: %d", this.opts.confirms);
+            }
+            this.opts.report = driver.getNumber("report", this.opts.report);
+            if (this.opts.report <= 0) {
+                driver.addError("Report interval must be greater than zero: %d", this.opts.report);
+            }
+            this.opts.messages = driver.getNumber("messages", this.opts.messages);
+            if (this.opts.messages != null && this.opts.messages <= 0) {
+                driver.addError("Message limit must be greater than zero: %d", this.opts.messages);
+            }
+            this.opts.duration = driver.getNumber("duration", this.opts.duration);
+            if (this.opts.duration != null && this.opts.duration <= 0) {
+                driver.addError("Duration must be greater than zero: %d", this.opts.duration);
+            }
+            Long rate = driver.getNumber("rate");
+            String profile = driver.getString("profile", "constant");
+            if (rate != null) {
+                if (rate <= 0) {
+                    driver.addError("Rate must be greater than zero: %d", rate);
+                }
+                else {
+                    this.opts.schedule = RateSchedule.parse(profile, rate);
+                    if (this.opts.schedule == null) {
+                        driver.addError("Bad rate profile: %s", profile);
+                    }
+                }
+                if (this.opts.publishers == 0) {
+                    this.opts.publishers = 1;
+                }
+            }
+            else if (driver.getString("profile") != null) {
+                driver.addError("A rate profile requires --rate.");
+            }
             if (csvfilePath == null && genspec == null) {
                 driver.addError("Use --csvfile or --genspec to specify a data source.");
             }
@@ -321,28 +760,16 @@ public class RMQCSVSend
                 }
             }
             else if (genspec != null) {
-                if (checkGenSpec(genspec)) {
-                    this.opts.lineIter = new SequentialCSVGenerator(genspec);
+                try {
+                    // Shares --seed with the sleeper for reproducible data.
+                    this.opts.lineIter = new GeneratedCSVIterator(
+                            CSVRowGenerator.parse(genspec, driver.getNumber("seed")));
                 }
-                else {
-                    driver.addError("Bad generator specification: %s", genspec);
+                catch (IllegalArgumentException e) {
+                    driver.addError("Bad generator specification: %s (%s)", genspec, e.getMessage());
                 }
             }
         }
-
-        private static boolean checkGenSpec(String genspec)
-        {
-            for (int i = 0; i < genspec.length(); ++i) {
-                switch(genspec.charAt(i)) {
-                case 'i':
-                case 's':
-                    break;
-                default:
-                    return false;
-                }
-            }
-            return true;
-        }
     }
 
     public static void main(String[] args) throws IOException
@@ -359,7 +786,12 @@ public class RMQCSVSend
         CLIDriver.parse(helpData, args, rmqCLI, sleeperCLI, testCLI);
 
         try {
-            sendMessages(rmqCLI.opts, sleeperCLI.opts, testCLI.opts);
+            if (testCLI.opts.publishers > 0) {
+                generateLoad(rmqCLI.opts, testCLI.opts);
+            }
+            else {
+                sendMessages(rmqCLI.opts, sleeperCLI.opts, testCLI.opts);
+            }
         }
         catch (InterruptedException e) {
             System.exit(255);
@@ -0,0 +1,179 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.bulkloader;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop send schedule. Each message is given an intended send time from
+ * a rate profile, independent of when earlier messages actually went out,
+ * so that a slow broker delays messages rather than thinning the load.
+ * Latency measured from the intended times is then free of coordinated
+ * omission.
+ *
+ * Profiles, with rate being the target messages per second:
+ *   constant                       rate throughout
+ *   ramp:SECONDS                   rises linearly from zero to rate, then holds
+ *   step:SECONDS:STEPS             rises to rate in STEPS equal steps of SECONDS each
+ *   sine:SECONDS:AMPLITUDE         rate * (1 + AMPLITUDE * sin(2 pi t / SECONDS)), 0 <= AMPLITUDE <= 1
+ *   burst:SECONDS:LENGTH:FACTOR    rate * FACTOR for LENGTH seconds out of every SECONDS
+ */
+class RateSchedule
+{
+    /// Lowest rate used for pacing, so that a profile at zero still advances.
+    private static final double MIN_RATE = 1.0;
+    /// Waits shorter than this spin rather than park, for pacing accuracy.
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private enum Shape
+    {
+        CONSTANT(0), RAMP(1), STEP(2), SINE(2), BURST(3);
+
+        final int paramCount;
+
+        private Shape(int paramCount)
+        {
+            this.paramCount = paramCount;
+        }
+    }
+
+    private final Shape m_shape;
+    private final double m_rate;
+    private final double[] m_params;
+    /// Schedule start and next intended send time, guarded by this.
+    private long m_start = 0;
+    private long m_next = 0;
+
+    private RateSchedule(final Shape shape, double rate, final double[] params)
+    {
+        m_shape = shape;
+        m_rate = rate;
+        m_params = params;
+    }
+
+    /**
+     * @param profile  profile specification
+     * @param rate  target messages per second
+     * @return schedule or null if the profile is bad
+     */
+    public static RateSchedule parse(final String profile, double rate)
+    {
+        final String[] parts = profile.trim().split(":");
+        Shape shape;
+        try {
+            shape = Shape.valueOf(parts[0].toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (parts.length != shape.paramCount + 1) {
+            return null;
+        }
+        final double[] params = new double[shape.paramCount];
+        try {
+            for (int i = 0; i < params.length; ++i) {
+                params[i] = Double.parseDouble(parts[i + 1]);
+                if (!(params[i] > 0)) {
+                    return null;
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+        if (shape == Shape.SINE && params[1] > 1) {
+            return null;
+        }
+        if (shape == Shape.BURST && params[1] > params[0]) {
+            return null;
+        }
+        return new RateSchedule(shape, rate, params);
+    }
+
+    /**
+     * @param seconds  time since the start
+     * @return target messages per second at that time
+     */
+    public double getRate(double seconds)
+    {
+        switch (m_shape) {
+        case RAMP:
+            return m_rate * Math.min(seconds / m_params[0], 1.0);
+        case STEP:
+            return m_rate * Math.min(Math.floor(seconds / m_params[0]) + 1, m_params[1]) / m_params[1];
+        case SINE:
+            return m_rate * (1 + m_params[1] * Math.sin(2 * Math.PI * seconds / m_params[0]));
+        case BURST:
+            return (seconds % m_params[0]) < m_params[1] ? m_rate * m_params[2] : m_rate;
+        default:
+            return m_rate;
+        }
+    }
+
+    /**
+     * Start the schedule.
+     * @param nanos  System.nanoTime() of the first send
+     */
+    public synchronized void start(long nanos)
+    {
+        m_start = nanos;
+        m_next = nanos;
+    }
+
+    /**
+     * @return System.nanoTime() at which the next message is due
+     */
+    public synchronized long next()
+    {
+        final long due = m_next;
+        final double rate = Math.max(getRate((due - m_start) / 1e9), MIN_RATE);
+        m_next = due + (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        return due;
+    }
+
+    /**
+     * @return System.nanoTime() at which the schedule started
+     */
+    public synchronized long getStart()
+    {
+        return m_start;
+    }
+
+    /**
+     * Wait until a time, parking for most of the wait and spinning for the
+     * rest. Returns at once if the time has passed.
+     * @param due  System.nanoTime() to wait for
+     */
+    public static void waitUntil(long due)
+    {
+        long remaining;
+        while ((remaining = due - System.nanoTime()) > 0) {
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            }
+        }
+    }
+}